@@ -0,0 +1,493 @@
+package bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Open-loop HTTP load generator on a single selector. Requests are scheduled
+ * at a fixed rate whether or not earlier ones have finished, and latency is
+ * measured from when a request was due to be sent rather than when a
+ * connection became free to send it, so a stalled server shows up in the
+ * percentiles instead of slowing the generator down (coordinated omission).
+ * Service time, measured from the actual send, is kept alongside.
+ */
+final class LoadClient {
+
+    enum Kind {
+        STATIC("static"), KEEPALIVE("keepalive"), PIPELINED("pipelined"), UPLOAD("upload"),
+        CGI("cgi"), NOT_FOUND("notfound"), SLOW("slow");
+
+        final String label;
+
+        Kind(String label) {
+            this.label = label;
+        }
+
+        static Kind of(String label) {
+            for (Kind k : values()) if (k.label.equals(label)) return k;
+            throw new IllegalArgumentException("Unknown scenario '" + label + "'");
+        }
+    }
+
+    static final class Recorder {
+        private long[] values = new long[1024];
+        private int    count;
+        long errors;
+        long timeouts;
+
+        void add(long nanos) {
+            if (count == values.length) values = Arrays.copyOf(values, count * 2);
+            values[count++] = nanos;
+        }
+
+        int count() {
+            return count;
+        }
+
+        long[] sorted() {
+            long[] copy = Arrays.copyOf(values, count);
+            Arrays.sort(copy);
+            return copy;
+        }
+
+        void addAll(Recorder other) {
+            for (int i = 0; i < other.count; i++) add(other.values[i]);
+            errors += other.errors;
+            timeouts += other.timeouts;
+        }
+    }
+
+    static final class Options {
+        int    rate = 1000;
+        long   durationNanos = 30_000_000_000L;
+        long   warmupNanos = 5_000_000_000L;
+        long   timeoutNanos = 10_000_000_000L;
+        int    connections = 64;
+        int    pipelineDepth = 8;
+        int    uploadSize = 64 * 1024;
+        long   slowIntervalNanos = 50_000_000;
+        Map<Kind, Integer> mix = new EnumMap<>(Kind.class);
+    }
+
+    private static final class Request {
+        private final Kind kind;
+        private final long due;
+        private long sent;
+
+        Request(Kind kind, long due) {
+            this.kind = kind;
+            this.due  = due;
+        }
+    }
+
+    private final class Conn {
+        private final SocketChannel     channel;
+        private final boolean           pooled;
+        private final ArrayDeque<Request> inFlight = new ArrayDeque<>();
+        private ByteBuffer out;
+        private ByteBuffer in = ByteBuffer.allocate(16 * 1024);
+        private long nextTrickleAt;
+
+        Conn(SocketChannel channel, boolean pooled) {
+            this.channel = channel;
+            this.pooled  = pooled;
+        }
+    }
+
+    private final InetSocketAddress address;
+    private final Options options;
+    private final Selector selector;
+    private final Kind[] wheel;
+
+    private final Map<Kind, Recorder> latency = new EnumMap<>(Kind.class);
+    private final Map<Kind, Recorder> service = new EnumMap<>(Kind.class);
+
+    private final ArrayDeque<Conn>    idle = new ArrayDeque<>();
+    private final ArrayDeque<Request> backlog = new ArrayDeque<>();
+    private final Set<Conn>           open = new HashSet<>();
+    private final List<Conn>          trickling = new ArrayList<>();
+    private int pooledCount;
+    private int outstanding;
+    private long measureFrom;
+
+    private final byte[] staticRequest;
+    private final byte[] keepAliveRequest;
+    private final byte[] notFoundRequest;
+    private final byte[] cgiRequest;
+    private final byte[] uploadRequest;
+
+    LoadClient(InetSocketAddress address, Options options) throws IOException {
+        this.address = address;
+        this.options = options;
+        this.selector = Selector.open();
+        for (Kind k : Kind.values()) {
+            latency.put(k, new Recorder());
+            service.put(k, new Recorder());
+        }
+
+        // Weighted round robin over a 100-slot wheel, interleaved so scenarios mix evenly.
+        int total = options.mix.values().stream().mapToInt(Integer::intValue).sum();
+        if (total <= 0) throw new IllegalArgumentException("Empty scenario mix");
+        List<Kind> slots = new ArrayList<>();
+        Map<Kind, Double> credit = new EnumMap<>(Kind.class);
+        for (int i = 0; i < 100; i++) {
+            Kind best = null;
+            for (Map.Entry<Kind, Integer> e : options.mix.entrySet()) {
+                double c = credit.getOrDefault(e.getKey(), 0.0) + (double) e.getValue() / total;
+                credit.put(e.getKey(), c);
+                if (best == null || c > credit.get(best)) best = e.getKey();
+            }
+            credit.put(best, credit.get(best) - 1);
+            slots.add(best);
+        }
+        this.wheel = slots.toArray(new Kind[0]);
+
+        String host = "Host: " + address.getHostString() + ":" + address.getPort() + "\r\n";
+        this.staticRequest = ascii("GET /index.html HTTP/1.1\r\n" + host
+                + "User-Agent: loadtest\r\nConnection: close\r\n\r\n");
+        this.keepAliveRequest = ascii("GET /index.html HTTP/1.1\r\n" + host
+                + "User-Agent: loadtest\r\nConnection: keep-alive\r\n\r\n");
+        this.notFoundRequest = ascii("GET /missing/page.html HTTP/1.1\r\n" + host
+                + "User-Agent: loadtest\r\nConnection: keep-alive\r\n\r\n");
+        String form = "payload=" + "x".repeat(1016);
+        this.cgiRequest = ascii("POST /cgi-bin/echo.sh HTTP/1.1\r\n" + host
+                + "Content-Type: application/x-www-form-urlencoded\r\n"
+                + "Content-Length: " + form.length() + "\r\nConnection: keep-alive\r\n\r\n" + form);
+        this.uploadRequest = upload(host, options.uploadSize);
+    }
+
+    Map<Kind, Recorder> latency() { return latency; }
+    Map<Kind, Recorder> service() { return service; }
+
+    void run() throws IOException {
+        long interval = 1_000_000_000L / options.rate;
+        long start = System.nanoTime();
+        measureFrom = start + options.warmupNanos;
+        long end = measureFrom + options.durationNanos;
+        long next = start;
+        long seq = 0;
+        long lastSweep = start;
+
+        while (true) {
+            long now = System.nanoTime();
+            while (next <= now && next < end) {
+                submit(new Request(wheel[(int) (seq++ % wheel.length)], next));
+                next += interval;
+            }
+            if (next >= end && outstanding == 0) break;
+            if (now > end + options.timeoutNanos) {
+                for (Conn c : new ArrayList<>(open)) fail(c, true);
+                for (Request r : backlog) timeout(r);
+                backlog.clear();
+                break;
+            }
+
+            trickle(now);
+            if (now - lastSweep > 100_000_000) {
+                sweepTimeouts(now);
+                lastSweep = now;
+            }
+
+            long waitNanos = Math.min(next - now, 1_000_000);
+            selector.select(Math.max(1, waitNanos / 1_000_000));
+            handleKeys();
+        }
+        for (Conn c : new ArrayList<>(open)) close(c);
+        selector.close();
+    }
+
+    private void submit(Request r) throws IOException {
+        outstanding++;
+        switch (r.kind) {
+            case STATIC -> connect(r, staticRequest, false);
+            case SLOW -> connect(r, staticRequest, false);
+            default -> {
+                Conn c = idle.pollFirst();
+                if (c != null) send(c, r);
+                else if (pooledCount < options.connections) connect(r, null, true);
+                else backlog.add(r);
+            }
+        }
+    }
+
+    private void connect(Request r, byte[] bytes, boolean pooled) throws IOException {
+        SocketChannel ch = SocketChannel.open();
+        ch.configureBlocking(false);
+        ch.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+        Conn c = new Conn(ch, pooled);
+        if (pooled) pooledCount++;
+        open.add(c);
+        c.inFlight.add(r);
+        c.out = bytes != null ? ByteBuffer.wrap(bytes) : ByteBuffer.wrap(requestBytes(r.kind));
+        if (r.kind == Kind.PIPELINED) pipelineRest(c, r);
+        try {
+            ch.connect(address);
+        } catch (IOException e) {
+            fail(c, false);
+            return;
+        }
+        ch.register(selector, SelectionKey.OP_CONNECT, c);
+    }
+
+    private void send(Conn c, Request r) {
+        c.inFlight.add(r);
+        c.out = ByteBuffer.wrap(requestBytes(r.kind));
+        if (r.kind == Kind.PIPELINED) pipelineRest(c, r);
+        SelectionKey key = c.channel.keyFor(selector);
+        key.interestOps(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
+    }
+
+    // A pipelined job is one request due at r.due plus depth-1 more sent right behind it.
+    private void pipelineRest(Conn c, Request first) {
+        int depth = options.pipelineDepth;
+        ByteBuffer all = ByteBuffer.allocate(keepAliveRequest.length * depth);
+        for (int i = 0; i < depth; i++) all.put(keepAliveRequest);
+        all.flip();
+        c.out = all;
+        for (int i = 1; i < depth; i++) {
+            c.inFlight.add(new Request(Kind.PIPELINED, first.due));
+            outstanding++;
+        }
+    }
+
+    private byte[] requestBytes(Kind kind) {
+        return switch (kind) {
+            case UPLOAD -> uploadRequest;
+            case CGI -> cgiRequest;
+            case NOT_FOUND -> notFoundRequest;
+            case STATIC, SLOW -> staticRequest;
+            default -> keepAliveRequest;
+        };
+    }
+
+    private void handleKeys() {
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            Conn c = (Conn) key.attachment();
+            if (!key.isValid()) continue;
+            try {
+                if (key.isConnectable()) {
+                    if (!c.channel.finishConnect()) continue;
+                    if (c.inFlight.peek().kind == Kind.SLOW) {
+                        key.interestOps(SelectionKey.OP_READ);
+                        c.nextTrickleAt = System.nanoTime();
+                        trickling.add(c);
+                    } else {
+                        key.interestOps(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
+                    }
+                    continue;
+                }
+                if (key.isWritable()) write(c, key);
+                if (key.isValid() && key.isReadable()) read(c);
+            } catch (IOException e) {
+                fail(c, false);
+            }
+        }
+    }
+
+    private void write(Conn c, SelectionKey key) throws IOException {
+        long now = System.nanoTime();
+        for (Request r : c.inFlight) if (r.sent == 0) r.sent = now;
+        c.channel.write(c.out);
+        if (!c.out.hasRemaining()) key.interestOps(SelectionKey.OP_READ);
+    }
+
+    // Slow clients send their request one byte per interval.
+    private void trickle(long now) throws IOException {
+        Iterator<Conn> it = trickling.iterator();
+        while (it.hasNext()) {
+            Conn c = it.next();
+            if (!open.contains(c)) { it.remove(); continue; }
+            if (now < c.nextTrickleAt) continue;
+            Request r = c.inFlight.peek();
+            if (r != null && r.sent == 0) r.sent = now;
+            ByteBuffer one = c.out.slice(c.out.position(), 1);
+            try {
+                c.out.position(c.out.position() + c.channel.write(one));
+            } catch (IOException e) {
+                it.remove();
+                fail(c, false);
+                continue;
+            }
+            c.nextTrickleAt = now + options.slowIntervalNanos;
+            if (!c.out.hasRemaining()) it.remove();
+        }
+    }
+
+    private void read(Conn c) throws IOException {
+        if (!c.in.hasRemaining()) c.in = grow(c.in);
+        int n = c.channel.read(c.in);
+        if (n < 0) {
+            fail(c, false);
+            return;
+        }
+
+        boolean answered = false;
+        while (!c.inFlight.isEmpty()) {
+            int parsed = parseResponse(c);
+            if (parsed == 0) return;
+            answered = true;
+            boolean closeAfter = parsed < 0;
+            int length = Math.abs(parsed);
+            int status = statusOf(c.in);
+
+            c.in.flip();
+            c.in.position(length);
+            c.in.compact();
+
+            complete(c.inFlight.poll(), status);
+            if (closeAfter || !c.pooled) {
+                fail(c, false);
+                return;
+            }
+        }
+        if (answered) release(c);
+    }
+
+    private void release(Conn c) {
+        Request next = backlog.poll();
+        if (next != null) send(c, next);
+        else idle.push(c);
+    }
+
+    // Length of the first complete response in c.in, negated when the server
+    // will close afterwards; 0 while incomplete.
+    private static int parseResponse(Conn c) {
+        byte[] data = c.in.array();
+        int limit = c.in.position();
+        int headerEnd = -1;
+        for (int i = 0; i + 3 < limit; i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') {
+                headerEnd = i + 4;
+                break;
+            }
+        }
+        if (headerEnd < 0) return 0;
+
+        String head = new String(data, 0, headerEnd, StandardCharsets.ISO_8859_1).toLowerCase();
+        int contentLength = 0;
+        int at = head.indexOf("\r\ncontent-length:");
+        if (at >= 0) {
+            int eol = head.indexOf("\r\n", at + 2);
+            contentLength = Integer.parseInt(head.substring(at + 17, eol).trim());
+        }
+        int total = headerEnd + contentLength;
+        if (limit < total) {
+            if (c.in.capacity() < total) c.in = grow(c.in, total);
+            return 0;
+        }
+        return head.contains("\r\nconnection: close") ? -total : total;
+    }
+
+    private static int statusOf(ByteBuffer in) {
+        byte[] d = in.array();
+        return (d[9] - '0') * 100 + (d[10] - '0') * 10 + (d[11] - '0');
+    }
+
+    private void complete(Request r, int status) {
+        outstanding--;
+        if (r.due < measureFrom) return;
+        long now = System.nanoTime();
+        boolean expected = r.kind == Kind.NOT_FOUND ? status == 404 : status < 400;
+        if (!expected) {
+            latency.get(r.kind).errors++;
+            return;
+        }
+        latency.get(r.kind).add(now - r.due);
+        service.get(r.kind).add(now - (r.sent > 0 ? r.sent : r.due));
+    }
+
+    private void sweepTimeouts(long now) {
+        for (Conn c : new ArrayList<>(open)) {
+            Request oldest = c.inFlight.peek();
+            if (oldest != null && now - oldest.due > options.timeoutNanos) fail(c, true);
+        }
+        while (!backlog.isEmpty() && now - backlog.peek().due > options.timeoutNanos)
+            timeout(backlog.poll());
+    }
+
+    private void timeout(Request r) {
+        outstanding--;
+        if (r.due >= measureFrom) latency.get(r.kind).timeouts++;
+    }
+
+    // Closes the connection, counting its unanswered requests as errors or timeouts.
+    private void fail(Conn c, boolean timedOut) {
+        for (Request r : c.inFlight) {
+            if (timedOut) {
+                timeout(r);
+            } else {
+                outstanding--;
+                if (r.due >= measureFrom) latency.get(r.kind).errors++;
+            }
+        }
+        c.inFlight.clear();
+        close(c);
+        if (c.pooled && !backlog.isEmpty()) {
+            try {
+                connect(backlog.poll(), null, true);
+            } catch (IOException e) {
+                System.err.println("[LOAD] Connect failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void close(Conn c) {
+        if (!open.remove(c)) return;
+        if (c.pooled) {
+            pooledCount--;
+            idle.remove(c);
+        }
+        try {
+            c.channel.close();
+        } catch (IOException ignored) {}
+    }
+
+    private static ByteBuffer grow(ByteBuffer in) {
+        return grow(in, in.capacity() * 2);
+    }
+
+    private static ByteBuffer grow(ByteBuffer in, int capacity) {
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        in.flip();
+        bigger.put(in);
+        return bigger;
+    }
+
+    private static byte[] upload(String host, int size) {
+        String boundary = "----LoadTestBoundary7MA4YWxkTrZu0gW";
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) data[i] = (byte) ('a' + i % 26);
+        byte[] partHead = ascii("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"loadtest.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n");
+        byte[] tail = ascii("\r\n--" + boundary + "--\r\n");
+        int length = partHead.length + size + tail.length;
+        byte[] head = ascii("POST /uploads HTTP/1.1\r\n" + host
+                + "Content-Type: multipart/form-data; boundary=" + boundary + "\r\n"
+                + "Content-Length: " + length + "\r\nConnection: keep-alive\r\n\r\n");
+        ByteBuffer all = ByteBuffer.allocate(head.length + length);
+        all.put(head).put(partHead).put(data).put(tail);
+        return all.array();
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
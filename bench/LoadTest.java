@@ -0,0 +1,267 @@
+package bench;
+
+import src.Config;
+import src.ConfigLoader;
+import src.Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end load test: generates a site and config.json in a scratch
+ * directory, starts a Server in this JVM on a free port, drives it with
+ * LoadClient at a fixed rate and prints a JSON latency report.
+ *
+ *   java -cp bench-bin bench.LoadTest -rate 2000 -duration 30 \
+ *        -mix keepalive=60,static=10,upload=5,cgi=10,notfound=10,slow=5
+ *
+ * Run it from the repository root: uploads land in ./uploads (and are
+ * removed afterwards) and the upload response template is read from ./www.
+ */
+public final class LoadTest {
+
+    private static final String DEFAULT_MIX =
+            "keepalive=65,static=10,upload=5,cgi=5,notfound=10,slow=5";
+
+    private LoadTest() {}
+
+    public static void main(String[] args) throws Exception {
+        LoadClient.Options options = new LoadClient.Options();
+        String mix = DEFAULT_MIX;
+        int staticSize = 4096;
+        String out = null;
+        boolean verbose = false;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-rate"        -> options.rate = Integer.parseInt(args[++i]);
+                case "-duration"    -> options.durationNanos = seconds(args[++i]);
+                case "-warmup"      -> options.warmupNanos = seconds(args[++i]);
+                case "-timeout"     -> options.timeoutNanos = seconds(args[++i]);
+                case "-connections" -> options.connections = Integer.parseInt(args[++i]);
+                case "-pipeline"    -> options.pipelineDepth = Integer.parseInt(args[++i]);
+                case "-upload-size" -> options.uploadSize = Integer.parseInt(args[++i]);
+                case "-static-size" -> staticSize = Integer.parseInt(args[++i]);
+                case "-slow-interval-ms" -> options.slowIntervalNanos = Long.parseLong(args[++i]) * 1_000_000;
+                case "-mix"         -> mix = args[++i];
+                case "-out"         -> out = args[++i];
+                case "-verbose"     -> verbose = true;
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        for (String entry : mix.split(",")) {
+            String[] kv = entry.split("=");
+            int weight = Integer.parseInt(kv[1].trim());
+            if (weight > 0) options.mix.put(LoadClient.Kind.of(kv[0].trim()), weight);
+        }
+
+        Path site = Files.createTempDirectory("loadtest");
+        int port = freePort();
+        Path config = writeSite(site, port, staticSize, options.uploadSize);
+        Set<String> uploadsBefore = listUploads();
+
+        PrintStream stdout = System.out, stderr = System.err;
+        if (!verbose) {
+            PrintStream quiet = new PrintStream(OutputStream.nullOutputStream());
+            System.setOut(quiet);
+            System.setErr(quiet);
+        }
+
+        String report;
+        try {
+            List<Config> configs = ConfigLoader.load(config.toString());
+            Server server = new Server(configs, config.toString());
+            Thread loop = new Thread(server::start, "server");
+            loop.start();
+            awaitListening(port);
+
+            LoadClient client = new LoadClient(new InetSocketAddress("127.0.0.1", port), options);
+            client.run();
+
+            server.shutdown();
+            loop.join(10_000);
+            report = report(options, mix, options.durationNanos / 1e9, client);
+        } finally {
+            System.setOut(stdout);
+            System.setErr(stderr);
+            removeUploads(uploadsBefore);
+            deleteTree(site);
+        }
+
+        if (out == null) {
+            System.out.println(report);
+        } else {
+            Files.writeString(Paths.get(out), report + "\n");
+            System.out.println("Report written to " + out);
+        }
+    }
+
+    private static Path writeSite(Path site, int port, int staticSize, int uploadSize)
+            throws IOException {
+        Path www = Files.createDirectories(site.resolve("www"));
+        Path cgiBin = Files.createDirectories(site.resolve("cgi-bin"));
+        Path errors = Files.createDirectories(site.resolve("error_pages"));
+        Files.createDirectories(Paths.get("uploads"));
+
+        Files.writeString(www.resolve("index.html"), "<!DOCTYPE html><html><body>"
+                + "x".repeat(Math.max(0, staticSize - 42)) + "</body></html>\n");
+        Files.writeString(errors.resolve("404.html"), "<h1>404 Not Found</h1>\n");
+        Path echo = cgiBin.resolve("echo.sh");
+        Files.writeString(echo, "#!/bin/bash\necho \"Content-Type: text/plain\"\necho\n"
+                + "head -c \"${CONTENT_LENGTH:-0}\"\n");
+        echo.toFile().setExecutable(true);
+
+        String json = "{\n"
+                + "  \"servers\": [{\n"
+                + "    \"hosts\": [\"127.0.0.1\"],\n"
+                + "    \"ports\": [" + port + "],\n"
+                + "    \"client_max_body_size\": " + (uploadSize + 1024 * 1024) + ",\n"
+                + "    \"error_pages\": {\"404\": " + quote(errors.resolve("404.html")) + "},\n"
+                + "    \"routes\": [\n"
+                + "      {\"path\": \"/uploads\", \"root\": " + quote(Paths.get("uploads").toAbsolutePath())
+                + ", \"methods\": [\"GET\", \"POST\"]},\n"
+                + "      {\"path\": \"/cgi-bin\", \"root\": " + quote(cgiBin)
+                + ", \"methods\": [\"GET\", \"POST\"], \"cgi\": true},\n"
+                + "      {\"path\": \"/\", \"root\": " + quote(www)
+                + ", \"methods\": [\"GET\"], \"index\": \"index.html\"}\n"
+                + "    ]\n"
+                + "  }]\n"
+                + "}\n";
+        Path config = site.resolve("config.json");
+        Files.writeString(config, json);
+        return config;
+    }
+
+    private static String report(LoadClient.Options options, String mix, double seconds,
+                                 LoadClient client) {
+        LoadClient.Recorder allLatency = new LoadClient.Recorder();
+        LoadClient.Recorder allService = new LoadClient.Recorder();
+        StringBuilder scenarios = new StringBuilder();
+        for (LoadClient.Kind kind : options.mix.keySet()) {
+            LoadClient.Recorder latency = client.latency().get(kind);
+            LoadClient.Recorder service = client.service().get(kind);
+            // Slow clients' latency is mostly their own trickle; they are
+            // there to load the server, not to be measured with the rest.
+            if (kind != LoadClient.Kind.SLOW) {
+                allLatency.addAll(latency);
+                allService.addAll(service);
+            }
+            if (scenarios.length() > 0) scenarios.append(",\n");
+            scenarios.append("    \"").append(kind.label).append("\": ");
+            results(scenarios, latency, service, seconds, "    ");
+        }
+
+        StringBuilder sb = new StringBuilder(2048);
+        sb.append("{\n");
+        sb.append("  \"timestamp\": \"").append(Instant.now()).append("\",\n");
+        sb.append("  \"java\": \"").append(System.getProperty("java.version")).append("\",\n");
+        sb.append("  \"os\": \"").append(System.getProperty("os.name")).append(' ')
+          .append(System.getProperty("os.version")).append(' ')
+          .append(System.getProperty("os.arch")).append("\",\n");
+        sb.append("  \"cpus\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+        sb.append("  \"target_rate\": ").append(options.rate).append(",\n");
+        sb.append("  \"duration_s\": ").append(options.durationNanos / 1_000_000_000.0).append(",\n");
+        sb.append("  \"warmup_s\": ").append(options.warmupNanos / 1_000_000_000.0).append(",\n");
+        sb.append("  \"connections\": ").append(options.connections).append(",\n");
+        sb.append("  \"pipeline_depth\": ").append(options.pipelineDepth).append(",\n");
+        sb.append("  \"upload_size\": ").append(options.uploadSize).append(",\n");
+        sb.append("  \"mix\": \"").append(mix).append("\",\n");
+        sb.append("  \"total\": ");
+        results(sb, allLatency, allService, seconds, "  ");
+        sb.append(",\n  \"scenarios\": {\n").append(scenarios).append("\n  }\n}");
+        return sb.toString();
+    }
+
+    private static void results(StringBuilder sb, LoadClient.Recorder latency,
+                                LoadClient.Recorder service, double seconds, String indent) {
+        sb.append("{\n");
+        sb.append(indent).append("  \"requests\": ").append(latency.count()).append(",\n");
+        sb.append(indent).append("  \"errors\": ").append(latency.errors).append(",\n");
+        sb.append(indent).append("  \"timeouts\": ").append(latency.timeouts).append(",\n");
+        sb.append(indent).append("  \"throughput_rps\": ")
+          .append(String.format(Locale.ROOT, "%.1f", latency.count() / seconds)).append(",\n");
+        sb.append(indent).append("  \"latency_ms\": ");
+        percentiles(sb, latency.sorted());
+        sb.append(",\n").append(indent).append("  \"service_time_ms\": ");
+        percentiles(sb, service.sorted());
+        sb.append('\n').append(indent).append('}');
+    }
+
+    private static void percentiles(StringBuilder sb, long[] sorted) {
+        double sum = 0;
+        for (long v : sorted) sum += v;
+        sb.append(String.format(Locale.ROOT,
+                "{\"mean\": %.3f, \"p50\": %.3f, \"p90\": %.3f, \"p99\": %.3f, \"p999\": %.3f, \"max\": %.3f}",
+                sorted.length == 0 ? 0 : sum / sorted.length / 1e6,
+                at(sorted, 0.50), at(sorted, 0.90), at(sorted, 0.99), at(sorted, 0.999),
+                sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6));
+    }
+
+    private static double at(long[] sorted, double quantile) {
+        if (sorted.length == 0) return 0;
+        int i = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(i, sorted.length - 1))] / 1e6;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void awaitListening(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+
+    private static Set<String> listUploads() throws IOException {
+        Set<String> names = new HashSet<>();
+        File[] files = new File("uploads").listFiles();
+        if (files != null) for (File f : files) names.add(f.getName());
+        return names;
+    }
+
+    private static void removeUploads(Set<String> keep) throws IOException {
+        File[] files = new File("uploads").listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            if (!keep.contains(f.getName()) && f.getName().endsWith("_loadtest.bin")) f.delete();
+        }
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private static long seconds(String value) {
+        return (long) (Double.parseDouble(value) * 1_000_000_000L);
+    }
+
+    private static String quote(Path path) {
+        return "\"" + path.toAbsolutePath().toString().replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
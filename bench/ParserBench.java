@@ -0,0 +1,149 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import src.http.MultipartParser;
+import src.http.RequestParser;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request parsing as a browser drives it: a full GET with the headers and
+ * cookies Chrome sends, a form POST, chunked bodies and multipart bodies
+ * from 1KB to 100MB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBench {
+
+    private static final String BROWSER_GET =
+            "GET /uploads/report.pdf?download=1&v=3 HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "Connection: keep-alive\r\n"
+            + "sec-ch-ua: \"Chromium\";v=\"124\", \"Google Chrome\";v=\"124\", \"Not-A.Brand\";v=\"99\"\r\n"
+            + "sec-ch-ua-mobile: ?0\r\n"
+            + "sec-ch-ua-platform: \"Linux\"\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) "
+            + "Chrome/124.0.0.0 Safari/537.36\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,"
+            + "image/apng,*/*;q=0.8,application/signed-exchange;v=b3;q=0.7\r\n"
+            + "Sec-Fetch-Site: same-origin\r\n"
+            + "Sec-Fetch-Mode: navigate\r\n"
+            + "Sec-Fetch-User: ?1\r\n"
+            + "Sec-Fetch-Dest: document\r\n"
+            + "Referer: http://localhost:8080/manage.html\r\n"
+            + "Accept-Encoding: gzip, deflate, br, zstd\r\n"
+            + "Accept-Language: en-US,en;q=0.9,fr;q=0.8\r\n"
+            + "Cookie: SESSIONID=ED62ABA0D4F0422B97C4B78F17085D56; theme=dark; _ga=GA1.1.1234567890.1700000000\r\n"
+            + "\r\n";
+
+    private static final String FORM =
+            "name=Ada+Lovelace&email=ada%40example.com&message=" + "x".repeat(400);
+
+    private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+    private final byte[] get  = BROWSER_GET.getBytes(StandardCharsets.US_ASCII);
+    private final byte[] post = ("POST /submit HTTP/1.1\r\nHost: localhost:8080\r\n"
+            + "Content-Type: application/x-www-form-urlencoded\r\n"
+            + "Content-Length: " + FORM.length() + "\r\n\r\n" + FORM)
+            .getBytes(StandardCharsets.US_ASCII);
+
+    @State(Scope.Benchmark)
+    public static class Chunked {
+        @Param({"4096", "65536", "1048576"})
+        int size;
+
+        byte[] body;
+
+        @Setup
+        public void setup() {
+            body = chunked(size, 4096);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Multipart {
+        @Param({"1024", "65536", "1048576", "16777216", "104857600"})
+        int size;
+
+        byte[] body;
+
+        @Setup
+        public void setup() {
+            body = multipart(size, BOUNDARY);
+        }
+    }
+
+    @Benchmark
+    public void parseGetBrowser(Blackhole bh) throws Exception {
+        bh.consume(RequestParser.parse(ByteBuffer.wrap(get)));
+    }
+
+    @Benchmark
+    public void parseHeadBrowser(Blackhole bh) throws Exception {
+        bh.consume(RequestParser.parseHead(ByteBuffer.wrap(get)));
+    }
+
+    @Benchmark
+    public void parsePostForm(Blackhole bh) throws Exception {
+        bh.consume(RequestParser.parse(ByteBuffer.wrap(post)));
+    }
+
+    @Benchmark
+    public void chunkedDecode(Chunked in, Blackhole bh) throws Exception {
+        bh.consume(RequestParser.decodeChunkedBody(ByteBuffer.wrap(in.body)));
+    }
+
+    // The 100MB case needs the heap room of the old runner's -Xmx2g.
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+    public void multipartParse(Multipart in, Blackhole bh) throws Exception {
+        List<MultipartParser.Part> parts = MultipartParser.parse(in.body, BOUNDARY);
+        MultipartParser.release(parts);
+        bh.consume(parts);
+    }
+
+    // A body of the given size sent as chunks of chunkSize bytes.
+    private static byte[] chunked(int size, int chunkSize) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + size / chunkSize * 8 + 16);
+        byte[] chunk = new byte[chunkSize];
+        Arrays.fill(chunk, (byte) 'a');
+        for (int sent = 0; sent < size; sent += chunkSize) {
+            int n = Math.min(chunkSize, size - sent);
+            out.writeBytes((Integer.toHexString(n) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(chunk, 0, n);
+            out.writeBytes("\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        out.writeBytes("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        return out.toByteArray();
+    }
+
+    // A short text field followed by a field of the given size. The large part
+    // has no filename so the parser keeps it in memory: this measures the
+    // boundary search and copy, not temp-file writes.
+    private static byte[] multipart(int size, String boundary) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + 512);
+        out.writeBytes(("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"title\"\r\n\r\n"
+                + "quarterly report\r\n"
+                + "--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"payload\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) data[i] = (byte) ('-' + i % 64);
+        out.writeBytes(data);
+        out.writeBytes(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        return out.toByteArray();
+    }
+}
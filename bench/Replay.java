@@ -0,0 +1,247 @@
+package bench;
+
+import src.JsonParser;
+import src.JsonWriter;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Re-issues traffic recorded with capture_file against a running server, at
+ * the recorded pace scaled by -speed (0 sends as fast as -concurrency
+ * allows), and reports how latency compares with what was recorded:
+ *
+ *   java -cp bench-bin bench.Replay -target http://127.0.0.1:8080 -speed 2 logs/capture.jsonl
+ *
+ * Latency is measured from when each request was due, as in LoadTest. The
+ * first -warmup requests are sent once beforehand without being measured.
+ */
+public final class Replay {
+
+    private static final Set<String> RESTRICTED =
+            Set.of("connection", "content-length", "expect", "host", "upgrade");
+
+    private static final class Entry {
+        long     offsetNanos;
+        String   method;
+        String   target;
+        Map<String, Object> headers;
+        byte[]   body;
+        int      status;
+        long     recordedNanos;
+    }
+
+    private static final class Result {
+        final Entry entry;
+        final int   status;
+        final long  nanos;
+
+        Result(Entry entry, int status, long nanos) {
+            this.entry  = entry;
+            this.status = status;
+            this.nanos  = nanos;
+        }
+    }
+
+    private Replay() {}
+
+    public static void main(String[] args) throws Exception {
+        String base = "http://127.0.0.1:8080";
+        double speed = 1.0;
+        int concurrency = 64;
+        int limit = Integer.MAX_VALUE;
+        int warmup = 50;
+        String out = null;
+        String file = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-target"      -> base = args[++i];
+                case "-speed"       -> speed = Double.parseDouble(args[++i]);
+                case "-concurrency" -> concurrency = Integer.parseInt(args[++i]);
+                case "-limit"       -> limit = Integer.parseInt(args[++i]);
+                case "-warmup"      -> warmup = Integer.parseInt(args[++i]);
+                case "-out"         -> out = args[++i];
+                default             -> file = args[i];
+            }
+        }
+        if (file == null) {
+            System.err.println("Usage: bench.Replay [-target url] [-speed n] [-concurrency n] "
+                    + "[-limit n] [-warmup n] [-out report.json] capture.jsonl");
+            System.exit(2);
+        }
+
+        List<Entry> entries = load(file, limit);
+        if (entries.isEmpty()) {
+            System.err.println("No requests in " + file);
+            return;
+        }
+
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        // Unmeasured, one at a time: gets the client's threads and connections
+        // and the server's JIT going before anything is timed.
+        for (int i = 0; i < warmup && i < entries.size(); i++) {
+            try {
+                client.send(request(base, entries.get(i)), HttpResponse.BodyHandlers.discarding());
+            } catch (IOException ignored) {}
+        }
+
+        ConcurrentLinkedQueue<Result> results = new ConcurrentLinkedQueue<>();
+        Semaphore permits = new Semaphore(concurrency);
+        List<CompletableFuture<?>> pending = new ArrayList<>();
+
+        boolean paced = speed > 0;
+        long start = System.nanoTime();
+        for (Entry e : entries) {
+            long due = paced ? start + (long) (e.offsetNanos / speed) : System.nanoTime();
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+            if (!paced) {
+                permits.acquire();
+                due = System.nanoTime();
+            }
+            long sentDue = due;
+            pending.add(client.sendAsync(request(base, e), HttpResponse.BodyHandlers.discarding())
+                    .handle((res, err) -> {
+                        if (!paced) permits.release();
+                        results.add(new Result(e, err != null ? 0 : res.statusCode(),
+                                System.nanoTime() - sentDue));
+                        return null;
+                    }));
+        }
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        String report = report(new ArrayList<>(results), base, speed, seconds);
+        if (out == null) {
+            System.out.println(report);
+        } else {
+            Files.writeString(Paths.get(out), report + "\n");
+            System.out.println("Report written to " + out);
+        }
+    }
+
+    private static List<Entry> load(String file, int limit) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        long first = Long.MAX_VALUE;
+        for (String line : Files.readAllLines(Paths.get(file))) {
+            if (line.isBlank()) continue;
+            Map<String, Object> json = new JsonParser(line).parseObject();
+            Entry e = new Entry();
+            e.offsetNanos = ((Number) json.get("t")).longValue();
+            e.method = JsonParser.getString(json, "method", "GET");
+            e.target = JsonParser.getString(json, "target", "/");
+            e.headers = JsonParser.getObject(json, "headers");
+            String body = JsonParser.getString(json, "body", null);
+            e.body = body == null ? new byte[0] : Base64.getDecoder().decode(body);
+            e.status = (int) JsonParser.getInt(json, "status", 0);
+            e.recordedNanos = ((Number) json.getOrDefault("duration_us", 0L)).longValue() * 1000;
+            entries.add(e);
+            first = Math.min(first, e.offsetNanos);
+        }
+        entries.sort((a, b) -> Long.compare(a.offsetNanos, b.offsetNanos));
+        if (entries.size() > limit) entries = new ArrayList<>(entries.subList(0, limit));
+        for (Entry e : entries) e.offsetNanos = (e.offsetNanos - first) * 1_000_000;
+        return entries;
+    }
+
+    private static HttpRequest request(String base, Entry e) {
+        HttpRequest.Builder b = HttpRequest.newBuilder(URI.create(base + e.target))
+                .timeout(Duration.ofSeconds(30))
+                .method(e.method, e.body.length == 0 ? HttpRequest.BodyPublishers.noBody()
+                        : HttpRequest.BodyPublishers.ofByteArray(e.body));
+        for (Map.Entry<String, Object> h : e.headers.entrySet()) {
+            String value = String.valueOf(h.getValue());
+            if (RESTRICTED.contains(h.getKey()) || value.isEmpty()) continue;
+            try {
+                b.header(h.getKey(), value);
+            } catch (IllegalArgumentException ignored) {
+                // a header HttpClient sets itself
+            }
+        }
+        return b.build();
+    }
+
+    private static String report(List<Result> results, String base, double speed, double seconds)
+            throws IOException {
+        Map<String, List<Result>> byRoute = new LinkedHashMap<>();
+        int errors = 0, mismatched = 0;
+        for (Result r : results) {
+            if (r.status == 0) errors++;
+            else if (r.status != r.entry.status) mismatched++;
+            String path = r.entry.target.split("\\?")[0];
+            byRoute.computeIfAbsent(r.entry.method + " " + path, k -> new ArrayList<>()).add(r);
+        }
+
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append("{\n");
+        sb.append("  \"target\": \"").append(base).append("\",\n");
+        sb.append("  \"speed\": ").append(speed).append(",\n");
+        sb.append("  \"requests\": ").append(results.size()).append(",\n");
+        sb.append("  \"errors\": ").append(errors).append(",\n");
+        sb.append("  \"status_mismatches\": ").append(mismatched).append(",\n");
+        sb.append("  \"throughput_rps\": ")
+          .append(String.format(Locale.ROOT, "%.1f", results.size() / seconds)).append(",\n");
+        sb.append("  \"total\": ");
+        compare(sb, results);
+        sb.append(",\n  \"routes\": {");
+
+        List<Map.Entry<String, List<Result>>> routes = new ArrayList<>(byRoute.entrySet());
+        routes.sort((a, b) -> b.getValue().size() - a.getValue().size());
+        for (int i = 0; i < routes.size() && i < 25; i++) {
+            sb.append(i == 0 ? "\n" : ",\n").append("    ");
+            JsonWriter.quote(sb, routes.get(i).getKey());
+            sb.append(": ");
+            compare(sb, routes.get(i).getValue());
+        }
+        sb.append("\n  }\n}");
+        return sb.toString();
+    }
+
+    // Recorded vs replayed latency percentiles, in milliseconds.
+    private static void compare(StringBuilder sb, List<Result> results) {
+        long[] recorded = new long[results.size()];
+        long[] replayed = new long[results.size()];
+        for (int i = 0; i < results.size(); i++) {
+            recorded[i] = results.get(i).entry.recordedNanos;
+            replayed[i] = results.get(i).nanos;
+        }
+        Arrays.sort(recorded);
+        Arrays.sort(replayed);
+        sb.append("{\"count\": ").append(results.size());
+        for (double q : new double[] {0.50, 0.99, 0.999}) {
+            String name = q == 0.5 ? "p50" : q == 0.99 ? "p99" : "p999";
+            double was = at(recorded, q), now = at(replayed, q);
+            sb.append(String.format(Locale.ROOT,
+                    ", \"%s_recorded_ms\": %.3f, \"%s_replayed_ms\": %.3f, \"%s_delta_ms\": %.3f",
+                    name, was, name, now, name, now - was));
+        }
+        sb.append('}');
+    }
+
+    private static double at(long[] sorted, double quantile) {
+        if (sorted.length == 0) return 0;
+        int i = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(i, sorted.length - 1))] / 1e6;
+    }
+}
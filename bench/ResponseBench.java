@@ -0,0 +1,62 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import src.http.HttpResponse;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building and encoding responses the way the server does for every
+ * request: status line, headers, a session cookie and the body buffers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseBench {
+
+    @State(Scope.Benchmark)
+    public static class Body {
+        @Param({"0", "1024", "65536"})
+        int size;
+
+        byte[] bytes;
+
+        @Setup
+        public void setup() {
+            bytes = new byte[size];
+            Arrays.fill(bytes, (byte) 'x');
+        }
+    }
+
+    private final byte[] page = new byte[4096];
+
+    @Setup
+    public void setup() {
+        Arrays.fill(page, (byte) 'x');
+    }
+
+    @Benchmark
+    public void encode(Body body, Blackhole bh) {
+        bh.consume(response(body.bytes).toByteBuffers());
+    }
+
+    @Benchmark
+    public void encodeCopy4KB(Blackhole bh) {
+        bh.consume(response(page).toByteBuffer());
+    }
+
+    private static HttpResponse response(byte[] body) {
+        HttpResponse res = new HttpResponse(200, "OK");
+        res.addHeader("Content-Type", "text/html; charset=UTF-8");
+        res.addSessionCookie("SESSIONID", "ED62ABA0D4F0422B97C4B78F17085D56");
+        res.setBody(body);
+        res.addHeader("Connection", "keep-alive");
+        res.addHeader("Content-Length", String.valueOf(res.getBodyLength()));
+        return res;
+    }
+}
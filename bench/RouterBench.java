@@ -0,0 +1,54 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import src.Config;
+import src.Router;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Longest-prefix route lookup against configs of 10 to 1000 routes, for a
+ * path that matches a route near the end of the list and one that matches
+ * nothing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouterBench {
+
+    @Param({"10", "100", "1000"})
+    int routes;
+
+    private Config config;
+    private String hit;
+
+    @Setup
+    public void setup() {
+        config = config(routes);
+        hit = "/app" + (routes - 1) + "/assets/site.css";
+    }
+
+    @Benchmark
+    public void lookupHit(Blackhole bh) {
+        bh.consume(Router.routeLabel(hit, config));
+    }
+
+    @Benchmark
+    public void lookupMiss(Blackhole bh) {
+        bh.consume(Router.routeLabel("/nowhere/x", config));
+    }
+
+    private static Config config(int count) {
+        Config.Builder config = new Config.Builder();
+        config.addRoute(new Config.Route.Builder().setPath("/").setRoot("www").addAllowedMethod("GET"));
+        for (int i = 1; i < count; i++) {
+            config.addRoute(new Config.Route.Builder()
+                    .setPath("/app" + i).setRoot("www").addAllowedMethod("GET"));
+        }
+        return config.build();
+    }
+}
@@ -0,0 +1,40 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import src.http.Session;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session lookup by cookie id in the default in-memory store, holding
+ * 100000 sessions, for known and unknown ids.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionBench {
+
+    private static final int SESSIONS = 100_000;
+
+    private final String[] ids = new String[SESSIONS];
+    private int next;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < SESSIONS; i++) ids[i] = Session.createSession().getId();
+    }
+
+    @Benchmark
+    public void lookupHit(Blackhole bh) {
+        bh.consume(Session.getSession(ids[next++ % SESSIONS]));
+    }
+
+    @Benchmark
+    public void lookupMiss(Blackhole bh) {
+        bh.consume(Session.getSession("00000000000000000000000000000000"));
+    }
+}
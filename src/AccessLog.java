@@ -0,0 +1,237 @@
+package src;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log written off the event loop. The loop is the only producer: it
+ * copies a request's numbers into preallocated slots of a ring and stores
+ * references to the strings it already holds, so recording neither allocates
+ * nor locks. A single writer thread drains the ring in batches, formats the
+ * records (combined or JSON) and appends them to a file that is rotated by
+ * size. When the writer falls behind and the ring is full, records are
+ * dropped and counted rather than stalling the loop.
+ */
+public final class AccessLog {
+
+    private static final long IDLE_PARK_NANOS = 10_000_000;
+    private static final DateTimeFormatter COMBINED_TIME =
+            DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US)
+                    .withZone(ZoneId.systemDefault());
+
+    private static volatile AccessLog instance;
+
+    private final int    mask;
+    private final long[] time;
+    private final int[]  status;
+    private final long[] bytes;
+    private final long[] durationNanos;
+    private final String[] remote;
+    private final String[] method;
+    private final String[] target;
+    private final String[] protocol;
+    private final String[] referer;
+    private final String[] userAgent;
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder  dropped = new LongAdder();
+
+    private final Path    path;
+    private final boolean json;
+    private final long    maxBytes;
+    private final int     maxFiles;
+    private final Thread  writer;
+    private volatile boolean running = true;
+
+    private BufferedWriter out;
+    private long           written;
+
+    private AccessLog(Path path, String format, long maxBytes, int maxFiles, int capacity)
+            throws IOException {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.mask = size - 1;
+        this.time = new long[size];
+        this.status = new int[size];
+        this.bytes = new long[size];
+        this.durationNanos = new long[size];
+        this.remote = new String[size];
+        this.method = new String[size];
+        this.target = new String[size];
+        this.protocol = new String[size];
+        this.referer = new String[size];
+        this.userAgent = new String[size];
+
+        this.path = path;
+        this.json = "json".equalsIgnoreCase(format);
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        open();
+
+        this.writer = new Thread(this::drainLoop, "access-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public static void configure(String path, String format, long maxBytes, int maxFiles,
+                                 int capacity) throws IOException {
+        close();
+        if (path == null) return;
+        instance = new AccessLog(Paths.get(path), format, maxBytes, maxFiles, capacity);
+        Metrics.counter("access_log_dropped_total",
+                "Access log records dropped because the writer fell behind.",
+                () -> instance != null ? instance.dropped.sum() : 0);
+    }
+
+    // Stops the writer after it has written everything already recorded.
+    public static void close() {
+        AccessLog log = instance;
+        if (log == null) return;
+        instance = null;
+        log.running = false;
+        LockSupport.unpark(log.writer);
+        try {
+            log.writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Event loop only.
+    public static void record(String remote, String method, String target, String protocol,
+                              int status, long bytes, long durationNanos,
+                              String referer, String userAgent) {
+        AccessLog log = instance;
+        if (log == null) return;
+
+        long t = log.tail.get();
+        if (t - log.head.get() > log.mask) {
+            log.dropped.increment();
+            return;
+        }
+        int i = (int) t & log.mask;
+        log.time[i] = System.currentTimeMillis();
+        log.status[i] = status;
+        log.bytes[i] = bytes;
+        log.durationNanos[i] = durationNanos;
+        log.remote[i] = remote;
+        log.method[i] = method;
+        log.target[i] = target;
+        log.protocol[i] = protocol;
+        log.referer[i] = referer;
+        log.userAgent[i] = userAgent;
+        log.tail.lazySet(t + 1);
+    }
+
+    private void drainLoop() {
+        StringBuilder line = new StringBuilder(512);
+        while (true) {
+            long h = head.get();
+            long t = tail.get();
+            if (h == t) {
+                if (!running) break;
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            try {
+                for (long n = h; n < t; n++) {
+                    int i = (int) n & mask;
+                    line.setLength(0);
+                    if (json) formatJson(line, i); else formatCombined(line, i);
+                    line.append('\n');
+                    out.append(line);
+                    written += line.length();
+                    remote[i] = method[i] = target[i] = protocol[i] = referer[i] = userAgent[i] = null;
+                }
+                out.flush();
+                if (written >= maxBytes) rotate();
+            } catch (IOException e) {
+                System.err.println("[ACCESS] Write to " + path + " failed: " + e.getMessage());
+            }
+            head.lazySet(t);
+        }
+        try {
+            out.close();
+        } catch (IOException ignored) {}
+    }
+
+    private void formatCombined(StringBuilder sb, int i) {
+        sb.append(orDash(remote[i])).append(" - - [")
+          .append(COMBINED_TIME.format(Instant.ofEpochMilli(time[i]))).append("] \"")
+          .append(orDash(method[i])).append(' ').append(orDash(target[i])).append(' ')
+          .append(orDash(protocol[i])).append("\" ")
+          .append(status[i]).append(' ').append(bytes[i]).append(" \"")
+          .append(orDash(referer[i])).append("\" \"").append(orDash(userAgent[i])).append('"');
+    }
+
+    private void formatJson(StringBuilder sb, int i) {
+        sb.append("{\"time\":\"").append(Instant.ofEpochMilli(time[i])).append('"');
+        jsonField(sb, "remote", remote[i]);
+        jsonField(sb, "method", method[i]);
+        jsonField(sb, "target", target[i]);
+        jsonField(sb, "protocol", protocol[i]);
+        sb.append(",\"status\":").append(status[i]);
+        sb.append(",\"bytes\":").append(bytes[i]);
+        sb.append(",\"duration_ms\":").append(durationNanos[i] / 1000 / 1000.0);
+        jsonField(sb, "referer", referer[i]);
+        jsonField(sb, "user_agent", userAgent[i]);
+        sb.append('}');
+    }
+
+    private static void jsonField(StringBuilder sb, String name, String value) {
+        sb.append(",\"").append(name).append("\":");
+        if (value == null) { sb.append("null"); return; }
+        sb.append('"');
+        for (int k = 0; k < value.length(); k++) {
+            char c = value.charAt(k);
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    private static String orDash(String s) {
+        return s == null || s.isEmpty() ? "-" : s.replace("\"", "\\\"");
+    }
+
+    private void open() throws IOException {
+        out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(path,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8), 64 * 1024);
+        written = Files.size(path);
+    }
+
+    // access.log -> access.log.1 -> ... -> access.log.<maxFiles>, oldest dropped.
+    private void rotate() throws IOException {
+        out.close();
+        for (int n = maxFiles - 1; n >= 1; n--) {
+            Path from = path.resolveSibling(path.getFileName() + "." + n);
+            if (Files.exists(from))
+                Files.move(from, path.resolveSibling(path.getFileName() + "." + (n + 1)),
+                        StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (maxFiles > 0)
+            Files.move(path, path.resolveSibling(path.getFileName() + ".1"),
+                    StandardCopyOption.REPLACE_EXISTING);
+        else
+            Files.delete(path);
+        open();
+    }
+}
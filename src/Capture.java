@@ -0,0 +1,193 @@
+package src;
+
+import src.connection.Connection;
+import src.http.HttpRequest;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records a sample of the traffic to a JSONL file that bench.Replay can
+ * re-issue: request line, headers, up to capture_max_body bytes of the body
+ * (base64), and the status, size and duration the server answered with.
+ * Works like AccessLog: the event loop fills slots of a ring and a writer
+ * thread formats and appends them, dropping records when it falls behind.
+ * Cookie and Authorization values are not written.
+ */
+public final class Capture {
+
+    private static final int  CAPACITY = 4096;
+    private static final long IDLE_PARK_NANOS = 10_000_000;
+
+    private static volatile Capture instance;
+
+    private final int      mask = CAPACITY - 1;
+    private final long[]   time = new long[CAPACITY];
+    private final String[] method = new String[CAPACITY];
+    private final String[] target = new String[CAPACITY];
+    private final String[] protocol = new String[CAPACITY];
+    private final Object[] headers = new Object[CAPACITY];
+    private final byte[][] body = new byte[CAPACITY][];
+    private final long[]   bodyLength = new long[CAPACITY];
+    private final int[]    status = new int[CAPACITY];
+    private final long[]   bytes = new long[CAPACITY];
+    private final long[]   durationNanos = new long[CAPACITY];
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder  dropped = new LongAdder();
+
+    private final Path   path;
+    private final double sampleRate;
+    private final int    maxBody;
+    private final SplittableRandom random = new SplittableRandom();
+    private final BufferedWriter out;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    private Capture(Path path, double sampleRate, int maxBody) throws IOException {
+        this.path = path;
+        this.sampleRate = sampleRate;
+        this.maxBody = maxBody;
+
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        this.out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(path,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8), 64 * 1024);
+
+        this.writer = new Thread(this::drainLoop, "capture");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public static void configure(String path, double sampleRate, int maxBody) throws IOException {
+        close();
+        if (path == null || sampleRate <= 0) return;
+        instance = new Capture(Paths.get(path), sampleRate, maxBody);
+        System.out.println("[CAPTURE] Recording " + (sampleRate * 100) + "% of requests to " + path);
+        Metrics.counter("capture_dropped_total",
+                "Captured requests dropped because the writer fell behind.",
+                () -> instance != null ? instance.dropped.sum() : 0);
+    }
+
+    public static void close() {
+        Capture capture = instance;
+        if (capture == null) return;
+        instance = null;
+        capture.running = false;
+        LockSupport.unpark(capture.writer);
+        try {
+            capture.writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Event loop only, after the response has been written and before the
+    // connection is reset, while the request body is still available.
+    public static void record(Connection conn, long durationNanos) {
+        Capture c = instance;
+        if (c == null) return;
+        HttpRequest request = conn.getRequest();
+        if (request == null) return;
+        if (c.sampleRate < 1 && c.random.nextDouble() >= c.sampleRate) return;
+
+        long t = c.tail.get();
+        if (t - c.head.get() > c.mask) {
+            c.dropped.increment();
+            return;
+        }
+        int i = (int) t & c.mask;
+        c.time[i] = System.currentTimeMillis() - durationNanos / 1_000_000;
+        c.method[i] = request.getMethod();
+        String query = request.getQueryString();
+        c.target[i] = query == null || query.isEmpty() ? request.getPath() : request.getPath() + "?" + query;
+        c.protocol[i] = request.getVersion();
+        c.headers[i] = request.getHeaders();
+        c.bodyLength[i] = conn.getBodyLength();
+        c.body[i] = c.bodyLength[i] > 0 ? readBody(conn, c.maxBody) : null;
+        c.status[i] = conn.getResponseStatus();
+        c.bytes[i] = conn.getBytesOut();
+        c.durationNanos[i] = durationNanos;
+        c.tail.lazySet(t + 1);
+    }
+
+    private static byte[] readBody(Connection conn, int max) {
+        try (InputStream in = conn.openBodyStream()) {
+            return in.readNBytes(max);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void drainLoop() {
+        StringBuilder line = new StringBuilder(1024);
+        while (true) {
+            long h = head.get();
+            long t = tail.get();
+            if (h == t) {
+                if (!running) break;
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            try {
+                for (long n = h; n < t; n++) {
+                    int i = (int) n & mask;
+                    line.setLength(0);
+                    format(line, i);
+                    line.append('\n');
+                    out.append(line);
+                    method[i] = target[i] = protocol[i] = null;
+                    headers[i] = null;
+                    body[i] = null;
+                }
+                out.flush();
+            } catch (IOException e) {
+                System.err.println("[CAPTURE] Write to " + path + " failed: " + e.getMessage());
+            }
+            head.lazySet(t);
+        }
+        try {
+            out.close();
+        } catch (IOException ignored) {}
+    }
+
+    @SuppressWarnings("unchecked")
+    private void format(StringBuilder sb, int i) throws IOException {
+        JsonWriter json = new JsonWriter(sb);
+        json.beginObject()
+            .name("t").value(time[i])
+            .name("method").value(method[i])
+            .name("target").value(target[i])
+            .name("protocol").value(protocol[i]);
+        json.name("headers").beginObject();
+        for (Map.Entry<String, String> h : ((Map<String, String>) headers[i]).entrySet()) {
+            String name = h.getKey();
+            boolean secret = name.equals("cookie") || name.equals("authorization");
+            json.name(name).value(secret ? "" : h.getValue());
+        }
+        json.endObject();
+        json.name("body_length").value(bodyLength[i]);
+        if (body[i] != null) {
+            json.name("body").value(Base64.getEncoder().encodeToString(body[i]));
+            if (body[i].length < bodyLength[i]) json.name("body_truncated").value(true);
+        }
+        json.name("status").value(status[i])
+            .name("bytes").value(bytes[i])
+            .name("duration_us").value(durationNanos[i] / 1000)
+            .endObject();
+    }
+}
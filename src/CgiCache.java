@@ -0,0 +1,154 @@
+package src;
+
+import src.http.HttpRequest;
+import src.http.HttpResponse;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+
+public class CgiCache {
+
+    private static final int MAX_ENTRY_BYTES = 1024 * 1024;
+
+    public static class Entry {
+        private final int                 statusCode;
+        private final String              statusText;
+        private final Map<String, String> headers;
+        private final byte[]              body;
+        private final long                storedAt;
+        private final long                freshUntil;
+        private final long                staleUntil;
+
+        Entry(int statusCode, String statusText, Map<String, String> headers,
+              byte[] body, long storedAt, long freshUntil, long staleUntil) {
+            this.statusCode = statusCode;
+            this.statusText = statusText;
+            this.headers    = headers;
+            this.body       = body;
+            this.storedAt   = storedAt;
+            this.freshUntil = freshUntil;
+            this.staleUntil = staleUntil;
+        }
+
+        public boolean isFresh(long now)        { return now < freshUntil; }
+        public boolean isServableStale(long now) { return now < staleUntil; }
+
+        public HttpResponse toResponse(long now) {
+            HttpResponse response = new HttpResponse(statusCode, statusText);
+            for (Map.Entry<String, String> h : headers.entrySet())
+                response.addHeader(h.getKey(), h.getValue());
+            response.addHeader("Age", String.valueOf((now - storedAt) / 1000));
+            response.setBody(body);
+            return response;
+        }
+    }
+
+    private final Map<String, Entry>               entries;
+    private final Map<String, List<SocketChannel>> inFlight = new HashMap<>();
+
+    public CgiCache(int maxEntries) {
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public static boolean isCacheable(HttpRequest request, Config.Route route) {
+        return route.isCgiCache() && "GET".equals(request.getMethod());
+    }
+
+    public static String keyFor(HttpRequest request, Config.Route route) {
+        StringBuilder key = new StringBuilder();
+        key.append(request.getMethod()).append(' ')
+           .append(request.getPath()).append('?')
+           .append(request.getQueryString());
+
+        for (String name : route.getCgiCacheVary()) {
+            String value = request.getHeader(name);
+            key.append('\n').append(name.toLowerCase()).append('=')
+               .append(value != null ? value : "");
+        }
+        return key.toString();
+    }
+
+    public Entry get(String key, long now) {
+        Entry e = entries.get(key);
+        if (e != null && !e.isServableStale(now)) {
+            entries.remove(key);
+            return null;
+        }
+        return e;
+    }
+
+    public boolean isInFlight(String key) {
+        return inFlight.containsKey(key);
+    }
+
+    public boolean hasInFlight() {
+        return !inFlight.isEmpty();
+    }
+
+    // Starts a shared execution for the key; client may be null for a
+    // background revalidation nobody is waiting on.
+    public void beginFlight(String key, SocketChannel client) {
+        List<SocketChannel> waiters = new ArrayList<>();
+        if (client != null) waiters.add(client);
+        inFlight.put(key, waiters);
+    }
+
+    public void joinFlight(String key, SocketChannel client) {
+        inFlight.get(key).add(client);
+    }
+
+    public List<SocketChannel> finishFlight(String key) {
+        List<SocketChannel> waiters = inFlight.remove(key);
+        return waiters != null ? waiters : Collections.emptyList();
+    }
+
+    /**
+     * Stores a finished script's output if its Cache-Control allows it. Only an
+     * explicit max-age makes a response cacheable; no-store, private and
+     * Set-Cookie always bypass the cache.
+     */
+    public void store(String key, CgiProcess cgi, long now) {
+        int status = cgi.getStatusCode();
+        if (status != 200 && status != 301 && status != 404) return;
+
+        byte[] body = cgi.getBody();
+        if (body.length > MAX_ENTRY_BYTES) return;
+
+        Map<String, String> headers = cgi.getResponseHeaders();
+        String cacheControl = null;
+        for (Map.Entry<String, String> h : headers.entrySet()) {
+            if (h.getKey().equalsIgnoreCase("Set-Cookie")) return;
+            if (h.getKey().equalsIgnoreCase("Cache-Control")) cacheControl = h.getValue();
+        }
+        if (cacheControl == null) return;
+
+        long maxAge = -1;
+        long staleWhileRevalidate = 0;
+        for (String directive : cacheControl.toLowerCase().split(",")) {
+            directive = directive.trim();
+            if (directive.equals("no-store") || directive.equals("private")
+                    || directive.equals("no-cache")) return;
+            if (directive.startsWith("max-age="))
+                maxAge = parseSeconds(directive.substring(8));
+            else if (directive.startsWith("stale-while-revalidate="))
+                staleWhileRevalidate = Math.max(0, parseSeconds(directive.substring(23)));
+        }
+        if (maxAge <= 0) return;
+
+        long freshUntil = now + maxAge * 1000;
+        entries.put(key, new Entry(status, cgi.getStatusText(), headers, body,
+                now, freshUntil, freshUntil + staleWhileRevalidate * 1000));
+    }
+
+    private static long parseSeconds(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
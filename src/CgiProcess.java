@@ -9,10 +9,11 @@ import java.util.regex.Pattern;
 
 public class CgiProcess {
 
-    public enum State { WRITING_STDIN, READING, DONE, ERROR, TIMEOUT }
+    public enum State { READING, DONE, ERROR, TIMEOUT }
 
     private static final int     MAX_BODY_SIZE  = 10 * 1024 * 1024; // 10MB
     private static final long    CGI_TIMEOUT_MS = 20_000;
+    private static final int     STDIN_CHUNK    = 16 * 1024;
     private static final Pattern SAFE_PATH      = Pattern.compile("^[a-zA-Z0-9._/-]+$");
     private static final Pattern SAFE_HEADER    = Pattern.compile("^[a-zA-Z0-9\\-]+$");
 
@@ -20,8 +21,7 @@ public class CgiProcess {
     private final InputStream      stdout;
     private final OutputStream     stdin;
 
-    private final byte[] requestBody;
-    private int          bytesWritten = 0;
+    private final Thread stdinFeeder;
 
     private final ByteArrayOutputStream rawOutput  = new ByteArrayOutputStream();
     private final byte[]                readBuffer = new byte[8192];
@@ -34,18 +34,36 @@ public class CgiProcess {
     private State    state;
     private final long startTime = System.currentTimeMillis();
 
-    public CgiProcess(HttpRequest request, Config config) throws Exception {
-        ProcessBuilder pb = buildProcess(request, config);
+    public CgiProcess(HttpRequest request, Config config,
+                      InputStream body, long bodyLength) throws Exception {
+        ProcessBuilder pb = buildProcess(request, config, bodyLength);
         this.process     = pb.start();
         this.stdout      = process.getInputStream();
         this.stdin       = process.getOutputStream();
-        this.requestBody = (request.getBody() != null) ? request.getBody() : new byte[0];
+        this.state       = State.READING;
 
-        if (requestBody.length > 0) {
-            this.state = State.WRITING_STDIN;
+        if (body != null && bodyLength > 0) {
+            this.stdinFeeder = new Thread(() -> feedStdin(body), "cgi-stdin");
+            this.stdinFeeder.setDaemon(true);
+            this.stdinFeeder.start();
         } else {
+            this.stdinFeeder = null;
+            if (body != null) body.close();
             stdin.close();
-            this.state = State.READING;
+        }
+    }
+
+    // Runs on its own thread: the pipe blocks once the script stops reading,
+    // which paces the copy without stalling the event loop.
+    private void feedStdin(InputStream body) {
+        byte[] chunk = new byte[STDIN_CHUNK];
+        try (InputStream in = body; OutputStream out = stdin) {
+            int len;
+            while ((len = in.read(chunk)) != -1) {
+                out.write(chunk, 0, len);
+            }
+        } catch (IOException ignored) {
+            // script exited or closed stdin before consuming the whole body
         }
     }
 
@@ -58,9 +76,8 @@ public class CgiProcess {
 
         try {
             switch (state) {
-                case WRITING_STDIN -> tickWriteStdin();
-                case READING       -> tickRead();
-                default            -> {}
+                case READING -> tickRead();
+                default      -> {}
             }
         } catch (Exception e) {
             System.err.println("[CGI tick error] " + e.getMessage());
@@ -69,27 +86,6 @@ public class CgiProcess {
         }
     }
 
-    private void tickWriteStdin() throws IOException {
-        int remaining = requestBody.length - bytesWritten;
-
-        if (remaining <= 0) {
-            stdin.close();
-            state = State.READING;
-            return;
-        }
-
-        int chunkSize = Math.min(4096, remaining);
-        stdin.write(requestBody, bytesWritten, chunkSize);
-        stdin.flush();
-        bytesWritten += chunkSize;
-
-        if (bytesWritten >= requestBody.length) {
-            stdin.close();
-            state = State.READING;
-        }
-    }
-
-   
     private void tickRead() throws Exception {
         
         int available = stdout.available();
@@ -157,6 +153,16 @@ public class CgiProcess {
         }
     }
 
+    public int    getStatusCode() { return statusCode; }
+    public String getStatusText() { return statusText; }
+    public byte[] getBody()       { return cgiBody != null ? cgiBody : new byte[0]; }
+
+    public Map<String, String> getResponseHeaders() {
+        Map<String, String> headers = new LinkedHashMap<>(cgiHeaders);
+        headers.remove("Status");
+        return Collections.unmodifiableMap(headers);
+    }
+
     public HttpResponse buildResponse() {
         HttpResponse response = new HttpResponse(statusCode, statusText);
         for (Map.Entry<String, String> h : cgiHeaders.entrySet()) {
@@ -167,9 +173,11 @@ public class CgiProcess {
         return response;
     }
 
-    private static ProcessBuilder buildProcess(HttpRequest request, Config config)
-            throws IOException {
-
+    /**
+     * The script a request runs. Throws SecurityException for a path outside
+     * the CGI root and FileNotFoundException when there is no such script.
+     */
+    public static File resolveScript(HttpRequest request, Config config) throws IOException {
         String relativePath = request.getPath().replaceFirst("^/cgi-bin/?", "");
 
         if (relativePath.contains("..") || relativePath.contains("~"))
@@ -178,7 +186,7 @@ public class CgiProcess {
         if (!SAFE_PATH.matcher(relativePath).matches())
             throw new SecurityException("Invalid characters in path");
 
-        File root   = new File(config.getCgiRoot()).getCanonicalFile();
+        File root   = config.getCgiRootPath().toFile();
         File script = new File(root, relativePath).getCanonicalFile();
 
         if (!script.getPath().startsWith(root.getPath() + File.separator))
@@ -186,7 +194,12 @@ public class CgiProcess {
 
         if (!script.exists() || !script.canExecute())
             throw new FileNotFoundException("Script not found or not executable");
+        return script;
+    }
 
+    private static ProcessBuilder buildProcess(HttpRequest request, Config config,
+                                               long bodyLength) throws IOException {
+        File script = resolveScript(request, config);
         ProcessBuilder pb = new ProcessBuilder("/bin/bash", script.getAbsolutePath());
         pb.redirectErrorStream(true); 
 
@@ -205,8 +218,7 @@ public class CgiProcess {
         env.put("CONTENT_TYPE",      sanitize(
                                      request.getHeader("Content-Type") != null
                                      ? request.getHeader("Content-Type") : ""));
-        env.put("CONTENT_LENGTH",    String.valueOf(
-                                     request.getBody() != null ? request.getBody().length : 0));
+        env.put("CONTENT_LENGTH",    String.valueOf(bodyLength));
         env.put("PATH",              "/usr/local/bin:/usr/bin:/bin");
 
         for (Map.Entry<String, String> h : request.getHeaders().entrySet()) {
@@ -222,8 +234,14 @@ public class CgiProcess {
         return v == null ? "" : v.replaceAll("[\\r\\n\\x00]", "").trim();
     }
 
-    public void  destroy()   { process.destroyForcibly(); }
+    // Kills the script and anything it started, so nothing outlives the server.
+    public void destroy() {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
     public State getState()  { return state; }
+    public long getStartTime() { return startTime; }
     public boolean isDone()    { return state == State.DONE;    }
     public boolean isError()   { return state == State.ERROR;   }
     public boolean isTimeout() { return state == State.TIMEOUT; }
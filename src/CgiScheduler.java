@@ -0,0 +1,230 @@
+package src;
+
+import src.http.HttpRequest;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+
+public class CgiScheduler {
+
+    public static class Pending {
+        private final SocketChannel client;
+        private final HttpRequest   request;
+        private final Config        config;
+        private final Config.Route  route;
+        private final String        script;
+        private final String        cacheKey;
+        private final long          enqueuedAt;
+
+        Pending(SocketChannel client, HttpRequest request, Config config,
+                Config.Route route, String script, String cacheKey, long enqueuedAt) {
+            this.client     = client;
+            this.request    = request;
+            this.config     = config;
+            this.route      = route;
+            this.script     = script;
+            this.cacheKey   = cacheKey;
+            this.enqueuedAt = enqueuedAt;
+        }
+
+        public SocketChannel getClient()  { return client; }
+        public HttpRequest   getRequest() { return request; }
+        public Config        getConfig()  { return config; }
+        public Config.Route  getRoute()   { return route; }
+        public String        getScript()  { return script; }
+        public String        getCacheKey() { return cacheKey; }
+        public long          getEnqueuedAt() { return enqueuedAt; }
+    }
+
+    private enum BreakerState { CLOSED, OPEN, HALF_OPEN }
+
+    private static class Breaker {
+        private BreakerState state = BreakerState.CLOSED;
+        private int          consecutiveFailures = 0;
+        private long         openedAt = 0;
+        private boolean      probeInFlight = false;
+        private long         lastFailureAt = 0;
+        private long         cooldownMs = 0;
+    }
+
+    // A breaker with no failure for this long, and never less than its cooldown, is forgotten.
+    private static final long BREAKER_IDLE_MS  = 5 * 60_000;
+    private static final long SWEEP_INTERVAL_MS = 10_000;
+
+    private final Deque<Pending>              queue          = new ArrayDeque<>();
+    private final Set<Pending>                running        = new HashSet<>();
+    private final Map<SocketChannel, Pending> byClient       = new HashMap<>();
+    private final Map<Config, Integer>        activePerConfig = new HashMap<>();
+    private final Map<Config.Route, Integer>  activePerRoute = new HashMap<>();
+    private final Map<String, Breaker>        breakers       = new HashMap<>();
+    private long lastSweep = 0;
+
+    /**
+     * Admits a CGI request for {@code script}, the resolved script file, into
+     * the wait queue. Returns false when the script's circuit breaker is open
+     * or the queue is full; the caller should answer 503.
+     */
+    public boolean offer(SocketChannel client, HttpRequest request, Config config,
+                         Config.Route route, String script, long now) {
+        Pending p = new Pending(client, request, config, route, script, null, now);
+        if (!admit(p, now)) return false;
+        byClient.put(client, p);
+        return true;
+    }
+
+    /**
+     * Queues a request that is not tied to a connection: one shared execution
+     * whose result is fanned out by the caller under {@code cacheKey}.
+     */
+    public boolean offerShared(String cacheKey, HttpRequest request, Config config,
+                               Config.Route route, String script, long now) {
+        return admit(new Pending(null, request, config, route, script, cacheKey, now), now);
+    }
+
+    private boolean admit(Pending p, long now) {
+        if (!allowByBreaker(p.script, p.config, now)) return false;
+        if (queue.size() >= p.config.getCgiMaxQueue()) {
+            releaseProbe(p.script);
+            return false;
+        }
+        queue.addLast(p);
+        return true;
+    }
+
+    /**
+     * Removes and returns the oldest queued request whose server and route both
+     * have a free slot, marking it as running. Requests for saturated routes are
+     * skipped so one busy script cannot starve the others.
+     */
+    public Pending poll() {
+        Iterator<Pending> it = queue.iterator();
+        while (it.hasNext()) {
+            Pending p = it.next();
+            if (!hasSlot(p)) continue;
+
+            it.remove();
+            running.add(p);
+            activePerConfig.merge(p.config, 1, Integer::sum);
+            activePerRoute.merge(p.route, 1, Integer::sum);
+            return p;
+        }
+        return null;
+    }
+
+    public List<Pending> expireQueued(long now) {
+        sweepBreakers(now);
+        List<Pending> expired = new ArrayList<>();
+        Iterator<Pending> it = queue.iterator();
+        while (it.hasNext()) {
+            Pending p = it.next();
+            if (now - p.enqueuedAt > p.config.getCgiQueueTimeoutMs()) {
+                it.remove();
+                if (p.client != null) byClient.remove(p.client);
+                releaseProbe(p.script);
+                expired.add(p);
+            }
+        }
+        return expired;
+    }
+
+    public void complete(Pending p, boolean success, long now) {
+        if (!running.remove(p)) return;
+        if (p.client != null) byClient.remove(p.client);
+        releaseSlot(p);
+        recordOutcome(p.script, p.config, success, now);
+    }
+
+    /**
+     * Drops whatever the given connection has queued or running and returns it,
+     * so the caller can destroy the process if one was started.
+     */
+    public Pending cancel(SocketChannel client) {
+        Pending p = byClient.remove(client);
+        if (p == null) return null;
+
+        if (running.remove(p)) releaseSlot(p);
+        else queue.remove(p);
+        releaseProbe(p.script);
+        return p;
+    }
+
+    public int getQueuedCount()  { return queue.size(); }
+    public int getRunningCount() { return running.size(); }
+
+    public int getRunningCount(Config config) {
+        return activePerConfig.getOrDefault(config, 0);
+    }
+
+    // One cap for the whole process, then the optional server block and route caps under it.
+    private boolean hasSlot(Pending p) {
+        if (running.size() >= p.config.getCgiMaxConcurrentTotal()) return false;
+
+        int serverLimit = p.config.getCgiMaxConcurrent();
+        if (serverLimit > 0 && activePerConfig.getOrDefault(p.config, 0) >= serverLimit) return false;
+
+        int routeLimit = p.route.getCgiMaxConcurrent();
+        return routeLimit <= 0 || activePerRoute.getOrDefault(p.route, 0) < routeLimit;
+    }
+
+    private void releaseSlot(Pending p) {
+        activePerConfig.computeIfPresent(p.config, (k, v) -> v > 1 ? v - 1 : null);
+        activePerRoute.computeIfPresent(p.route, (k, v) -> v > 1 ? v - 1 : null);
+    }
+
+    private boolean allowByBreaker(String script, Config config, long now) {
+        Breaker b = breakers.get(script);
+        if (b == null) return true;
+
+        switch (b.state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now - b.openedAt < config.getCgiBreakerCooldownMs()) return false;
+                b.state = BreakerState.HALF_OPEN;
+                b.probeInFlight = true;
+                System.out.println("[CGI] Circuit half-open, probing " + script);
+                return true;
+            case HALF_OPEN:
+            default:
+                if (b.probeInFlight) return false;
+                b.probeInFlight = true;
+                return true;
+        }
+    }
+
+    private void releaseProbe(String script) {
+        Breaker b = breakers.get(script);
+        if (b != null && b.state == BreakerState.HALF_OPEN) b.probeInFlight = false;
+    }
+
+    private void recordOutcome(String script, Config config, boolean success, long now) {
+        if (success) {
+            Breaker b = breakers.remove(script);
+            if (b != null && b.state != BreakerState.CLOSED)
+                System.out.println("[CGI] Circuit closed for " + script);
+            return;
+        }
+
+        Breaker b = breakers.computeIfAbsent(script, k -> new Breaker());
+        b.consecutiveFailures++;
+        b.probeInFlight = false;
+        b.lastFailureAt = now;
+        b.cooldownMs    = config.getCgiBreakerCooldownMs();
+
+        if (b.state == BreakerState.HALF_OPEN
+                || b.consecutiveFailures >= config.getCgiBreakerThreshold()) {
+            if (b.state != BreakerState.OPEN)
+                System.err.println("[CGI] Circuit open for " + script
+                        + " after " + b.consecutiveFailures + " failures");
+            b.state    = BreakerState.OPEN;
+            b.openedAt = now;
+        }
+    }
+
+    // Forgets breakers of scripts that have stopped failing, or stopped being requested.
+    private void sweepBreakers(long now) {
+        if (now - lastSweep < SWEEP_INTERVAL_MS) return;
+        lastSweep = now;
+        breakers.values().removeIf(b -> !b.probeInFlight
+                && now - b.lastFailureAt > Math.max(BREAKER_IDLE_MS, b.cooldownMs));
+    }
+}
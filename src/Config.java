@@ -1,178 +1,730 @@
 package src;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 
+/**
+ * One server block, compiled and validated by {@link Builder#build()}. Every
+ * field is final and every collection unmodifiable, so a Config can be shared
+ * with the event loop and the CGI threads without further synchronization.
+ */
+public final class Config {
+
+    private final List<Integer> ports;
+    private final List<String> hosts;
+    private final Path cgiRootPath;
+    private final String cgiRoot;
+    private final long clientBodySizeLimit;
+    private final long uploadMaxSize;
+    private final List<Route> routes;
+    private final Map<Integer, String> errorPages;
+    private final ErrorPages errorResponses;
+    private final int cgiMaxConcurrent;
+    private final int cgiMaxConcurrentTotal;
+    private final int cgiMaxQueue;
+    private final long cgiQueueTimeoutMs;
+    private final int cgiBreakerThreshold;
+    private final long cgiBreakerCooldownMs;
+    private final int cgiCacheMaxEntries;
+    private final String sessionStore;
+    private final String sessionStorePath;
+    private final Map<String, String> sessionKeys;
+    private final boolean sessionEncrypt;
+    private final boolean reusePort;
+    private final long shutdownTimeoutMs;
+    private final String metricsPath;
+    private final String statusPath;
+    private final boolean serverTiming;
+    private final long slowRequestMs;
+    private final String accessLog;
+    private final String accessLogFormat;
+    private final long accessLogMaxBytes;
+    private final int accessLogMaxFiles;
+    private final int accessLogBuffer;
+    private final String captureFile;
+    private final double captureSampleRate;
+    private final int captureMaxBody;
+    private final long requestBufferBudget;
+    private final long requestSpillThreshold;
+    private final String spoolDir;
+    private final long spoolMaxBytes;
+
+    private Config(Builder b, List<Route> routes, Path cgiRootPath) {
+        this.ports = List.copyOf(b.ports);
+        this.hosts = List.copyOf(b.hosts);
+        this.routes = List.copyOf(routes);
+        this.cgiRootPath = cgiRootPath;
+        this.cgiRoot = cgiRootPath == null ? null : cgiRootPath.toString();
+        this.clientBodySizeLimit = b.clientBodySizeLimit;
+        this.uploadMaxSize = b.uploadMaxSize;
+        this.errorPages = Collections.unmodifiableMap(new HashMap<>(b.errorPages));
+        this.errorResponses = new ErrorPages(errorPages);
+        this.cgiMaxConcurrent = b.cgiMaxConcurrent;
+        this.cgiMaxConcurrentTotal = b.cgiMaxConcurrentTotal;
+        this.cgiMaxQueue = b.cgiMaxQueue;
+        this.cgiQueueTimeoutMs = b.cgiQueueTimeoutMs;
+        this.cgiBreakerThreshold = b.cgiBreakerThreshold;
+        this.cgiBreakerCooldownMs = b.cgiBreakerCooldownMs;
+        this.cgiCacheMaxEntries = b.cgiCacheMaxEntries;
+        this.sessionStore = b.sessionStore;
+        this.sessionStorePath = b.sessionStorePath;
+        this.sessionKeys = Collections.unmodifiableMap(new LinkedHashMap<>(b.sessionKeys));
+        this.sessionEncrypt = b.sessionEncrypt;
+        this.reusePort = b.reusePort;
+        this.shutdownTimeoutMs = b.shutdownTimeoutMs;
+        this.metricsPath = b.metricsPath;
+        this.statusPath = b.statusPath;
+        this.serverTiming = b.serverTiming;
+        this.slowRequestMs = b.slowRequestMs;
+        this.accessLog = b.accessLog;
+        this.accessLogFormat = b.accessLogFormat;
+        this.accessLogMaxBytes = b.accessLogMaxBytes;
+        this.accessLogMaxFiles = b.accessLogMaxFiles;
+        this.accessLogBuffer = b.accessLogBuffer;
+        this.captureFile = b.captureFile;
+        this.captureSampleRate = b.captureSampleRate;
+        this.captureMaxBody = b.captureMaxBody;
+        this.requestBufferBudget = b.requestBufferBudget;
+        this.requestSpillThreshold = b.requestSpillThreshold;
+        this.spoolDir = b.spoolDir;
+        this.spoolMaxBytes = b.spoolMaxBytes;
+    }
 
-public class Config {
+    public List<Integer> getPorts() {
+        return ports;
+    }
 
-    private List<Integer> ports;
-    private List<String> hosts;
-    private String cgiRoot;
-    private String defaultErrorPagePath;
-    private long clientBodySizeLimit;
-    private List<Route> routes;
-    private Map<Integer, String> errorPages;
+    public List<String> getHosts() {
+        return hosts;
+    }
+
+    public String getHost() {
+        return hosts.isEmpty() ? "localhost" : hosts.get(0);
+    }
 
-    public Config() {
-        this.ports = new ArrayList<>();
-        this.hosts = new ArrayList<>();
-        this.routes = new ArrayList<>();
-        this.errorPages = new HashMap<>();
-        this.clientBodySizeLimit = 1048576;
+    // Canonical root of the first CGI route, or null if there is none.
+    public String getCgiRoot() {
+        return cgiRoot;
+    }
 
+    public Path getCgiRootPath() {
+        return cgiRootPath;
     }
 
-    public void addPort(int port) {
-        this.ports.add(port);
+    public List<Route> getRoutes() {
+        return routes;
     }
 
-    public List<Integer> getPorts() {
-        return ports;
+    public Map<Integer, String> getErrorPages() {
+        return errorPages;
     }
 
-    public void setPorts(List<Integer> ports) {
-        this.ports = ports;
+    public ErrorPages getErrorResponses() {
+        return errorResponses;
     }
 
-    public List<String> getHosts() {
-        return hosts;
+    public long getClientBodySizeLimit() {
+        return clientBodySizeLimit;
     }
 
-    public void setHosts(List<String> hosts) {
-        this.hosts = hosts;
+    // Largest file a resumable upload may announce; each PATCH is still held to client_max_body_size.
+    public long getUploadMaxSize() {
+        return uploadMaxSize;
     }
 
-    public void addHost(String host) {
-        this.hosts.add(host);
+    // Optional cap for this server block under the process-wide one; 0 = none.
+    public int getCgiMaxConcurrent() {
+        return cgiMaxConcurrent;
     }
 
-    public String getHost() {
-        return hosts.isEmpty() ? "localhost" : hosts.get(0);
+    // CGI processes running at once across every server block.
+    public int getCgiMaxConcurrentTotal() {
+        return cgiMaxConcurrentTotal;
     }
 
-    public String getCgiRoot() {
-        return cgiRoot;
+    public int getCgiMaxQueue() {
+        return cgiMaxQueue;
     }
 
-    public void setCgiRoot(String cgiRoot) {
-        this.cgiRoot = cgiRoot;
+    public long getCgiQueueTimeoutMs() {
+        return cgiQueueTimeoutMs;
     }
 
-    public void addRoute(Route route) {
-        this.routes.add(route);
+    public int getCgiBreakerThreshold() {
+        return cgiBreakerThreshold;
     }
 
-    public List<Route> getRoutes() {
-        return routes;
+    public long getCgiBreakerCooldownMs() {
+        return cgiBreakerCooldownMs;
     }
 
-    public void setRoutes(List<Route> routes) {
-        this.routes = routes;
+    public int getCgiCacheMaxEntries() {
+        return cgiCacheMaxEntries;
     }
 
-    public Map<Integer, String> getErrorPages() {
-        return errorPages;
+    public String getSessionStore() {
+        return sessionStore;
     }
 
-    public void setErrorPages(Map<Integer, String> errorPages) {
-        this.errorPages = errorPages;
+    public String getSessionStorePath() {
+        return sessionStorePath;
     }
 
-    public void addErrorPage(int statusCode, String filePath) {
-        this.errorPages.put(statusCode, filePath);
+    public Map<String, String> getSessionKeys() {
+        return sessionKeys;
     }
 
-    public long getClientBodySizeLimit() {
-        return clientBodySizeLimit;
+    public boolean isSessionEncrypt() {
+        return sessionEncrypt;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    public long getShutdownTimeoutMs() {
+        return shutdownTimeoutMs;
+    }
+
+    // Path serving Prometheus metrics, or null when disabled.
+    public String getMetricsPath() {
+        return metricsPath;
+    }
+
+    // Path serving the live status page, or null when disabled.
+    public String getStatusPath() {
+        return statusPath;
+    }
+
+    public boolean isServerTiming() {
+        return serverTiming;
     }
 
-    public void setClientBodySizeLimit(long limit) {
-        this.clientBodySizeLimit = limit;
+    // Requests taking longer than this are logged; 0 disables the log.
+    public long getSlowRequestMs() {
+        return slowRequestMs;
     }
 
-    public void setDefaultErrorPagePath(String path) {
-        this.defaultErrorPagePath = path;
+    // Access log file, or null when disabled.
+    public String getAccessLog() {
+        return accessLog;
     }
 
-    public String getDefaultErrorPagePath() {
-        return defaultErrorPagePath;
+    public String getAccessLogFormat() {
+        return accessLogFormat;
     }
 
-    public static class Route {
-        private String path;
-        private String root;
-        private List<String> allowedMethods;
-        private String defaultFile;
-        private boolean directoryListing;
-        private String redirect;
-        private boolean cgi = false;
+    public long getAccessLogMaxBytes() {
+        return accessLogMaxBytes;
+    }
+
+    public int getAccessLogMaxFiles() {
+        return accessLogMaxFiles;
+    }
+
+    public int getAccessLogBuffer() {
+        return accessLogBuffer;
+    }
+
+    // Traffic capture file, or null when disabled.
+    public String getCaptureFile() {
+        return captureFile;
+    }
+
+    public double getCaptureSampleRate() {
+        return captureSampleRate;
+    }
+
+    public int getCaptureMaxBody() {
+        return captureMaxBody;
+    }
 
-        public Route() {
-            this.allowedMethods = new ArrayList<>();
-            this.directoryListing = false;
+    // Heap all connections together may hold for request bytes.
+    public long getRequestBufferBudget() {
+        return requestBufferBudget;
+    }
+
+    // Bodies larger than this are written to a temp file instead of the heap.
+    public long getRequestSpillThreshold() {
+        return requestSpillThreshold;
+    }
+
+    // Directory for spilled bodies and upload temp files.
+    public String getSpoolDir() {
+        return spoolDir;
+    }
+
+    public long getSpoolMaxBytes() {
+        return spoolMaxBytes;
+    }
+
+    public static class Builder {
+        private final List<Integer> ports = new ArrayList<>();
+        private final List<String> hosts = new ArrayList<>();
+        private final List<Route.Builder> routes = new ArrayList<>();
+        private final Map<Integer, String> errorPages = new HashMap<>();
+        private long clientBodySizeLimit = 1048576;
+        private long uploadMaxSize = 16L * 1024 * 1024 * 1024;
+        private int cgiMaxConcurrent = 0;
+        private int cgiMaxConcurrentTotal = 16;
+        private int cgiMaxQueue = 256;
+        private long cgiQueueTimeoutMs = 10000;
+        private int cgiBreakerThreshold = 5;
+        private long cgiBreakerCooldownMs = 30000;
+        private int cgiCacheMaxEntries = 1024;
+        private String sessionStore = "memory";
+        private String sessionStorePath = "sessions.log";
+        private Map<String, String> sessionKeys = new LinkedHashMap<>();
+        private boolean sessionEncrypt = false;
+        private boolean reusePort = false;
+        private long shutdownTimeoutMs = 30000;
+        private String metricsPath;
+        private String statusPath;
+        private boolean serverTiming = false;
+        private long slowRequestMs = 0;
+        private String accessLog;
+        private String accessLogFormat = "combined";
+        private long accessLogMaxBytes = 100L * 1024 * 1024;
+        private int accessLogMaxFiles = 5;
+        private int accessLogBuffer = 65536;
+        private String captureFile;
+        private double captureSampleRate = 1.0;
+        private int captureMaxBody = 65536;
+        private long requestBufferBudget = 256L * 1024 * 1024;
+        private long requestSpillThreshold = 1024 * 1024;
+        private String spoolDir = Paths.get(System.getProperty("java.io.tmpdir"), "webserv-spool").toString();
+        private long spoolMaxBytes = 1024L * 1024 * 1024;
+
+        public Builder addPort(int port) {
+            ports.add(port);
+            return this;
         }
 
-        public String getPath() {
-            return path;
+        public Builder addHost(String host) {
+            hosts.add(host);
+            return this;
+        }
+
+        public Builder addRoute(Route.Builder route) {
+            routes.add(route);
+            return this;
+        }
+
+        public Builder addErrorPage(int statusCode, String filePath) {
+            errorPages.put(statusCode, filePath);
+            return this;
+        }
+
+        public Builder setClientBodySizeLimit(long limit) {
+            this.clientBodySizeLimit = limit;
+            return this;
+        }
+
+        public Builder setUploadMaxSize(long uploadMaxSize) {
+            this.uploadMaxSize = uploadMaxSize;
+            return this;
+        }
+
+        public Builder setCgiMaxConcurrent(int cgiMaxConcurrent) {
+            this.cgiMaxConcurrent = cgiMaxConcurrent;
+            return this;
+        }
+
+        public Builder setCgiMaxConcurrentTotal(int cgiMaxConcurrentTotal) {
+            this.cgiMaxConcurrentTotal = cgiMaxConcurrentTotal;
+            return this;
+        }
+
+        public Builder setCgiMaxQueue(int cgiMaxQueue) {
+            this.cgiMaxQueue = cgiMaxQueue;
+            return this;
+        }
+
+        public Builder setCgiQueueTimeoutMs(long cgiQueueTimeoutMs) {
+            this.cgiQueueTimeoutMs = cgiQueueTimeoutMs;
+            return this;
+        }
+
+        public Builder setCgiBreakerThreshold(int cgiBreakerThreshold) {
+            this.cgiBreakerThreshold = cgiBreakerThreshold;
+            return this;
+        }
+
+        public Builder setCgiBreakerCooldownMs(long cgiBreakerCooldownMs) {
+            this.cgiBreakerCooldownMs = cgiBreakerCooldownMs;
+            return this;
+        }
+
+        public Builder setCgiCacheMaxEntries(int cgiCacheMaxEntries) {
+            this.cgiCacheMaxEntries = cgiCacheMaxEntries;
+            return this;
+        }
+
+        public Builder setSessionStore(String sessionStore) {
+            this.sessionStore = sessionStore;
+            return this;
+        }
+
+        public Builder setSessionStorePath(String sessionStorePath) {
+            this.sessionStorePath = sessionStorePath;
+            return this;
+        }
+
+        public Builder setSessionKeys(Map<String, String> sessionKeys) {
+            this.sessionKeys = sessionKeys;
+            return this;
+        }
+
+        public Builder setSessionEncrypt(boolean sessionEncrypt) {
+            this.sessionEncrypt = sessionEncrypt;
+            return this;
+        }
+
+        public Builder setReusePort(boolean reusePort) {
+            this.reusePort = reusePort;
+            return this;
+        }
+
+        public Builder setShutdownTimeoutMs(long shutdownTimeoutMs) {
+            this.shutdownTimeoutMs = shutdownTimeoutMs;
+            return this;
+        }
+
+        public Builder setMetricsPath(String metricsPath) {
+            this.metricsPath = metricsPath;
+            return this;
+        }
+
+        public Builder setStatusPath(String statusPath) {
+            this.statusPath = statusPath;
+            return this;
+        }
+
+        public Builder setServerTiming(boolean serverTiming) {
+            this.serverTiming = serverTiming;
+            return this;
+        }
+
+        public Builder setSlowRequestMs(long slowRequestMs) {
+            this.slowRequestMs = slowRequestMs;
+            return this;
+        }
+
+        public Builder setAccessLog(String accessLog) {
+            this.accessLog = accessLog;
+            return this;
+        }
+
+        public Builder setAccessLogFormat(String accessLogFormat) {
+            this.accessLogFormat = accessLogFormat;
+            return this;
+        }
+
+        public Builder setAccessLogMaxBytes(long accessLogMaxBytes) {
+            this.accessLogMaxBytes = accessLogMaxBytes;
+            return this;
+        }
+
+        public Builder setAccessLogMaxFiles(int accessLogMaxFiles) {
+            this.accessLogMaxFiles = accessLogMaxFiles;
+            return this;
+        }
+
+        public Builder setAccessLogBuffer(int accessLogBuffer) {
+            this.accessLogBuffer = accessLogBuffer;
+            return this;
+        }
+
+        public Builder setCaptureFile(String captureFile) {
+            this.captureFile = captureFile;
+            return this;
+        }
+
+        public Builder setCaptureSampleRate(double captureSampleRate) {
+            this.captureSampleRate = captureSampleRate;
+            return this;
+        }
+
+        public Builder setCaptureMaxBody(int captureMaxBody) {
+            this.captureMaxBody = captureMaxBody;
+            return this;
+        }
+
+        public Builder setRequestBufferBudget(long requestBufferBudget) {
+            this.requestBufferBudget = requestBufferBudget;
+            return this;
+        }
+
+        public Builder setRequestSpillThreshold(long requestSpillThreshold) {
+            this.requestSpillThreshold = requestSpillThreshold;
+            return this;
+        }
+
+        public Builder setSpoolDir(String spoolDir) {
+            this.spoolDir = spoolDir;
+            return this;
+        }
+
+        public Builder setSpoolMaxBytes(long spoolMaxBytes) {
+            this.spoolMaxBytes = spoolMaxBytes;
+            return this;
+        }
+
+        public Config build() {
+            if (ports.isEmpty()) ports.add(8080);
+            for (int port : ports) {
+                if (port < 1 || port > 65535)
+                    throw new IllegalArgumentException("Invalid port " + port);
+            }
+            for (String host : hosts) {
+                if (host == null || host.isBlank())
+                    throw new IllegalArgumentException("Empty host name");
+            }
+            if (metricsPath != null && !metricsPath.startsWith("/"))
+                throw new IllegalArgumentException("metrics_path must start with '/': " + metricsPath);
+            if (statusPath != null && !statusPath.startsWith("/"))
+                throw new IllegalArgumentException("status_path must start with '/': " + statusPath);
+            if (!accessLogFormat.equals("combined") && !accessLogFormat.equals("json"))
+                throw new IllegalArgumentException("access_log_format must be combined or json");
+            if (accessLogMaxBytes < 1 || accessLogMaxFiles < 0 || accessLogBuffer < 1
+                    || accessLogBuffer > 1 << 24)
+                throw new IllegalArgumentException("Access log limits out of range");
+            if (captureSampleRate < 0 || captureSampleRate > 1)
+                throw new IllegalArgumentException("capture_sample_rate must be between 0 and 1");
+            if (captureMaxBody < 0)
+                throw new IllegalArgumentException("capture_max_body must not be negative");
+            if (requestBufferBudget < 1024 * 1024)
+                throw new IllegalArgumentException("request_buffer_budget must be at least 1MB");
+            if (requestSpillThreshold < 0 || requestSpillThreshold > requestBufferBudget)
+                throw new IllegalArgumentException(
+                        "request_spill_threshold must be between 0 and request_buffer_budget");
+            if (spoolDir == null || spoolDir.isBlank())
+                throw new IllegalArgumentException("spool_dir must not be empty");
+            if (spoolMaxBytes < 0)
+                throw new IllegalArgumentException("spool_max_bytes must not be negative");
+            if (slowRequestMs < 0)
+                throw new IllegalArgumentException("slow_request_ms must not be negative");
+            if (shutdownTimeoutMs < 0)
+                throw new IllegalArgumentException("shutdown_timeout_ms must not be negative");
+            if (clientBodySizeLimit < 0)
+                throw new IllegalArgumentException("client_max_body_size must not be negative");
+            if (uploadMaxSize < 0)
+                throw new IllegalArgumentException("upload_max_size must not be negative");
+            if (cgiMaxConcurrentTotal < 1 || cgiMaxConcurrent < 0 || cgiMaxQueue < 0 || cgiQueueTimeoutMs < 0
+                    || cgiBreakerThreshold < 1 || cgiBreakerCooldownMs < 0 || cgiCacheMaxEntries < 0)
+                throw new IllegalArgumentException("CGI limits out of range");
+            for (int status : errorPages.keySet()) {
+                if (status < 400 || status > 599)
+                    throw new IllegalArgumentException("Error page for non-error status " + status);
+            }
+
+            List<Route> compiled = new ArrayList<>();
+            Path cgiRootPath = null;
+            for (Route.Builder rb : routes) {
+                Route route = rb.build();
+                compiled.add(route);
+                if (route.isCgi() && cgiRootPath == null) cgiRootPath = route.getRootPath();
+            }
+            return new Config(this, compiled, cgiRootPath);
+        }
+    }
+
+    public static final class Route {
+        private final String path;
+        private final String root;
+        private final Path rootPath;
+        private final List<String> allowedMethods;
+        private final int methodMask;
+        private final String defaultFile;
+        private final boolean directoryListing;
+        private final boolean directoryListingDetails;
+        private final String redirect;
+        private final boolean cgi;
+        private final int cgiMaxConcurrent;
+        private final boolean cgiCache;
+        private final List<String> cgiCacheVary;
+
+        private Route(Builder b, Path rootPath, int methodMask) {
+            this.path = b.path;
+            this.root = b.root;
+            this.rootPath = rootPath;
+            this.allowedMethods = List.copyOf(b.allowedMethods);
+            this.methodMask = methodMask;
+            this.defaultFile = b.defaultFile;
+            this.directoryListing = b.directoryListing;
+            this.directoryListingDetails = b.directoryListingDetails;
+            this.redirect = b.redirect;
+            this.cgi = b.cgi;
+            this.cgiMaxConcurrent = b.cgiMaxConcurrent;
+            this.cgiCache = b.cgiCache;
+            this.cgiCacheVary = List.copyOf(b.cgiCacheVary);
         }
 
-        public void setPath(String path) {
-            this.path = path;
+        public String getPath() {
+            return path;
         }
 
         public String getRoot() {
             return root;
         }
 
-        public void setRoot(String root) {
-            this.root = root;
+        // Absolute and normalized (canonical for CGI routes).
+        public Path getRootPath() {
+            return rootPath;
         }
 
         public List<String> getAllowedMethods() {
             return allowedMethods;
         }
 
-        public void setAllowedMethods(List<String> allowedMethods) {
-            this.allowedMethods = allowedMethods;
+        // An empty methods list allows everything.
+        public boolean allows(String method) {
+            return methodMask == 0 || (methodMask & methodBit(method)) != 0;
         }
 
-        public void addAllowedMethod(String method) {
-            if (this.allowedMethods == null) {
-                this.allowedMethods = new ArrayList<>();
-            }
-            this.allowedMethods.add(method);
+        // A method's bit in the mask, 0 for one the server does not know.
+        private static int methodBit(String method) {
+            return switch (method) {
+                case "GET"     -> 1;
+                case "HEAD"    -> 1 << 1;
+                case "POST"    -> 1 << 2;
+                case "PUT"     -> 1 << 3;
+                case "DELETE"  -> 1 << 4;
+                case "OPTIONS" -> 1 << 5;
+                case "PATCH"   -> 1 << 6;
+                default        -> 0;
+            };
         }
 
         public String getDefaultFile() {
             return defaultFile;
         }
 
-        public void setDefaultFile(String defaultFile) {
-            this.defaultFile = defaultFile;
-        }
-
         public boolean isDirectoryListing() {
             return directoryListing;
         }
 
-        public void setDirectoryListing(boolean directoryListing) {
-            this.directoryListing = directoryListing;
+        public boolean isDirectoryListingDetails() {
+            return directoryListingDetails;
         }
 
         public String getRedirect() {
             return redirect;
         }
 
-        public void setRedirect(String redirect) {
-            this.redirect = redirect;
-        }
-        
         public boolean isCgi() {
             return cgi;
         }
 
-        public void setCgi(boolean cgi) {
-            this.cgi = cgi;
+        public int getCgiMaxConcurrent() {
+            return cgiMaxConcurrent;
+        }
+
+        public boolean isCgiCache() {
+            return cgiCache;
+        }
+
+        public List<String> getCgiCacheVary() {
+            return cgiCacheVary;
+        }
+
+        public static class Builder {
+            private String path = "/";
+            private String root = ".";
+            private final List<String> allowedMethods = new ArrayList<>();
+            private String defaultFile;
+            private boolean directoryListing = false;
+            private boolean directoryListingDetails = false;
+            private String redirect;
+            private boolean cgi = false;
+            private int cgiMaxConcurrent = 0;
+            private boolean cgiCache = false;
+            private final List<String> cgiCacheVary = new ArrayList<>();
+
+            public Builder setPath(String path) {
+                this.path = path;
+                return this;
+            }
+
+            public Builder setRoot(String root) {
+                this.root = root;
+                return this;
+            }
+
+            public Builder addAllowedMethod(String method) {
+                allowedMethods.add(method);
+                return this;
+            }
+
+            public Builder setDefaultFile(String defaultFile) {
+                this.defaultFile = defaultFile;
+                return this;
+            }
+
+            public Builder setDirectoryListing(boolean directoryListing) {
+                this.directoryListing = directoryListing;
+                return this;
+            }
+
+            public Builder setDirectoryListingDetails(boolean directoryListingDetails) {
+                this.directoryListingDetails = directoryListingDetails;
+                return this;
+            }
+
+            public Builder setRedirect(String redirect) {
+                this.redirect = redirect;
+                return this;
+            }
+
+            public Builder setCgi(boolean cgi) {
+                this.cgi = cgi;
+                return this;
+            }
+
+            public Builder setCgiMaxConcurrent(int cgiMaxConcurrent) {
+                this.cgiMaxConcurrent = cgiMaxConcurrent;
+                return this;
+            }
+
+            public Builder setCgiCache(boolean cgiCache) {
+                this.cgiCache = cgiCache;
+                return this;
+            }
+
+            public Builder addCgiCacheVary(String header) {
+                cgiCacheVary.add(header);
+                return this;
+            }
+
+            public Route build() {
+                if (path == null || !path.startsWith("/"))
+                    throw new IllegalArgumentException("Route path must start with '/': " + path);
+                if (cgiMaxConcurrent < 0)
+                    throw new IllegalArgumentException("Negative cgi_max_concurrent on route " + path);
+
+                int mask = 0;
+                for (String method : allowedMethods) {
+                    int bit = methodBit(method);
+                    if (bit == 0)
+                        throw new IllegalArgumentException("Unknown method '" + method + "' on route " + path);
+                    mask |= bit;
+                }
+
+                Path rootPath = Paths.get(root).toAbsolutePath().normalize();
+                if (cgi) {
+                    try {
+                        rootPath = rootPath.toRealPath();
+                    } catch (IOException e) {
+                        throw new IllegalArgumentException("CGI root does not exist: " + root);
+                    }
+                    if (!Files.isDirectory(rootPath))
+                        throw new IllegalArgumentException("CGI root is not a directory: " + root);
+                }
+                return new Route(this, rootPath, mask);
+            }
         }
     }
 
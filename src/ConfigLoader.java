@@ -15,6 +15,56 @@ public class ConfigLoader {
 
         List<Object> serversArray =
                 JsonParser.getArray(rootJson, "servers");
+        // Process-wide settings are taken from the first server block.
+        if (serversArray.isEmpty())
+            throw new IllegalArgumentException("Config must define at least one server in \"servers\"");
+
+        // Sessions are process-wide, so these are read from the top level
+        // and copied into every server block.
+        String sessionStore =
+                JsonParser.getString(rootJson, "session_store", "memory");
+        String sessionStorePath =
+                JsonParser.getString(rootJson, "session_store_path", "sessions.log");
+
+        Map<String, String> sessionKeys = new LinkedHashMap<>();
+        for (Object keyObj : JsonParser.getArray(rootJson, "session_keys")) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> key = (Map<String, Object>) keyObj;
+            sessionKeys.put(JsonParser.getString(key, "id", ""),
+                    JsonParser.getString(key, "secret", ""));
+        }
+        boolean sessionEncrypt =
+                Boolean.TRUE.equals(rootJson.get("session_encrypt"));
+        boolean reusePort =
+                Boolean.TRUE.equals(rootJson.get("reuse_port"));
+        long shutdownTimeoutMs =
+                JsonParser.getInt(rootJson, "shutdown_timeout_ms", 30000);
+        String accessLog =
+                JsonParser.getString(rootJson, "access_log", null);
+        String accessLogFormat =
+                JsonParser.getString(rootJson, "access_log_format", "combined");
+        long accessLogMaxBytes =
+                JsonParser.getInt(rootJson, "access_log_max_bytes", 100L * 1024 * 1024);
+        int accessLogMaxFiles =
+                intSetting(rootJson, "access_log_max_files", 5);
+        int accessLogBuffer =
+                intSetting(rootJson, "access_log_buffer", 65536);
+        String captureFile =
+                JsonParser.getString(rootJson, "capture_file", null);
+        double captureSampleRate =
+                JsonParser.getDouble(rootJson, "capture_sample_rate", 1.0);
+        int captureMaxBody =
+                intSetting(rootJson, "capture_max_body", 65536);
+        long requestBufferBudget =
+                JsonParser.getInt(rootJson, "request_buffer_budget", 256L * 1024 * 1024);
+        long requestSpillThreshold =
+                JsonParser.getInt(rootJson, "request_spill_threshold", 1024 * 1024);
+        int cgiMaxConcurrentTotal =
+                intSetting(rootJson, "cgi_max_concurrent", 16);
+        String spoolDir =
+                JsonParser.getString(rootJson, "spool_dir", null);
+        long spoolMaxBytes =
+                JsonParser.getInt(rootJson, "spool_max_bytes", 1024L * 1024 * 1024);
 
         List<Config> configs = new ArrayList<>();
 
@@ -24,7 +74,26 @@ public class ConfigLoader {
             Map<String, Object> json =
                     (Map<String, Object>) serverObj;
 
-            Config config = new Config();
+            Config.Builder config = new Config.Builder();
+            config.setSessionStore(sessionStore);
+            config.setSessionStorePath(sessionStorePath);
+            config.setSessionKeys(sessionKeys);
+            config.setSessionEncrypt(sessionEncrypt);
+            config.setReusePort(reusePort);
+            config.setShutdownTimeoutMs(shutdownTimeoutMs);
+            config.setAccessLog(accessLog);
+            config.setAccessLogFormat(accessLogFormat);
+            config.setAccessLogMaxBytes(accessLogMaxBytes);
+            config.setAccessLogMaxFiles(accessLogMaxFiles);
+            config.setAccessLogBuffer(accessLogBuffer);
+            config.setCaptureFile(captureFile);
+            config.setCaptureSampleRate(captureSampleRate);
+            config.setCaptureMaxBody(captureMaxBody);
+            config.setRequestBufferBudget(requestBufferBudget);
+            config.setRequestSpillThreshold(requestSpillThreshold);
+            if (spoolDir != null) config.setSpoolDir(spoolDir);
+            config.setSpoolMaxBytes(spoolMaxBytes);
+            config.setCgiMaxConcurrentTotal(cgiMaxConcurrentTotal);
 
             List<Object> hostsArray = JsonParser.getArray(json, "hosts");
             if (!hostsArray.isEmpty()) {
@@ -38,18 +107,37 @@ public class ConfigLoader {
             List<Object> portsArray =
                     JsonParser.getArray(json, "ports");
 
-            if (portsArray.isEmpty()) {
-                config.addPort(8080);
-            } else {
-                for (Object port : portsArray) {
-                    config.addPort(((Number) port).intValue());
-                }
+            for (Object port : portsArray) {
+                config.addPort(intValue("ports", ((Number) port).longValue()));
             }
 
             config.setClientBodySizeLimit(
                     JsonParser.getInt(json,
                             "client_max_body_size", 1048576)
             );
+            config.setUploadMaxSize(
+                    JsonParser.getInt(json, "upload_max_size", 16L * 1024 * 1024 * 1024));
+
+            config.setCgiMaxConcurrent(
+                    intSetting(json, "cgi_max_concurrent", 0));
+            config.setCgiMaxQueue(
+                    intSetting(json, "cgi_max_queue", 256));
+            config.setCgiQueueTimeoutMs(
+                    JsonParser.getInt(json, "cgi_queue_timeout_ms", 10000));
+            config.setCgiBreakerThreshold(
+                    intSetting(json, "cgi_breaker_threshold", 5));
+            config.setCgiBreakerCooldownMs(
+                    JsonParser.getInt(json, "cgi_breaker_cooldown_ms", 30000));
+            config.setCgiCacheMaxEntries(
+                    intSetting(json, "cgi_cache_max_entries", 1024));
+            config.setMetricsPath(
+                    JsonParser.getString(json, "metrics_path", null));
+            config.setStatusPath(
+                    JsonParser.getString(json, "status_path", null));
+            config.setServerTiming(
+                    Boolean.TRUE.equals(json.get("server_timing")));
+            config.setSlowRequestMs(
+                    JsonParser.getInt(json, "slow_request_ms", 0));
 
             Map<String, Object> errorPages =
                     JsonParser.getObject(json, "error_pages");
@@ -75,20 +163,43 @@ public class ConfigLoader {
                 Map<String, Object> routeMap =
                         (Map<String, Object>) routeObj;
 
-                Config.Route route =
-                        parseRoute(routeMap);
-
-                config.addRoute(route);
+                config.addRoute(parseRoute(routeMap));
             }
 
-            configs.add(config);
+            configs.add(config.build());
         }
 
+        checkListeners(configs);
         return configs;
     }
 
-    private static Config.Route parseRoute(Map<String, Object> json) {
-        Config.Route route = new Config.Route();
+    // Two server blocks on the same address would fail at bind time with a
+    // less useful message, so catch it while loading.
+    private static void checkListeners(List<Config> configs) {
+        Set<String> seen = new HashSet<>();
+        for (Config config : configs) {
+            for (String host : config.getHosts()) {
+                for (int port : config.getPorts()) {
+                    if (!seen.add(host + ":" + port))
+                        throw new IllegalArgumentException("Duplicate listener " + host + ":" + port);
+                }
+            }
+        }
+    }
+
+    // An int setting; a value that does not fit is refused rather than truncated.
+    private static int intSetting(Map<String, Object> json, String key, int defaultValue) {
+        return intValue(key, JsonParser.getInt(json, key, defaultValue));
+    }
+
+    private static int intValue(String key, long value) {
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+            throw new IllegalArgumentException(key + " is out of range: " + value);
+        return (int) value;
+    }
+
+    private static Config.Route.Builder parseRoute(Map<String, Object> json) {
+        Config.Route.Builder route = new Config.Route.Builder();
         route.setPath(JsonParser.getString(json, "path", "/"));
         route.setRoot(JsonParser.getString(json, "root", "www"));
 
@@ -106,12 +217,29 @@ public class ConfigLoader {
         if (dirListing instanceof Boolean) {
             route.setDirectoryListing((Boolean) dirListing);
         }
+
+        Object dirListingDetails = json.get("directory_listing_details");
+        if (dirListingDetails instanceof Boolean) {
+            route.setDirectoryListingDetails((Boolean) dirListingDetails);
+        }
         
         Object cgi = json.get("cgi");
         if (cgi instanceof Boolean) {
             route.setCgi((Boolean) cgi);
         }
 
+        route.setCgiMaxConcurrent(
+                intSetting(json, "cgi_max_concurrent", 0));
+
+        Object cgiCache = json.get("cgi_cache");
+        if (cgiCache instanceof Boolean) {
+            route.setCgiCache((Boolean) cgiCache);
+        }
+
+        for (Object header : JsonParser.getArray(json, "cgi_cache_vary")) {
+            route.addCgiCacheVary(header.toString());
+        }
+
         return route;
     }
 }
\ No newline at end of file
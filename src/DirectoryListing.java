@@ -0,0 +1,281 @@
+package src;
+
+import src.http.HttpResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SecureDirectoryStream;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Directory listing page, streamed as it is read: entries come from a
+ * DirectoryStream a batch at a time and go out as chunks, so a directory of
+ * any size starts rendering at once and holds one batch in memory. Each
+ * entry's attributes are read with one stat relative to the open directory.
+ *
+ * Listings up to CACHE_MAX_ENTRY are kept once rendered. A cached one is
+ * used while the directory's mtime is unchanged and a WatchService has seen
+ * nothing happen in it; the watch also catches files changing in place,
+ * which the size and date columns show but the mtime misses.
+ */
+final class DirectoryListing implements HttpResponse.BodySource {
+
+    private static final int  BATCH = 256;
+    private static final int  CACHE_MAX_ENTRY = 1024 * 1024;
+    private static final long CACHE_MAX_BYTES = 16L * 1024 * 1024;
+    private static final int  CACHE_MAX_SLOTS = 4096;
+    private static final DateTimeFormatter DATE =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneOffset.UTC);
+
+    private record Rendered(byte[] body, long dirModified) {}
+
+    // A listing's cache entry, and how many times its directory changed while it was cached or rendering.
+    private static final class Slot {
+        private Rendered rendered;
+        private long generation;
+    }
+
+    private static final LinkedHashMap<String, Slot> cache = new LinkedHashMap<>(64, 0.75f, true);
+    private static final Map<WatchKey, Set<String>> watched = new HashMap<>();
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static long cachedBytes;
+    private static WatchService watcher;
+
+    static {
+        Metrics.counter("directory_listing_cache_hits_total", "Directory listings served from cache.",
+                hits::sum);
+        Metrics.counter("directory_listing_cache_misses_total", "Directory listings read from disk.",
+                misses::sum);
+        Metrics.gauge("directory_listing_cache_bytes", "Rendered directory listings held in memory.", () -> {
+            synchronized (cache) {
+                return cachedBytes;
+            }
+        });
+    }
+
+    private final String href;
+    private final boolean details;
+    private final String cacheKey;
+    private final long dirModified;
+    private final Slot slot;
+    private final long generation;
+    private DirectoryStream<Path> stream;
+    private Iterator<Path> entries;
+    private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+    private boolean started;
+
+    private DirectoryListing(String href, boolean details, String cacheKey, long dirModified,
+                             Slot slot, long generation) {
+        this.href = href;
+        this.details = details;
+        this.cacheKey = cacheKey;
+        this.dirModified = dirModified;
+        this.slot = slot;
+        this.generation = generation;
+    }
+
+    /**
+     * Lists {@code dir}, which is served at {@code href}; with
+     * {@code details}, in a table with size and modification time.
+     */
+    static HttpResponse response(Path dir, String href, boolean details) throws IOException {
+        if (!href.endsWith("/")) href += "/";
+        String key = dir + "\n" + href + "\n" + details;
+        long modified = Files.getLastModifiedTime(dir).toMillis();
+
+        HttpResponse response = new HttpResponse(200, "OK");
+        response.addHeader("Content-Type", "text/html; charset=UTF-8");
+        Slot slot;
+        long generation;
+        synchronized (cache) {
+            slot = cache.computeIfAbsent(key, k -> new Slot());
+            Rendered rendered = slot.rendered;
+            if (rendered != null && rendered.dirModified() == modified) {
+                hits.increment();
+                response.setBody(rendered.body());
+                return response;
+            }
+            generation = slot.generation;
+        }
+        misses.increment();
+        watch(dir, key);
+        DirectoryListing listing = new DirectoryListing(href, details, key, modified, slot, generation);
+        listing.stream = Files.newDirectoryStream(dir);
+        listing.entries = listing.stream.iterator();
+        response.setBody(listing);
+        return response;
+    }
+
+    @Override
+    public byte[] next() throws IOException {
+        if (entries == null) return null;
+        StringBuilder sb = new StringBuilder(BATCH * 96);
+        if (!started) {
+            started = true;
+            sb.append("<!DOCTYPE html><html><head><meta charset=\"UTF-8\"><title>Index of ");
+            escape(sb, href);
+            sb.append("</title></head><body><h1>Index of ");
+            escape(sb, href);
+            sb.append("</h1><hr>");
+            sb.append(details ? "<table><tr><th>Name</th><th>Size</th><th>Modified (UTC)</th></tr>" : "<ul>");
+        }
+
+        int n = 0;
+        while (n < BATCH && entries.hasNext()) {
+            Path entry = entries.next();
+            String name = entry.getFileName().toString();
+            if (UploadStore.isInternal(entry.getFileName())) continue;
+            BasicFileAttributes attrs = attributes(entry);
+            if (attrs == null) continue; // removed since it was listed
+            if (attrs.isDirectory()) name += "/";
+            n++;
+
+            sb.append(details ? "<tr><td>" : "<li>").append("<a href=\"");
+            escape(sb, href);
+            escape(sb, name);
+            sb.append("\">");
+            escape(sb, name);
+            sb.append("</a>");
+            if (details) {
+                sb.append("</td><td>").append(attrs.isDirectory() ? "-" : Long.toString(attrs.size()))
+                  .append("</td><td>").append(DATE.format(attrs.lastModifiedTime().toInstant()))
+                  .append("</td></tr>");
+            } else {
+                sb.append("</li>");
+            }
+        }
+
+        if (!entries.hasNext()) {
+            sb.append(details ? "</table>" : "</ul>").append("<hr></body></html>\n");
+            entries = null;
+        }
+        byte[] piece = sb.toString().getBytes(StandardCharsets.UTF_8);
+        keep(piece);
+        return piece;
+    }
+
+    // One stat per entry, relative to the open directory where the platform allows it.
+    private BasicFileAttributes attributes(Path entry) {
+        try {
+            if (stream instanceof SecureDirectoryStream<Path> secure) {
+                return secure.getFileAttributeView(entry.getFileName(), BasicFileAttributeView.class)
+                        .readAttributes();
+            }
+            return Files.readAttributes(entry, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Collects the rendered page for the cache while it stays small enough.
+    private void keep(byte[] piece) {
+        if (copy == null) return;
+        if (copy.size() + piece.length > CACHE_MAX_ENTRY) {
+            copy = null;
+            return;
+        }
+        copy.write(piece, 0, piece.length);
+        if (entries != null) return;
+
+        byte[] body = copy.toByteArray();
+        copy = null;
+        synchronized (cache) {
+            // the directory changed while reading, or the entry was evicted
+            if (cache.get(cacheKey) != slot || slot.generation != generation) return;
+            if (slot.rendered != null) cachedBytes -= slot.rendered.body().length;
+            slot.rendered = new Rendered(body, dirModified);
+            cachedBytes += body.length;
+            Iterator<Map.Entry<String, Slot>> it = cache.entrySet().iterator();
+            while ((cachedBytes > CACHE_MAX_BYTES || cache.size() > CACHE_MAX_SLOTS) && it.hasNext()) {
+                Rendered old = it.next().getValue().rendered;
+                if (old != null) cachedBytes -= old.body().length;
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        entries = null;
+        copy = null;
+        try {
+            if (stream != null) stream.close();
+        } catch (IOException ignored) {}
+        stream = null;
+    }
+
+    private static void watch(Path dir, String key) {
+        synchronized (cache) {
+            try {
+                if (watcher == null) {
+                    watcher = dir.getFileSystem().newWatchService();
+                    Thread thread = new Thread(DirectoryListing::watchLoop, "listing-watch");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+                WatchKey watchKey = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                watched.computeIfAbsent(watchKey, k -> new HashSet<>()).add(key);
+            } catch (IOException | UnsupportedOperationException e) {
+                // the mtime check still applies
+            }
+        }
+    }
+
+    // Drops the listings of a directory on any change in it, and stops watching it until it is cached again.
+    private static void watchLoop() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            key.pollEvents();
+            key.cancel();
+            synchronized (cache) {
+                Set<String> keys = watched.remove(key);
+                if (keys == null) continue;
+                for (String k : keys) {
+                    Slot slot = cache.get(k);
+                    if (slot == null) continue;
+                    slot.generation++;
+                    if (slot.rendered != null) cachedBytes -= slot.rendered.body().length;
+                    slot.rendered = null;
+                }
+            }
+        }
+    }
+
+    private static void escape(StringBuilder sb, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '&' -> sb.append("&amp;");
+                case '<' -> sb.append("&lt;");
+                case '>' -> sb.append("&gt;");
+                case '"' -> sb.append("&quot;");
+                default  -> sb.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package src;
+
+import src.http.HttpResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Error page bodies for one server block, read once at load time and shared
+ * by every error response. A page's mtime is re-checked at most once a second,
+ * so edits to the HTML are picked up without a restart.
+ */
+public class ErrorPages {
+
+    private static final long CHECK_INTERVAL_MS = 1000;
+
+    private static class Page {
+        private final Path    path;
+        private volatile byte[] body;
+        private volatile long   modifiedAt = -1;
+        private volatile long   checkedAt;
+        private boolean         missing;
+
+        Page(Path path) {
+            this.path = path;
+        }
+    }
+
+    private final Map<Integer, Page>  pages     = new HashMap<>();
+    private final Map<String, byte[]> fallbacks = new ConcurrentHashMap<>();
+
+    public ErrorPages(Map<Integer, String> paths) {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Integer, String> e : paths.entrySet()) {
+            Page page = new Page(Paths.get(e.getValue()));
+            refresh(page, now);
+            pages.put(e.getKey(), page);
+        }
+    }
+
+    public HttpResponse response(int statusCode, String reason) {
+        HttpResponse response = new HttpResponse(statusCode, reason);
+        response.addHeader("Content-Type", "text/html; charset=UTF-8");
+        response.setBody(body(statusCode, reason));
+        return response;
+    }
+
+    private byte[] body(int statusCode, String reason) {
+        Page page = pages.get(statusCode);
+        if (page != null) {
+            long now = System.currentTimeMillis();
+            if (now - page.checkedAt > CHECK_INTERVAL_MS) refresh(page, now);
+            byte[] body = page.body;
+            if (body != null) return body;
+        }
+        return fallbacks.computeIfAbsent(statusCode + " " + reason,
+                title -> ("<!DOCTYPE html><html><head><title>" + title +
+                          "</title></head><body><h1>" + title + "</h1></body></html>")
+                          .getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void refresh(Page page, long now) {
+        page.checkedAt = now;
+        try {
+            long modifiedAt = Files.getLastModifiedTime(page.path).toMillis();
+            if (modifiedAt == page.modifiedAt) return;
+            page.body = Files.readAllBytes(page.path);
+            page.modifiedAt = modifiedAt;
+            page.missing = false;
+        } catch (IOException e) {
+            if (!page.missing)
+                System.err.println("[ERROR] Failed to load error page: " + page.path);
+            page.body = null;
+            page.modifiedAt = -1;
+            page.missing = true;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package src;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary upgrades without refused connections. On SIGUSR2 the running server
+ * starts a successor with the same JVM options, class path and main class
+ * (so a replaced jar is picked up). Listeners are bound with SO_REUSEPORT,
+ * so the successor binds next to the old process; once bound it sends the
+ * old process SIGTERM, which stops accepting and drains its connections.
+ */
+public class Handoff {
+
+    static final String PREDECESSOR_ENV = "SERVER_HANDOFF_PID";
+
+    public static void launchSuccessor() {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Main.class.getName());
+
+        ProcessBuilder pb = new ProcessBuilder(command).inheritIO();
+        pb.environment().put(PREDECESSOR_ENV, String.valueOf(ProcessHandle.current().pid()));
+        try {
+            Process successor = pb.start();
+            System.out.println("[HANDOFF] Started successor pid " + successor.pid());
+        } catch (IOException e) {
+            System.err.println("[HANDOFF] Could not start successor: " + e.getMessage());
+        }
+    }
+
+    // HotSpot suspends threads with SIGUSR2 for JFR sampling unless
+    // _JAVA_SR_SIGNUM moves it elsewhere; a USR2 handler would then start
+    // successors while a recording runs.
+    public static boolean signalAvailable() {
+        if (System.getenv("_JAVA_SR_SIGNUM") != null) return true;
+        for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (arg.startsWith("-XX:StartFlightRecording")) return false;
+        }
+        return true;
+    }
+
+    // Called by the successor once its listeners are bound.
+    public static void notifyPredecessor() {
+        String pid = System.getenv(PREDECESSOR_ENV);
+        if (pid == null) return;
+        try {
+            ProcessHandle.of(Long.parseLong(pid)).ifPresent(p -> {
+                System.out.println("[HANDOFF] Listening; asking pid " + pid + " to drain");
+                p.destroy();
+            });
+        } catch (NumberFormatException e) {
+            System.err.println("[HANDOFF] Ignoring invalid " + PREDECESSOR_ENV + "=" + pid);
+        }
+    }
+}
@@ -118,6 +118,10 @@ public class JsonParser {
                     case '"':
                         sb.append('"');
                         break;
+                    case 'u':
+                        sb.append((char) Integer.parseInt(json.substring(index, index + 4), 16));
+                        index += 4;
+                        break;
                     default:
                         sb.append(escaped);
                 }
@@ -153,7 +157,7 @@ public class JsonParser {
         return result;
     }
 
-    private Long parseNumber() {
+    private Number parseNumber() {
         skipWhitespace();
         StringBuilder sb = new StringBuilder();
 
@@ -161,13 +165,14 @@ public class JsonParser {
             sb.append(next());
         }
 
-        while (index < json.length() && (Character.isDigit(peek()) || peek() == '.')) {
+        while (index < json.length() && (Character.isDigit(peek()) || peek() == '.'
+                || peek() == 'e' || peek() == 'E' || peek() == '+' || peek() == '-')) {
             sb.append(next());
         }
 
         String numStr = sb.toString();
-        if (numStr.contains(".")) {
-            return Long.parseLong(numStr);
+        if (numStr.contains(".") || numStr.contains("e") || numStr.contains("E")) {
+            return Double.parseDouble(numStr);
         } else {
             return Long.parseLong(numStr);
         }
@@ -213,7 +218,15 @@ public class JsonParser {
     public static long getInt(Map<String, Object> map, String key, long defaultValue) {
         Object value = map.get(key);
         if (value instanceof Number) {
-            return ((Number) value).intValue();
+            return ((Number) value).longValue();
+        }
+        return defaultValue;
+    }
+
+    public static double getDouble(Map<String, Object> map, String key, double defaultValue) {
+        Object value = map.get(key);
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
         }
         return defaultValue;
     }
@@ -0,0 +1,116 @@
+package src;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Streaming counterpart of JsonParser: writes JSON straight to an Appendable
+ * without building a tree first. Commas are tracked per nesting level, so
+ * callers only open, name, write and close.
+ */
+public class JsonWriter {
+
+    private final Appendable out;
+    private boolean[] hasItems = new boolean[8];
+    private int depth;
+    private boolean afterName;
+
+    public JsonWriter(Appendable out) {
+        this.out = out;
+    }
+
+    public JsonWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    public JsonWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    public JsonWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    public JsonWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    public JsonWriter name(String name) throws IOException {
+        separate();
+        quote(out, name);
+        out.append(':');
+        afterName = true;
+        return this;
+    }
+
+    public JsonWriter value(String value) throws IOException {
+        separate();
+        if (value == null) out.append("null");
+        else quote(out, value);
+        return this;
+    }
+
+    public JsonWriter value(long value) throws IOException {
+        separate();
+        out.append(Long.toString(value));
+        return this;
+    }
+
+    public JsonWriter value(double value) throws IOException {
+        separate();
+        out.append(Double.toString(value));
+        return this;
+    }
+
+    public JsonWriter value(boolean value) throws IOException {
+        separate();
+        out.append(value ? "true" : "false");
+        return this;
+    }
+
+    private JsonWriter open(char c) throws IOException {
+        separate();
+        out.append(c);
+        if (++depth == hasItems.length) hasItems = Arrays.copyOf(hasItems, depth * 2);
+        hasItems[depth] = false;
+        return this;
+    }
+
+    private JsonWriter close(char c) throws IOException {
+        depth--;
+        out.append(c);
+        return this;
+    }
+
+    private void separate() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (hasItems[depth]) out.append(',');
+        hasItems[depth] = true;
+    }
+
+    public static void quote(Appendable out, String s) throws IOException {
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"'  -> out.append("\\\"");
+                case '\\' -> out.append("\\\\");
+                case '\n' -> out.append("\\n");
+                case '\r' -> out.append("\\r");
+                case '\t' -> out.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        out.append("\\u00").append(Character.forDigit(c >> 4, 16))
+                           .append(Character.forDigit(c & 0xF, 16));
+                    } else {
+                        out.append(c);
+                    }
+                }
+            }
+        }
+        out.append('"');
+    }
+}
@@ -1,28 +1,48 @@
 package src;
 
-import java.io.File;
 import java.util.List;
 
-import src.Config.Route;
+import src.http.Session;
+import src.http.Spool;
+import sun.misc.Signal;
 
 public class Main {
 
+    private static final String CONFIG_PATH = "config.json";
+
     public static void main(String[] args) {
         try {
             
-            List<Config> configs = ConfigLoader.load("config.json");
-
-            for (Config config : configs) {
-                for (Route r : config.getRoutes()) {
-                    if (r.isCgi()) {
-                        config.setCgiRoot(new File(r.getRoot()).getAbsolutePath());
-                        break;
-                    }
-                }
+            List<Config> configs = ConfigLoader.load(CONFIG_PATH);
+
+            Server server = new Server(configs, CONFIG_PATH);
+            Signal.handle(new Signal("HUP"), sig -> server.requestReload());
+            if (Handoff.signalAvailable())
+                Signal.handle(new Signal("USR2"), sig -> server.requestHandoff());
+            else
+                System.err.println("[HANDOFF] Disabled: JFR uses SIGUSR2, start with _JAVA_SR_SIGNUM=39 to keep both");
+            Signal.handle(new Signal("TERM"), sig -> server.shutdown());
+            Signal.handle(new Signal("INT"), sig -> server.shutdown());
+            Handoff.notifyPredecessor();
+
+            // After the handoff notice: a mapped store waits here until the
+            // previous process has released the session log.
+            if (!configs.isEmpty()) {
+                Config first = configs.get(0);
+                Session.configureStore(first.getSessionStore(), first.getSessionStorePath(),
+                        first.getSessionKeys(), first.isSessionEncrypt());
+                AccessLog.configure(first.getAccessLog(), first.getAccessLogFormat(),
+                        first.getAccessLogMaxBytes(), first.getAccessLogMaxFiles(),
+                        first.getAccessLogBuffer());
+                Capture.configure(first.getCaptureFile(), first.getCaptureSampleRate(),
+                        first.getCaptureMaxBody());
             }
 
-            Server server = new Server(configs);
             server.start();
+            AccessLog.close();
+            Capture.close();
+            Spool.close();
+            UploadStore.closeAll();
 
         } catch (Exception e) {
             System.err.println("[FATAL] Server failed to start");
@@ -0,0 +1,165 @@
+package src;
+
+import src.http.HttpResponse;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide counters and latency histograms, rendered in the Prometheus
+ * text format at a server's metrics_path. Recording only bumps LongAdders;
+ * the per-route histogram map allocates once per route path and never again.
+ */
+public final class Metrics {
+
+    // Bucket upper bounds in seconds, as rendered; an implicit +Inf bucket follows.
+    private static final String[] BOUNDS = {"0.0005", "0.001", "0.0025", "0.005", "0.01",
+            "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10"};
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) BOUNDS_NANOS[i] = (long) (Double.parseDouble(BOUNDS[i]) * 1e9);
+    }
+
+    public static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BOUNDS_NANOS.length + 1];
+        private final LongAdder   sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        public void observe(long nanos) {
+            int i = 0;
+            while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) i++;
+            buckets[i].increment();
+            sumNanos.add(nanos);
+        }
+
+        private void render(StringBuilder out, String name, String label) {
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                String le = i < BOUNDS.length ? BOUNDS[i] : "+Inf";
+                out.append(name).append("_bucket{").append(label).append(",le=\"").append(le)
+                   .append("\"} ").append(cumulative).append('\n');
+            }
+            out.append(name).append("_sum{").append(label).append("} ")
+               .append(sumNanos.sum() / 1e9).append('\n');
+            out.append(name).append("_count{").append(label).append("} ")
+               .append(cumulative).append('\n');
+        }
+    }
+
+    public enum Phase { READ, PARSE, QUEUE, HANDLE, WRITE }
+
+    private static final LongAdder[] statusCounts = new LongAdder[600];
+    static {
+        for (int i = 0; i < statusCounts.length; i++) statusCounts[i] = new LongAdder();
+    }
+
+    private static final LongAdder bytesReceived = new LongAdder();
+    private static final LongAdder bytesSent     = new LongAdder();
+    private static final LongAdder cgiOk         = new LongAdder();
+    private static final LongAdder cgiError      = new LongAdder();
+    private static final LongAdder cgiTimeout    = new LongAdder();
+
+    private static final Map<String, Histogram> routeLatency = new ConcurrentHashMap<>();
+    private static final Histogram[] phaseLatency = new Histogram[Phase.values().length];
+    static {
+        for (int i = 0; i < phaseLatency.length; i++) phaseLatency[i] = new Histogram();
+    }
+
+    // Values owned elsewhere and read at scrape time: name -> {help, type}.
+    private static final Map<String, String[]>     readHelp = new LinkedHashMap<>();
+    private static final Map<String, LongSupplier> readers  = new LinkedHashMap<>();
+
+    private Metrics() {}
+
+    public static synchronized void gauge(String name, String help, LongSupplier value) {
+        readHelp.put(name, new String[] {help, "gauge"});
+        readers.put(name, value);
+    }
+
+    public static synchronized void counter(String name, String help, LongSupplier value) {
+        readHelp.put(name, new String[] {help, "counter"});
+        readers.put(name, value);
+    }
+
+    public static void recordRequest(String route, int status, long bytesIn, long bytesOut,
+                                     long totalNanos) {
+        if (status >= 0 && status < statusCounts.length) statusCounts[status].increment();
+        bytesReceived.add(bytesIn);
+        bytesSent.add(bytesOut);
+        routeLatency.computeIfAbsent(route, r -> new Histogram()).observe(totalNanos);
+    }
+
+    public static void recordPhase(Phase phase, long nanos) {
+        phaseLatency[phase.ordinal()].observe(nanos);
+    }
+
+    public static void recordCgi(boolean done, boolean timeout) {
+        if (done) cgiOk.increment();
+        else if (timeout) cgiTimeout.increment();
+        else cgiError.increment();
+    }
+
+    public static HttpResponse response() {
+        HttpResponse response = new HttpResponse(200, "OK");
+        response.addHeader("Content-Type", "text/plain; version=0.0.4; charset=UTF-8");
+        response.setBody(render());
+        return response;
+    }
+
+    static synchronized String render() {
+        StringBuilder out = new StringBuilder(8192);
+
+        header(out, "http_requests_total", "Responses sent, by status code.", "counter");
+        for (int code = 0; code < statusCounts.length; code++) {
+            long n = statusCounts[code].sum();
+            if (n > 0) out.append("http_requests_total{code=\"").append(code).append("\"} ")
+                          .append(n).append('\n');
+        }
+
+        header(out, "http_received_bytes_total", "Request bytes read, headers included.", "counter");
+        out.append("http_received_bytes_total ").append(bytesReceived.sum()).append('\n');
+        header(out, "http_sent_bytes_total", "Response bytes written, headers included.", "counter");
+        out.append("http_sent_bytes_total ").append(bytesSent.sum()).append('\n');
+
+        header(out, "http_request_duration_seconds",
+                "Time from the first request byte to the last response byte, by route.", "histogram");
+        for (Map.Entry<String, Histogram> e : routeLatency.entrySet()) {
+            e.getValue().render(out, "http_request_duration_seconds",
+                    "route=\"" + escape(e.getKey()) + "\"");
+        }
+
+        header(out, "http_request_phase_seconds",
+                "Time spent reading and parsing the request, waiting for a CGI slot, producing the response and writing it.", "histogram");
+        for (Phase phase : Phase.values()) {
+            phaseLatency[phase.ordinal()].render(out, "http_request_phase_seconds",
+                    "phase=\"" + phase.name().toLowerCase() + "\"");
+        }
+
+        header(out, "cgi_runs_total", "Finished CGI processes, by outcome.", "counter");
+        out.append("cgi_runs_total{result=\"ok\"} ").append(cgiOk.sum()).append('\n');
+        out.append("cgi_runs_total{result=\"error\"} ").append(cgiError.sum()).append('\n');
+        out.append("cgi_runs_total{result=\"timeout\"} ").append(cgiTimeout.sum()).append('\n');
+
+        for (Map.Entry<String, LongSupplier> e : readers.entrySet()) {
+            String[] meta = readHelp.get(e.getKey());
+            header(out, e.getKey(), meta[0], meta[1]);
+            out.append(e.getKey()).append(' ').append(e.getValue().getAsLong()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,64 @@
+package src;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide budget for the heap that connections hold for request bytes.
+ * A connection reserves its read buffer here before growing it. Bodies above
+ * request_spill_threshold, or any body once the budget is used up, go to a
+ * temp file instead. Headers and chunked bodies can't be spilled, so when
+ * those can't grow the request is answered 503.
+ */
+public final class RequestBuffers {
+
+    private static final AtomicLong used = new AtomicLong();
+    private static final LongAdder  spills = new LongAdder();
+    private static final LongAdder  refusals = new LongAdder();
+
+    private static volatile long budget = 256L * 1024 * 1024;
+    private static volatile long spillThreshold = 1024 * 1024;
+
+    static {
+        Metrics.gauge("request_buffer_bytes", "Heap held by connection read buffers.", used::get);
+        Metrics.gauge("request_buffer_budget_bytes", "Limit on request_buffer_bytes.", () -> budget);
+        Metrics.counter("request_body_spills_total", "Request bodies written to a temp file.",
+                spills::sum);
+        Metrics.counter("request_buffer_refusals_total",
+                "Requests answered 503 because their buffer could not grow within the budget.",
+                refusals::sum);
+    }
+
+    private RequestBuffers() {}
+
+    // Takes effect for buffers grown from now on; nothing already held is freed.
+    public static void configure(long budget, long spillThreshold) {
+        RequestBuffers.budget = budget;
+        RequestBuffers.spillThreshold = spillThreshold;
+    }
+
+    public static boolean tryReserve(long bytes) {
+        long limit = budget;
+        while (true) {
+            long current = used.get();
+            if (current + bytes > limit) return false;
+            if (used.compareAndSet(current, current + bytes)) return true;
+        }
+    }
+
+    // For the small buffer every connection starts with, which is never refused.
+    public static void reserve(long bytes) {
+        used.addAndGet(bytes);
+    }
+
+    public static void release(long bytes) {
+        used.addAndGet(-bytes);
+    }
+
+    public static void recordSpill()   { spills.increment(); }
+    public static void recordRefusal() { refusals.increment(); }
+
+    public static long getSpillThreshold() { return spillThreshold; }
+    public static long getUsed()           { return used.get(); }
+    public static long getBudget()         { return budget; }
+}
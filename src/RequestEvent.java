@@ -0,0 +1,67 @@
+package src;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * One finished request, committed to a running Flight Recorder session. The
+ * phases are measured by the server rather than by begin()/end(), since a
+ * request spans many selector wakeups.
+ */
+@Name("webserv.Request")
+@Label("HTTP Request")
+@Category("Web Server")
+@Description("A request from its first byte to its last response byte, split into phases")
+@StackTrace(false)
+class RequestEvent extends Event {
+
+    @Label("Method")
+    String method;
+
+    @Label("Target")
+    String target;
+
+    @Label("Route")
+    String route;
+
+    @Label("Status")
+    int status;
+
+    @Label("Bytes In")
+    @DataAmount
+    long bytesIn;
+
+    @Label("Bytes Out")
+    @DataAmount
+    long bytesOut;
+
+    @Label("Total")
+    @Timespan
+    long total;
+
+    @Label("Read")
+    @Timespan
+    long read;
+
+    @Label("Parse")
+    @Timespan
+    long parse;
+
+    @Label("CGI Queue")
+    @Timespan
+    long queue;
+
+    @Label("Handle")
+    @Timespan
+    long handle;
+
+    @Label("Write")
+    @Timespan
+    long write;
+}
@@ -0,0 +1,97 @@
+package src;
+
+import src.connection.Connection;
+
+/**
+ * Splits a request into phases using the timestamps its Connection takes on
+ * the way through the loop: read (first byte to complete request), parse,
+ * queue (waiting for a CGI slot), handle (routing, disk or the CGI run) and
+ * write. Every request feeds the phase histograms; JFR events, the
+ * Server-Timing header and the slow-request log cost nothing unless enabled.
+ */
+final class RequestTiming {
+
+    private RequestTiming() {}
+
+    static void record(Connection conn, long now) {
+        long start  = conn.getRequestStartNanos();
+        long read   = conn.getRequestReadNanos();
+        long parsed = conn.getRequestParsedNanos();
+        long cgi    = conn.getCgiStartNanos();
+        long ready  = conn.getResponseReadyNanos();
+
+        long total       = start > 0 ? now - start : 0;
+        long readNanos   = start > 0 && read > 0 ? read - start : 0;
+        long parseNanos  = read > 0 && parsed > 0 ? parsed - read : 0;
+        long queueNanos  = parsed > 0 && cgi > 0 ? cgi - parsed : 0;
+        long handleNanos = parsed > 0 ? ready - (cgi > 0 ? cgi : parsed) : 0;
+        long writeNanos  = now - ready;
+
+        if (readNanos > 0) Metrics.recordPhase(Metrics.Phase.READ, readNanos);
+        if (parsed > 0) {
+            Metrics.recordPhase(Metrics.Phase.PARSE, parseNanos);
+            if (cgi > 0) Metrics.recordPhase(Metrics.Phase.QUEUE, queueNanos);
+            Metrics.recordPhase(Metrics.Phase.HANDLE, handleNanos);
+        }
+        Metrics.recordPhase(Metrics.Phase.WRITE, writeNanos);
+
+        RequestEvent event = new RequestEvent();
+        if (event.shouldCommit()) {
+            event.method   = conn.getMethod();
+            event.target   = conn.getTarget();
+            event.route    = conn.getRouteLabel();
+            event.status   = conn.getResponseStatus();
+            event.bytesIn  = conn.getBytesIn();
+            event.bytesOut = conn.getBytesOut();
+            event.total    = total;
+            event.read     = readNanos;
+            event.parse    = parseNanos;
+            event.queue    = queueNanos;
+            event.handle   = handleNanos;
+            event.write    = writeNanos;
+            event.commit();
+        }
+
+        long slowMs = conn.getConfig().getSlowRequestMs();
+        if (slowMs > 0 && total >= slowMs * 1_000_000) {
+            StringBuilder sb = new StringBuilder(160).append("[SLOW] ")
+                    .append(conn.getMethod()).append(' ').append(conn.getTarget()).append(' ')
+                    .append(conn.getResponseStatus()).append(' ');
+            millis(sb, total).append("ms read=");
+            millis(sb, readNanos).append(" parse=");
+            millis(sb, parseNanos).append(" queue=");
+            millis(sb, queueNanos).append(" handle=");
+            millis(sb, handleNanos).append(" write=");
+            millis(sb, writeNanos);
+            System.err.println(sb);
+        }
+    }
+
+    // Value for the Server-Timing header, taken as the response is queued, so
+    // the write phase is not part of it.
+    static String serverTiming(Connection conn, long now) {
+        long read   = conn.getRequestReadNanos();
+        long parsed = conn.getRequestParsedNanos();
+        long cgi    = conn.getCgiStartNanos();
+
+        StringBuilder sb = new StringBuilder(80);
+        if (conn.getRequestStartNanos() > 0 && read > 0)
+            millis(sb.append("read;dur="), read - conn.getRequestStartNanos()).append(", ");
+        if (parsed > 0) {
+            millis(sb.append("parse;dur="), parsed - read).append(", ");
+            if (cgi > 0) millis(sb.append("queue;dur="), cgi - parsed).append(", ");
+            millis(sb.append("handle;dur="), now - (cgi > 0 ? cgi : parsed)).append(", ");
+        }
+        return sb.length() == 0 ? null : sb.substring(0, sb.length() - 2);
+    }
+
+    // Milliseconds with microsecond precision, without String.format.
+    private static StringBuilder millis(StringBuilder sb, long nanos) {
+        long micros = Math.max(nanos, 0) / 1000;
+        sb.append(micros / 1000).append('.');
+        long frac = micros % 1000;
+        if (frac < 100) sb.append('0');
+        if (frac < 10) sb.append('0');
+        return sb.append(frac);
+    }
+}
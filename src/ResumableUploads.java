@@ -0,0 +1,380 @@
+package src;
+
+import src.http.HttpRequest;
+import src.http.HttpResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resumable uploads on an upload route that allows PATCH, following the tus
+ * 1.0 core protocol and its creation and termination extensions:
+ *
+ *   POST   /uploads                  Upload-Length, Upload-Metadata  -> 201, Location
+ *   HEAD   /uploads/.partial/&lt;id&gt;                                   -> Upload-Offset
+ *   PATCH  /uploads/.partial/&lt;id&gt;    Upload-Offset, bytes            -> 204, new Upload-Offset
+ *   DELETE /uploads/.partial/&lt;id&gt;                                   -> 204
+ *
+ * Each upload is a file of its full length in uploads/.partial, written at
+ * the offsets the client sends, with a small .info file next to it that
+ * records the offset reached. Data is forced to disk before the offset is
+ * advanced, so after a restart HEAD never reports bytes that were lost.
+ * The last PATCH moves the file into the upload store under the name
+ * &lt;id&gt;_&lt;filename&gt;. Uploads with no PATCH for a day are removed by
+ * the server's periodic cleanup, or when another upload is created.
+ *
+ * A PATCH body is only written once it has been received in full, so a
+ * connection dropped mid-request loses that request's bytes; clients
+ * should send chunks well under client_max_body_size.
+ *
+ * PATCH requests are routed on a disk worker (see Server), so writing,
+ * forcing and hashing never hold up the event loop. The shared lock is only
+ * held to look uploads up and to move their offsets; an upload a PATCH is
+ * working on is busy, and another PATCH or a DELETE for it gets 423. Creating
+ * an upload counts the bytes every unfinished upload still has to write
+ * against the free disk space, since the sparse files reserve none.
+ */
+final class ResumableUploads {
+
+    static final String TUS_VERSION = "1.0.0";
+    private static final long EXPIRY_MS = 24L * 60 * 60 * 1000;
+    private static final int  COPY_BUFFER = 64 * 1024;
+
+    private static final class Upload {
+        final String id;
+        final long   length;
+        final String filename;
+        final String contentType;
+        long offset;
+        long updatedAt;
+        boolean busy;
+        // SHA-256 of bytes [0, offset); lost on restart, then the file is read again at the end.
+        MessageDigest digest;
+
+        Upload(String id, long length, String filename, String contentType) {
+            this.id = id;
+            this.length = length;
+            this.filename = filename;
+            this.contentType = contentType;
+        }
+    }
+
+    private static final Map<String, Upload> uploads = new HashMap<>();
+    private static final LongAdder received = new LongAdder();
+    private static Path partial;
+
+    static {
+        Metrics.gauge("resumable_uploads_active", "Resumable uploads started and not yet finished.", () -> {
+            synchronized (uploads) {
+                return uploads.size();
+            }
+        });
+        Metrics.counter("resumable_upload_bytes_total", "Bytes written by resumable upload PATCH requests.",
+                received::sum);
+    }
+
+    private ResumableUploads() {}
+
+    // True for requests this class answers on a route that allows PATCH.
+    static boolean handles(String path, Config.Route route, HttpRequest request) {
+        if (!route.allows("PATCH")) return false;
+        String method = request.getMethod();
+        if (path.startsWith(prefix(route))) {
+            return method.equals("HEAD") || method.equals("PATCH") || method.equals("DELETE");
+        }
+        return method.equals("POST") && request.getHeader("Upload-Length") != null;
+    }
+
+    static HttpResponse handle(String path, Config.Route route, HttpRequest request, Config config)
+            throws IOException {
+        Upload upload;
+        synchronized (uploads) {
+            load();
+            if (!path.startsWith(prefix(route))) return create(route, request, config);
+            upload = uploads.get(path.substring(prefix(route).length()));
+            if (upload == null) return tus(404, "Not Found");
+            if (request.getMethod().equals("HEAD")) return head(upload);
+            if (upload.busy) return tus(423, "Locked");
+            if (request.getMethod().equals("DELETE")) return terminate(upload);
+            upload.busy = true;
+        }
+        try {
+            return patch(upload, route, request);
+        } finally {
+            synchronized (uploads) {
+                upload.busy = false;
+            }
+        }
+    }
+
+    private static String prefix(Config.Route route) {
+        String base = route.getPath().endsWith("/") ? route.getPath() : route.getPath() + "/";
+        return base + UploadStore.PARTIAL + "/";
+    }
+
+    private static HttpResponse create(Config.Route route, HttpRequest request, Config config)
+            throws IOException {
+        long length;
+        try {
+            length = Long.parseLong(request.getHeader("Upload-Length").trim());
+        } catch (NumberFormatException e) {
+            return tus(400, "Bad Request");
+        }
+        if (length < 0) return tus(400, "Bad Request");
+        if (length > config.getUploadMaxSize()) return tus(413, "Payload Too Large");
+
+        expire();
+        long outstanding = 0;
+        for (Upload other : uploads.values()) outstanding += other.length - other.offset;
+        if (Files.getFileStore(partial).getUsableSpace() - outstanding < length) {
+            return tus(507, "Insufficient Storage");
+        }
+
+        Map<String, String> metadata = metadata(request.getHeader("Upload-Metadata"));
+        String filename = Router.sanitizeFilename(metadata.get("filename"));
+        if (filename.isEmpty()) filename = "unnamed";
+        String contentType = metadata.getOrDefault("filetype", "application/octet-stream");
+        Upload upload = new Upload(UUID.randomUUID().toString(), length, filename, contentType);
+        upload.digest = sha256();
+        upload.updatedAt = System.currentTimeMillis();
+
+        // Sized up front so the writes land at their offsets; sparse until they do.
+        try (RandomAccessFile file = new RandomAccessFile(dataPath(upload).toFile(), "rw")) {
+            file.setLength(length);
+        }
+        saveInfo(upload);
+        uploads.put(upload.id, upload);
+
+        HttpResponse response = tus(201, "Created");
+        response.addHeader("Location", prefix(route) + upload.id);
+        response.addHeader("Upload-Offset", "0");
+        if (length == 0) return finish(upload, route, response);
+        return response;
+    }
+
+    private static HttpResponse head(Upload upload) {
+        HttpResponse response = tus(200, "OK");
+        response.addHeader("Upload-Offset", Long.toString(upload.offset));
+        response.addHeader("Upload-Length", Long.toString(upload.length));
+        return response;
+    }
+
+    private static HttpResponse patch(Upload upload, Config.Route route, HttpRequest request)
+            throws IOException {
+        String type = request.getHeader("Content-Type");
+        if (type == null || !type.startsWith("application/offset+octet-stream")) {
+            return tus(415, "Unsupported Media Type");
+        }
+        long offset;
+        long bytes;
+        try {
+            offset = Long.parseLong(request.getHeader("Upload-Offset").trim());
+            bytes = Long.parseLong(request.getHeader("Content-Length").trim());
+        } catch (NumberFormatException | NullPointerException e) {
+            return tus(400, "Bad Request");
+        }
+        if (offset != upload.offset) {
+            HttpResponse response = tus(409, "Conflict");
+            response.addHeader("Upload-Offset", Long.toString(upload.offset));
+            return response;
+        }
+        if (bytes < 0 || offset + bytes > upload.length) return tus(400, "Bad Request");
+
+        byte[] buffer = new byte[(int) Math.min(COPY_BUFFER, Math.max(bytes, 1))];
+        long position = offset;
+        try (InputStream in = request.openBodyStream();
+             FileChannel out = FileChannel.open(dataPath(upload), StandardOpenOption.WRITE)) {
+            int n;
+            while (position < offset + bytes
+                    && (n = in.read(buffer, 0, (int) Math.min(buffer.length, offset + bytes - position))) > 0) {
+                ByteBuffer src = ByteBuffer.wrap(buffer, 0, n);
+                long at = position;
+                while (src.hasRemaining()) at += out.write(src, at);
+                if (upload.digest != null) upload.digest.update(buffer, 0, n);
+                position += n;
+            }
+            out.force(false);
+        } catch (IOException e) {
+            upload.digest = null; // it may have seen bytes the offset won't count
+            throw e;
+        }
+        received.add(position - offset);
+        synchronized (uploads) {
+            upload.offset = position;
+            upload.updatedAt = System.currentTimeMillis();
+        }
+        saveInfo(upload);
+
+        HttpResponse response = tus(204, "No Content");
+        response.addHeader("Upload-Offset", Long.toString(upload.offset));
+        if (upload.offset == upload.length) return finish(upload, route, response);
+        return response;
+    }
+
+    private static HttpResponse terminate(Upload upload) throws IOException {
+        remove(upload);
+        return tus(204, "No Content");
+    }
+
+    // Hands a complete upload to the upload store and points the client at the file.
+    private static HttpResponse finish(Upload upload, Config.Route route, HttpResponse response)
+            throws IOException {
+        Path data = dataPath(upload);
+        String sha256 = upload.digest != null
+                ? HexFormat.of().formatHex(upload.digest.digest()) : hash(data);
+        String name = upload.id + "_" + upload.filename;
+        UploadStore.forDirectory(Router.UPLOADS).commit(name, data, sha256, upload.contentType);
+        synchronized (uploads) {
+            remove(upload);
+        }
+        String base = route.getPath().endsWith("/") ? route.getPath() : route.getPath() + "/";
+        response.addHeader("Content-Location", base + name);
+        System.out.println("[UPLOADS] Resumable upload " + upload.id + " finished as " + name);
+        return response;
+    }
+
+    private static void remove(Upload upload) throws IOException {
+        uploads.remove(upload.id);
+        Files.deleteIfExists(dataPath(upload));
+        Files.deleteIfExists(infoPath(upload.id));
+    }
+
+    private static String hash(Path file) throws IOException {
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[COPY_BUFFER];
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) digest.update(buffer, 0, n);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // "key base64value,key base64value", as tus sends it.
+    private static Map<String, String> metadata(String header) {
+        Map<String, String> metadata = new HashMap<>();
+        if (header == null) return metadata;
+        for (String pair : header.split(",")) {
+            String[] kv = pair.trim().split(" ", 2);
+            if (kv[0].isEmpty()) continue;
+            try {
+                metadata.put(kv[0], kv.length < 2 ? ""
+                        : new String(Base64.getDecoder().decode(kv[1].trim()), StandardCharsets.UTF_8));
+            } catch (IllegalArgumentException ignored) {
+                // not base64; skip the key
+            }
+        }
+        return metadata;
+    }
+
+    private static HttpResponse tus(int status, String reason) {
+        HttpResponse response = new HttpResponse(status, reason);
+        response.addHeader("Tus-Resumable", TUS_VERSION);
+        response.addHeader("Cache-Control", "no-store");
+        return response;
+    }
+
+    private static Path dataPath(Upload upload) {
+        return partial.resolve(upload.id);
+    }
+
+    private static Path infoPath(String id) {
+        return partial.resolve(id + ".info");
+    }
+
+    // length, offset, last update, filename, content type; replaced whole so it is never half written.
+    private static void saveInfo(Upload upload) throws IOException {
+        String info = upload.length + "\t" + upload.offset + "\t" + upload.updatedAt + "\t" + upload.filename
+                + "\t" + upload.contentType.replaceAll("[\\t\\r\\n]", " ") + "\n";
+        Path tmp = partial.resolve(upload.id + ".info.tmp");
+        Files.writeString(tmp, info, StandardCharsets.UTF_8);
+        Files.move(tmp, infoPath(upload.id), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Picks up the uploads left by an earlier run, once.
+    private static void load() throws IOException {
+        if (partial != null) return;
+        Path dir = Router.UPLOADS.resolve(UploadStore.PARTIAL).toAbsolutePath();
+        Files.createDirectories(dir);
+        partial = dir;
+        int resumed = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.info")) {
+            for (Path info : files) {
+                String id = info.getFileName().toString().replace(".info", "");
+                String[] f = Files.readString(info, StandardCharsets.UTF_8).trim().split("\t", -1);
+                try {
+                    Upload upload = new Upload(id, Long.parseLong(f[0]), f[3], f[4]);
+                    upload.offset = Long.parseLong(f[1]);
+                    upload.updatedAt = Long.parseLong(f[2]);
+                    if (Files.exists(dataPath(upload))) {
+                        uploads.put(id, upload);
+                        resumed++;
+                        continue;
+                    }
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    // unreadable; dropped below
+                }
+                Files.deleteIfExists(info);
+            }
+        }
+        // data without an info file, and info files caught mid-replace
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (!uploads.containsKey(name.replace(".info", ""))) Files.deleteIfExists(file);
+            }
+        }
+        if (resumed > 0) System.out.println("[UPLOADS] " + resumed + " unfinished resumable uploads can be resumed");
+        expire();
+    }
+
+    // Run from the server's periodic cleanup, so idle uploads go even when no new one is created.
+    static void removeExpired() {
+        synchronized (uploads) {
+            if (partial == null && !Files.isDirectory(Router.UPLOADS.resolve(UploadStore.PARTIAL))) return;
+            try {
+                load();
+                expire();
+            } catch (IOException e) {
+                System.err.println("[UPLOADS] Could not remove expired uploads: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void expire() throws IOException {
+        long cutoff = System.currentTimeMillis() - EXPIRY_MS;
+        for (Iterator<Upload> it = uploads.values().iterator(); it.hasNext(); ) {
+            Upload upload = it.next();
+            if (upload.busy || upload.updatedAt >= cutoff) continue;
+            it.remove();
+            Files.deleteIfExists(dataPath(upload));
+            Files.deleteIfExists(infoPath(upload.id));
+            System.out.println("[UPLOADS] Removed resumable upload " + upload.id + ", idle for a day");
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // required of every JRE
+        }
+    }
+}
@@ -5,27 +5,24 @@ import src.http.HttpResponse;
 import src.http.MimeTypes;
 import src.http.MultipartParser;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import src.http.Session;
-import java.io.InputStream;
 
 public class Router {
-    
+
+    // Where handlePost saves uploaded files, relative to the working directory.
+    static final Path UPLOADS = Path.of("uploads");
 
     public static HttpResponse route(HttpRequest request, Config config) {
     try {
         String method = request.getMethod();
-        String path = request.getPath().split("\\?")[0];
-
-        System.out.println("[REQUEST] " + method + " " + path);
+        String path = request.getPath();
 
         if (path.equals("/login")) {
             return handleLogin(request, config);
@@ -36,6 +33,14 @@ public class Router {
         if (path.equals("/logout")) {
             return handleLogout(request, config);
         }
+        if (path.equals(config.getMetricsPath()) && method.equals("GET")) {
+            return Metrics.response();
+        }
+        if (path.equals(config.getStatusPath()) && method.equals("GET")) {
+            String accept = request.getHeader("Accept");
+            return Status.response("json".equals(request.getQueryParams().get("format"))
+                    || (accept != null && accept.contains("application/json")));
+        }
 
         Config.Route route = findRoute(path, config);
         if (route == null) {
@@ -46,8 +51,7 @@ public class Router {
             return error404(config);
         }
 
-        if (!route.getAllowedMethods().isEmpty() &&
-            !route.getAllowedMethods().contains(method)) {
+        if (!route.allows(method)) {
             return error405(config);
         }
 
@@ -55,9 +59,13 @@ public class Router {
             return redirect(route.getRedirect());
         }
 
+        if (ResumableUploads.handles(path, route, request)) {
+            return ResumableUploads.handle(path, route, request, config);
+        }
+
         switch (method) {
             case "GET":
-                return handleGet(path, route, config);
+                return handleGet(path, route, request, config);
             case "POST":
                 return handlePost(path, route, request, config);
             case "DELETE":
@@ -72,6 +80,16 @@ public class Router {
     }
 }
 
+    // Label for per-route metrics: the built-in page or the matched route's path.
+    public static String routeLabel(String path, Config config) {
+        if (path.equals("/login") || path.equals("/dashboard") || path.equals("/logout")
+                || path.equals(config.getMetricsPath()) || path.equals(config.getStatusPath())) {
+            return path;
+        }
+        Config.Route route = findRoute(path, config);
+        return route != null ? route.getPath() : "unmatched";
+    }
+
     private static Config.Route findRoute(String requestPath, Config config) {
         Config.Route bestMatch = null;
         int longestMatch = 0;
@@ -91,32 +109,26 @@ public class Router {
     }
     
 
-    private static HttpResponse handleGet(String requestPath, Config.Route route, Config config) {
+    private static HttpResponse handleGet(String requestPath, Config.Route route, HttpRequest request,
+                                          Config config) {
         try {
-            String root = route.getRoot();
-            if (root == null) {
-                root = ".";
-            }
-            
-            String routePath = route.getPath();
-            String relativePath = requestPath;
-            if (requestPath.startsWith(routePath) && !routePath.equals("/")) {
-                relativePath = requestPath.substring(routePath.length());
-            }
-            
-            Path filePath = Paths.get(root, relativePath).normalize();
-            File file = filePath.toFile();
-            
-            if (!filePath.startsWith(Paths.get(root).normalize())) {
+            Path filePath = resolve(requestPath, route);
+            if (filePath == null) {
                 return error403(config);
             }
+            File file = filePath.toFile();
             
-            if (!file.exists()) {
+            if (!file.exists() || UploadStore.isInternal(route.getRootPath().relativize(filePath))) {
                 return error404(config);
             }
             
             if (file.isDirectory()) {
-                return handleDirectory(file, route, config);
+                String accept = request.getHeader("Accept");
+                if ("json".equals(request.getQueryParams().get("format"))
+                        || (accept != null && accept.contains("application/json"))) {
+                    return listUploads(filePath, route, request, config);
+                }
+                return handleDirectory(file, requestPath, route, config);
             }
             
             return serveFile(file);
@@ -128,7 +140,73 @@ public class Router {
     }
     
 
-    private static HttpResponse handleDirectory(File dir, Config.Route route, Config config) {
+    // Maps a request path onto the route's root, or null if it escapes it.
+    private static Path resolve(String requestPath, Config.Route route) {
+        String routePath = route.getPath();
+        int start = requestPath.startsWith(routePath) && !routePath.equals("/")
+                ? routePath.length() : 0;
+        while (start < requestPath.length() && requestPath.charAt(start) == '/') start++;
+        
+        Path root = route.getRootPath();
+        Path filePath = root.resolve(requestPath.substring(start)).normalize();
+        return filePath.startsWith(root) ? filePath : null;
+    }
+    
+
+    /**
+     * One page of an upload directory's index as JSON. Query parameters:
+     * limit (1-1000, default 100), cursor (next_cursor of the previous page),
+     * prefix, sort (name, size or modified) and order (asc or desc).
+     */
+    private static HttpResponse listUploads(Path dir, Config.Route route, HttpRequest request,
+                                            Config config) throws IOException {
+        if (!route.isDirectoryListing()) {
+            return error403(config);
+        }
+        UploadStore store = dir.toAbsolutePath().normalize().equals(UPLOADS.toAbsolutePath().normalize())
+                ? UploadStore.forDirectory(dir) : UploadStore.find(dir);
+        if (store == null) {
+            return error404(config);
+        }
+
+        Map<String, String> params = request.getQueryParams();
+        UploadStore.Page page;
+        try {
+            int limit = Integer.parseInt(params.getOrDefault("limit", "100"));
+            if (limit < 1 || limit > 1000) throw new IllegalArgumentException("limit out of range");
+            UploadStore.Sort sort = UploadStore.Sort.valueOf(
+                    params.getOrDefault("sort", "name").toUpperCase(java.util.Locale.ROOT));
+            page = store.list(sort, "desc".equals(params.get("order")), params.get("prefix"),
+                    params.get("cursor"), limit);
+        } catch (IllegalArgumentException e) {
+            return loadErrorPage(400, "Bad Request", config);
+        }
+
+        StringBuilder sb = new StringBuilder(128 + page.entries().size() * 160);
+        JsonWriter json = new JsonWriter(sb);
+        json.beginObject().name("total").value(page.total()).name("files").beginArray();
+        for (UploadStore.Entry e : page.entries()) {
+            json.beginObject()
+                .name("name").value(e.getName())
+                .name("label").value(e.getLabel())
+                .name("size").value(e.getSize())
+                .name("modified").value(e.getModified())
+                .name("content_type").value(e.getContentType())
+                .endObject();
+        }
+        json.endArray();
+        if (page.nextCursor() != null) json.name("next_cursor").value(page.nextCursor());
+        json.endObject();
+
+        HttpResponse response = new HttpResponse(200, "OK");
+        response.addHeader("Content-Type", "application/json; charset=UTF-8");
+        response.addHeader("Cache-Control", "no-store");
+        response.setBody(sb.toString());
+        return response;
+    }
+
+    private static HttpResponse handleDirectory(File dir, String requestPath, Config.Route route,
+                                                Config config) {
         try {
             String defaultFile = route.getDefaultFile();
             if (defaultFile != null) {
@@ -139,7 +217,7 @@ public class Router {
             }
             
             if (route.isDirectoryListing()) {
-                return generateDirectoryListing(dir);
+                return DirectoryListing.response(dir.toPath(), requestPath, route.isDirectoryListingDetails());
             }
             
             return error403(config);
@@ -163,35 +241,6 @@ public class Router {
     }
     
 
-private static HttpResponse generateDirectoryListing(File dir) {
-    StringBuilder html = new StringBuilder();
-    html.append("<​!DOCTYPE html>");
-    html.append("<​html>");
-    html.append("<head><title>Index of ").append(dir.getName()).append("</title></head>");
-    html.append("<​body>");
-    html.append("<h1>Index of /").append(dir.getName()).append("<​/h1>");
-    html.append("<​hr>");
-    html.append("<​ul>");
-    
-    File[] files = dir.listFiles();
-    if (files != null) {
-        for (File file : files) {
-            String name = file.getName();
-            if (file.isDirectory()) {
-                name += "/";
-            }
-            html.append("<li><a href=\"").append(name).append("\">")
-                .append(name).append("</a></li>");
-        }
-    }
-    
-    html.append("<​/ul>");
-    html.append("<​hr>");
-    html.append("<​/body>");
-    html.append("<​/html>");
-    
-    return HttpResponse.ok(html.toString());
-}
  private static HttpResponse handlePost(String path, Config.Route route, 
                                       HttpRequest request, Config config) {
     try {
@@ -205,7 +254,7 @@ private static HttpResponse generateDirectoryListing(File dir) {
         List<String> uploadedFiles = new ArrayList<>();
         
         if (parts != null && !parts.isEmpty()) {
-            File uploadsDir = new File("uploads");
+            File uploadsDir = UPLOADS.toFile();
             if (!uploadsDir.exists()) {
                 uploadsDir.mkdirs();
             }
@@ -213,24 +262,15 @@ private static HttpResponse generateDirectoryListing(File dir) {
             for (MultipartParser.Part part : parts) {
                 if (part.isFile()) {
                 
-                    if (part.getTempFile() == null || part.getTempFile().length() == 0) {
+                    if (part.getFile() == null || part.getSize() == 0) {
                         continue;
                     }
                 
                     String filename = sanitizeFilename(part.getFilename());
                     String uniqueFilename = java.util.UUID.randomUUID() + "_" + filename;
                 
-                    File uploadFile = new File(uploadsDir, uniqueFilename);
-                
-                    try (InputStream in = part.getInputStream();
-                         FileOutputStream fos = new FileOutputStream(uploadFile)) {
-                
-                        byte[] buffer = new byte[8192];
-                        int read;
-                        while ((read = in.read(buffer)) != -1) {
-                            fos.write(buffer, 0, read);
-                        }
-                    }
+                    UploadStore.forDirectory(uploadsDir.toPath()).store(uniqueFilename,
+                            part.getFile(), part.getSha256(), part.getContentType());
                 
                     uploadedFiles.add(uniqueFilename);
                 }
@@ -241,51 +281,46 @@ private static HttpResponse generateDirectoryListing(File dir) {
         
         // Load and populate the upload success template
         try {
-            File templateFile = new File("www/upload-success.html");
-            String html = new String(Files.readAllBytes(templateFile.toPath()), StandardCharsets.UTF_8);
-            
-            // Replace upload path
-            html = html.replace("{{uploadPath}}", path);
-            
-            // Build files section
-            StringBuilder filesSection = new StringBuilder();
-            if (!uploadedFiles.isEmpty()) {
-                filesSection.append("<h2 class=\"section-title\">📁 Uploaded Files</h2>");
-                filesSection.append("<ul class=\"file-list\">");
-                for (String filename : uploadedFiles) {
-                    filesSection.append("<li class=\"file-item\">")
-                              .append("<span class=\"file-icon\">📄</span>")
-                              .append("<a href=\"/uploads/").append(filename).append("\" target=\"_blank\" class=\"file-link\">")
-                              .append(filename)
-                              .append("</a>")
-                              .append("</li>");
+            Template.Fragment filesSection = out -> {
+                if (!uploadedFiles.isEmpty()) {
+                    out.raw("<h2 class=\"section-title\">📁 Uploaded Files</h2>");
+                    out.raw("<ul class=\"file-list\">");
+                    for (String filename : uploadedFiles) {
+                        out.raw("<li class=\"file-item\">")
+                           .raw("<span class=\"file-icon\">📄</span>")
+                           .raw("<a href=\"/uploads/").text(filename).raw("\" target=\"_blank\" class=\"file-link\">")
+                           .text(filename)
+                           .raw("</a>")
+                           .raw("</li>");
+                    }
+                    out.raw("</ul>");
+                } else {
+                    out.raw("<div class=\"empty-state\">No files were uploaded</div>");
                 }
-                filesSection.append("</ul>");
-            } else {
-                filesSection.append("<div class=\"empty-state\">No files were uploaded</div>");
-            }
-            html = html.replace("{{filesSection}}", filesSection.toString());
+            };
             
-            // Build form data section
-            StringBuilder formDataSection = new StringBuilder();
-            if (!formData.isEmpty()) {
-                formDataSection.append("<h2 class=\"section-title\">📋 Form Data</h2>");
-                formDataSection.append("<ul class=\"data-list\">");
-                for (Map.Entry<String, String> entry : formData.entrySet()) {
-                    formDataSection.append("<li class=\"data-item\">")
-                                 .append("<span class=\"data-key\">").append(entry.getKey()).append(":</span>")
-                                 .append("<span class=\"data-value\">").append(entry.getValue()).append("</span>")
-                                 .append("</li>");
+            Template.Fragment formDataSection = out -> {
+                if (!formData.isEmpty()) {
+                    out.raw("<h2 class=\"section-title\">📋 Form Data</h2>");
+                    out.raw("<ul class=\"data-list\">");
+                    for (Map.Entry<String, String> entry : formData.entrySet()) {
+                        out.raw("<li class=\"data-item\">")
+                           .raw("<span class=\"data-key\">").text(entry.getKey()).raw(":</span>")
+                           .raw("<span class=\"data-value\">").text(entry.getValue()).raw("</span>")
+                           .raw("</li>");
+                    }
+                    out.raw("</ul>");
                 }
-                formDataSection.append("</ul>");
-            } else {
-                formDataSection.append("");
-            }
-            html = html.replace("{{formDataSection}}", formDataSection.toString());
+            };
+            
+            byte[] html = Template.load("www/upload-success.html").render(Map.of(
+                    "uploadPath", path,
+                    "filesSection", filesSection,
+                    "formDataSection", formDataSection));
             
             HttpResponse response = new HttpResponse(200, "OK");
             response.addHeader("Content-Type", "text/html; charset=UTF-8");
-            response.setBody(html.getBytes(StandardCharsets.UTF_8));
+            response.setBody(html);
             return response;
             
         } catch (Exception e) {
@@ -305,7 +340,7 @@ private static HttpResponse generateDirectoryListing(File dir) {
 
     
 
-    private static String sanitizeFilename(String filename) {
+    static String sanitizeFilename(String filename) {
         if (filename == null) return "unnamed";
         
         filename = filename.replaceAll("[/\\\\]", "_");
@@ -323,25 +358,13 @@ private static HttpResponse generateDirectoryListing(File dir) {
 private static HttpResponse handleDelete(String path, Config.Route route, Config config) {
     try {
         
-        String root = route.getRoot();
-        if (root == null) {
-            root = ".";
-        }
-        
-        String routePath = route.getPath();
-        String relativePath = path;
-        if (path.startsWith(routePath) && !routePath.equals("/")) {
-            relativePath = path.substring(routePath.length());
-        }
-        
-        Path filePath = Paths.get(root, relativePath).normalize();
-        File file = filePath.toFile();
-        
-        if (!filePath.startsWith(Paths.get(root).normalize())) {
+        Path filePath = resolve(path, route);
+        if (filePath == null) {
             return error403(config);
         }
+        File file = filePath.toFile();
         
-        if (!file.exists()) {
+        if (!file.exists() || UploadStore.isInternal(route.getRootPath().relativize(filePath))) {
             return error404(config);
         }
         
@@ -349,7 +372,8 @@ private static HttpResponse handleDelete(String path, Config.Route route, Config
             return error403(config);
         }
         
-        boolean deleted = file.delete();
+        UploadStore store = UploadStore.find(filePath.getParent());
+        boolean deleted = store != null && store.delete(file.getName()) || file.delete();
         
         if (deleted) {
             
@@ -396,33 +420,7 @@ private static HttpResponse handleDelete(String path, Config.Route route, Config
     }
     
 private static HttpResponse loadErrorPage(int statusCode, String reasonPhrase, Config config) {
-    try {
-        String errorPagePath = config.getErrorPages().get(statusCode);
-        if (errorPagePath != null) {
-            File errorFile = new File(errorPagePath);
-            if (errorFile.exists()) {
-                byte[] content = Files.readAllBytes(errorFile.toPath());
-                HttpResponse response = new HttpResponse(statusCode, reasonPhrase);
-                response.addHeader("Content-Type", "text/html; charset=UTF-8");
-                response.setBody(content);
-                return response;
-            }
-        }
-    } catch (Exception e) {
-    }
-    
-    String html = "<​!DOCTYPE html>" +
-                 "<​html>" +
-                 "<head><title>" + statusCode + " " + reasonPhrase + "</title></head>" +
-                 "<​body>" +
-                 "<​h1>" + statusCode + " " + reasonPhrase + "<​/h1>" +
-                 "<​/body>" +
-                 "<​/html>";
-    
-    HttpResponse response = new HttpResponse(statusCode, reasonPhrase);
-    response.addHeader("Content-Type", "text/html; charset=UTF-8");
-    response.setBody(html);
-    return response;
+    return config.getErrorResponses().response(statusCode, reasonPhrase);
 }
 
 
@@ -435,6 +433,7 @@ private static HttpResponse handleLogin(HttpRequest request, Config config) {
         
         if (session != null && session.hasAttribute("username")) {
             HttpResponse response = new HttpResponse(302, "Found");
+            if (session.refreshesCookie()) response.addSessionCookie("SESSIONID", session.getId());
             response.addHeader("Location", "/dashboard");
             response.setBody("Already logged in. Redirecting...");
             System.out.println("[LOGIN] User already logged in, redirecting to dashboard");
@@ -510,26 +509,26 @@ private static HttpResponse handleDashboard(HttpRequest request, Config config)
         long loginTime = (Long) session.getAttribute("loginTime");
         long sessionAge = (System.currentTimeMillis() - loginTime) / 1000;
         
-        StringBuilder sessionData = new StringBuilder();
-        for (Map.Entry<String, Object> entry : session.getAttributes().entrySet()) {
-            sessionData.append("<li><strong>")
-                      .append(entry.getKey())
-                      .append(":</strong> ")
-                      .append(entry.getValue())
-                      .append("<​/li>");
-        }
-        
-        File templateFile = new File("www/dashboard.html");
-        String html = new String(Files.readAllBytes(templateFile.toPath()), StandardCharsets.UTF_8);
+        Template.Fragment sessionData = out -> {
+            for (Map.Entry<String, Object> entry : session.getAttributes().entrySet()) {
+                out.raw("<li><strong>")
+                   .text(entry.getKey())
+                   .raw(":</strong> ")
+                   .text(entry.getValue())
+                   .raw("</li>");
+            }
+        };
         
-        html = html.replace("{{username}}", username);
-        html = html.replace("{{sessionId}}", session.getId());
-        html = html.replace("{{sessionAge}}", String.valueOf(sessionAge));
-        html = html.replace("{{sessionData}}", sessionData.toString());
+        byte[] html = Template.load("www/dashboard.html").render(Map.of(
+                "username", username,
+                "sessionId", session.getId(),
+                "sessionAge", sessionAge,
+                "sessionData", sessionData));
         
         HttpResponse response = new HttpResponse(200, "OK");
         response.addHeader("Content-Type", "text/html; charset=UTF-8");
-        response.setBody(html.getBytes(StandardCharsets.UTF_8));
+        if (session.refreshesCookie()) response.addSessionCookie("SESSIONID", session.getId());
+        response.setBody(html);
         return response;
         
     } catch (Exception e) {
@@ -1,10 +1,18 @@
 package src;
 
-import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
+import java.net.StandardSocketOptions;
 import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import src.connection.Connection;
 import src.http.*;
@@ -12,85 +20,503 @@ import src.http.*;
 public class Server {
 
     private final Selector selector;
-    private final List<Config> configs;
+    private final String configPath;
+    private List<Config> configs;
 
+    private final Map<String, SelectionKey> listeners = new HashMap<>();
     private final Map<SocketChannel, Connection> connections = new HashMap<>();
-    private final Map<SocketChannel, CgiProcess> activeCgiProcesses = new HashMap<>();
+    private final Map<CgiScheduler.Pending, CgiProcess> activeCgiProcesses = new HashMap<>();
+    private final CgiScheduler cgiScheduler = new CgiScheduler();
+    private final Map<Config, CgiCache> cgiCaches = new HashMap<>();
+
+    // Requests whose handling waits on the disk (resumable upload PATCHes:
+    // writes, fsync, hashing) are routed here and answered once done.
+    private static final int DISK_WORKERS = 2;
+    private final ExecutorService diskWorkers = Executors.newFixedThreadPool(DISK_WORKERS, r -> {
+        Thread thread = new Thread(r, "disk-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<SocketChannel, Future<HttpResponse>> diskJobs = new HashMap<>();
 
     private long lastSessionCleanup = System.currentTimeMillis();
     private static final long SESSION_CLEANUP_INTERVAL = 5 * 60 * 1000;
 
-    public Server(List<Config> configs) throws Exception {
+    private volatile boolean reloadRequested = false;
+    private volatile boolean handoffRequested = false;
+    private volatile boolean drainRequested = false;
+    private volatile boolean forceRequested = false;
+    private boolean draining = false;
+    private long drainDeadline;
+    private long configModifiedAt;
+    private long lastConfigCheck = System.currentTimeMillis();
+    private static final long CONFIG_CHECK_INTERVAL = 1000;
+    private long lastStatusPublish;
+    private static final long STATUS_INTERVAL = 1000;
+
+    public Server(List<Config> configs, String configPath) throws Exception {
         this.configs = configs;
+        this.configPath = configPath;
+        this.configModifiedAt = configModifiedAt();
         this.selector = Selector.open();
         initServers();
+        applyBufferBudget();
+        Spool.configure(configs.get(0).getSpoolDir(), configs.get(0).getSpoolMaxBytes());
+        // Loaded now rather than on the first upload so the listing and the watcher are ready.
+        if (Files.isDirectory(Router.UPLOADS)) UploadStore.forDirectory(Router.UPLOADS);
+
+        Metrics.gauge("http_connections_active", "Open client connections.", connections::size);
+        Metrics.gauge("cgi_processes_running", "CGI processes currently running.",
+                activeCgiProcesses::size);
+        Metrics.gauge("cgi_jobs_queued", "CGI requests waiting for a free slot.",
+                cgiScheduler::getQueuedCount);
+        Metrics.gauge("sessions_active", "Sessions held by the session store.",
+                Session::getSessionCount);
+        Metrics.gauge("spool_bytes", "Disk reserved by request temp files.", Spool::getUsedBytes);
+        Metrics.gauge("spool_files", "Request temp files in use.", Spool::getOpenFiles);
+        Metrics.counter("spool_quota_rejections_total",
+                "Temp files refused because spool_max_bytes was reached.", Spool::getRejections);
+    }
+
+    // Process-wide and safe to change at any time, so reloads apply it too.
+    private void applyBufferBudget() {
+        Config first = configs.get(0);
+        RequestBuffers.configure(first.getRequestBufferBudget(), first.getRequestSpillThreshold());
     }
 
     private void initServers() throws Exception {
+        for (Map.Entry<String, Config> e : listenersFor(configs).entrySet()) {
+            listeners.put(e.getKey(), bind(e.getKey(), e.getValue()));
+        }
+    }
+
+    // Bind address ("host:port") of every listener, mapped to its server block.
+    private static Map<String, Config> listenersFor(List<Config> configs) {
+        Map<String, Config> result = new LinkedHashMap<>();
         for (Config config : configs) {
             List<String> hosts = config.getHosts();
             if (hosts == null || hosts.isEmpty()) hosts = List.of("0.0.0.0");
 
             for (String host : hosts) {
+                String bindHost = (host == null || host.isEmpty()) ? "0.0.0.0" : host;
                 for (int port : config.getPorts()) {
-                    ServerSocketChannel server = ServerSocketChannel.open();
-                    server.configureBlocking(false);
+                    result.put(bindHost + ":" + port, config);
+                }
+            }
+        }
+        return result;
+    }
 
-                    String bindHost = (host == null || host.isEmpty()) ? "0.0.0.0" : host;
-                    java.net.InetAddress addr = java.net.InetAddress.getByName(bindHost);
-                    server.bind(new InetSocketAddress(addr, port));
-                    server.register(selector, SelectionKey.OP_ACCEPT, config);
+    private SelectionKey bind(String address, Config config) throws IOException {
+        int colon = address.lastIndexOf(':');
+        java.net.InetAddress addr = java.net.InetAddress.getByName(address.substring(0, colon));
+        int port = Integer.parseInt(address.substring(colon + 1));
 
-                    System.out.println("Listening on " + bindHost + ":" + port);
-                }
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.configureBlocking(false);
+            if (config.isReusePort()) server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            server.bind(new InetSocketAddress(addr, port));
+            SelectionKey key = server.register(selector, SelectionKey.OP_ACCEPT, config);
+            System.out.println("Listening on " + address);
+            return key;
+        } catch (IOException e) {
+            server.close();
+            throw new IOException("Cannot listen on " + address + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static void closeListener(SelectionKey key) {
+        key.cancel();
+        try { key.channel().close(); } catch (IOException ignored) {}
+    }
+
+    // Safe to call from any thread, e.g. a signal handler.
+    public void requestReload() {
+        reloadRequested = true;
+        selector.wakeup();
+    }
+
+    private void checkReload() {
+        long now = System.currentTimeMillis();
+        if (now - lastConfigCheck > CONFIG_CHECK_INTERVAL) {
+            lastConfigCheck = now;
+            long modifiedAt = configModifiedAt();
+            if (modifiedAt != configModifiedAt) {
+                configModifiedAt = modifiedAt;
+                reloadRequested = true;
+            }
+        }
+        if (!reloadRequested || draining) return;
+        reloadRequested = false;
+        reload();
+    }
+
+    /*
+     * New listeners are bound before anything else changes, so a config that
+     * cannot be applied leaves the running one untouched. Listeners that stay
+     * get the new Config attached; open connections keep the Config of their
+     * current request and pick up the new one on their next keep-alive
+     * request. Removed listeners stop accepting, but their connections are
+     * left to finish.
+     */
+    private void reload() {
+        configModifiedAt = configModifiedAt();
+        List<Config> fresh;
+        try {
+            fresh = ConfigLoader.load(configPath);
+        } catch (Exception e) {
+            System.err.println("[RELOAD] Keeping current config, " + configPath + " is invalid: "
+                    + e.getMessage());
+            return;
+        }
+
+        Map<String, Config> wanted = listenersFor(fresh);
+        Map<String, SelectionKey> added = new HashMap<>();
+        try {
+            for (Map.Entry<String, Config> e : wanted.entrySet()) {
+                if (!listeners.containsKey(e.getKey()))
+                    added.put(e.getKey(), bind(e.getKey(), e.getValue()));
             }
+        } catch (IOException e) {
+            for (SelectionKey key : added.values()) closeListener(key);
+            System.err.println("[RELOAD] Keeping current config: " + e.getMessage());
+            return;
+        }
+
+        Iterator<Map.Entry<String, SelectionKey>> it = listeners.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, SelectionKey> e = it.next();
+            Config config = wanted.get(e.getKey());
+            if (config != null) {
+                e.getValue().attach(config);
+            } else {
+                closeListener(e.getValue());
+                it.remove();
+                System.out.println("Stopped listening on " + e.getKey());
+            }
+        }
+        listeners.putAll(added);
+
+        Config before = configs.get(0);
+        Config after = fresh.get(0);
+        if (!before.getSessionStore().equals(after.getSessionStore())
+                || !before.getSessionStorePath().equals(after.getSessionStorePath())
+                || !before.getSessionKeys().equals(after.getSessionKeys())
+                || before.isSessionEncrypt() != after.isSessionEncrypt()) {
+            System.err.println("[RELOAD] Session store settings changed; they apply after a restart");
+        }
+        if (!Objects.equals(before.getAccessLog(), after.getAccessLog())
+                || !before.getAccessLogFormat().equals(after.getAccessLogFormat())) {
+            System.err.println("[RELOAD] Access log settings changed; they apply after a restart");
+        }
+        if (!Objects.equals(before.getCaptureFile(), after.getCaptureFile())
+                || before.getCaptureSampleRate() != after.getCaptureSampleRate()
+                || before.getCaptureMaxBody() != after.getCaptureMaxBody()) {
+            System.err.println("[RELOAD] Capture settings changed; they apply after a restart");
+        }
+
+        if (!before.getSpoolDir().equals(after.getSpoolDir())) {
+            System.err.println("[RELOAD] spool_dir changed; it applies after a restart");
+        }
+
+        configs = fresh;
+        applyBufferBudget();
+        Spool.setMaxBytes(after.getSpoolMaxBytes());
+        retireCgiCaches();
+        System.out.println("[RELOAD] Applied " + configPath + ": " + fresh.size()
+                + " servers, " + listeners.size() + " listeners");
+    }
+
+    // Caches of replaced server blocks go once no request is waiting on them.
+    private void retireCgiCaches() {
+        cgiCaches.entrySet().removeIf(e -> !configs.contains(e.getKey()) && !e.getValue().hasInFlight());
+    }
+
+    private long configModifiedAt() {
+        try {
+            return Files.getLastModifiedTime(Paths.get(configPath)).toMillis();
+        } catch (IOException e) {
+            return configModifiedAt;
         }
     }
 
     public void start() {
-        while (true) {
+        while (!draining || !(drained() || forceRequested
+                || System.currentTimeMillis() >= drainDeadline)) {
             try {
                 selector.select(10);
 
                 tickCgiProcesses();
+                tickDiskJobs();
+                dispatchQueuedCgi();
                 handleKeys();
                 cleanupTimeouts();
                 cleanupSessions();
+                checkReload();
+                checkSignals();
+                publishStatus();
             } catch (Exception e) {
                 System.err.println("[ERROR] Event loop: " + e.getMessage());
             }
         }
+
+        forceClose();
+        try { selector.close(); } catch (IOException ignored) {}
+        System.out.println("[SHUTDOWN] Exiting");
+    }
+
+    public void requestHandoff() {
+        handoffRequested = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Starts a graceful shutdown: stop accepting, finish what is in flight and
+     * return from start() once drained or after shutdown_timeout_ms. Calling it
+     * again while draining skips the wait. Safe to call from any thread.
+     */
+    public void shutdown() {
+        if (drainRequested) forceRequested = true;
+        drainRequested = true;
+        selector.wakeup();
+    }
+
+    private void checkSignals() {
+        if (drainRequested && !draining) beginDrain();
+        if (!handoffRequested) return;
+        handoffRequested = false;
+
+        if (draining) return;
+        if (!configs.get(0).isReusePort()) {
+            System.err.println("[HANDOFF] Set \"reuse_port\": true in " + configPath
+                    + " (and restart once) to enable handoff");
+            return;
+        }
+        Handoff.launchSuccessor();
+    }
+
+    /*
+     * Stops accepting and lets open connections finish: idle keep-alive
+     * connections are closed now, busy ones after their current response.
+     * Connections already queued on a listener are accepted first, since
+     * closing a listener resets whatever is still in its backlog.
+     */
+    private void beginDrain() {
+        draining = true;
+        drainDeadline = System.currentTimeMillis() + configs.get(0).getShutdownTimeoutMs();
+        for (SelectionKey key : listeners.values()) {
+            try {
+                while (acceptOne(key)) {}
+            } catch (IOException e) {
+                System.err.println("[SHUTDOWN] Accept failed while draining: " + e.getMessage());
+            }
+            closeListener(key);
+        }
+        listeners.clear();
+
+        // Release the session log for a successor; sessions stay readable here.
+        Session.closeStore();
+
+        for (SocketChannel client : new ArrayList<>(connections.keySet())) {
+            if (connections.get(client).isIdle()) close(client);
+        }
+        System.out.println("[SHUTDOWN] Stopped accepting, draining " + connections.size()
+                + " connections");
+    }
+
+    // Whatever is still running at the deadline is cut off: connections are
+    // closed (removing their spilled bodies) and CGI processes killed.
+    private void forceClose() {
+        if (drained()) return;
+        System.out.println("[SHUTDOWN] Closing " + connections.size() + " connections and "
+                + activeCgiProcesses.size() + " CGI processes still running");
+        for (SocketChannel client : new ArrayList<>(connections.keySet())) close(client);
+        for (CgiProcess cgi : activeCgiProcesses.values()) cgi.destroy();
+        activeCgiProcesses.clear();
+    }
+
+    private boolean drained() {
+        return connections.isEmpty() && activeCgiProcesses.isEmpty()
+                && cgiScheduler.getQueuedCount() == 0 && diskJobs.isEmpty();
     }
 
     private void tickCgiProcesses() {
-        Iterator<Map.Entry<SocketChannel, CgiProcess>> it = activeCgiProcesses.entrySet().iterator();
+        Iterator<Map.Entry<CgiScheduler.Pending, CgiProcess>> it = activeCgiProcesses.entrySet().iterator();
         while (it.hasNext()) {
-            Map.Entry<SocketChannel, CgiProcess> entry = it.next();
-            SocketChannel client = entry.getKey();
+            Map.Entry<CgiScheduler.Pending, CgiProcess> entry = it.next();
+            CgiScheduler.Pending job = entry.getKey();
             CgiProcess cgi = entry.getValue();
 
             cgi.tick();
 
             if (cgi.isDone() || cgi.isError() || cgi.isTimeout()) {
                 it.remove();
+                Metrics.recordCgi(cgi.isDone(), cgi.isTimeout());
+                long now = System.currentTimeMillis();
+                cgiScheduler.complete(job, cgi.isDone(), now);
+
+                if (job.getCacheKey() != null) {
+                    CgiCache cache = cgiCacheFor(job.getConfig());
+                    if (cgi.isDone()) cache.store(job.getCacheKey(), cgi, now);
+                    for (SocketChannel waiter : cache.finishFlight(job.getCacheKey()))
+                        respond(waiter, cgiResult(cgi, job.getConfig()));
+                    continue;
+                }
 
-                Connection conn = connections.get(client);
-                if (conn == null) { cgi.destroy(); continue; }
+                if (!connections.containsKey(job.getClient())) { cgi.destroy(); continue; }
+                respond(job.getClient(), cgiResult(cgi, job.getConfig()));
+            }
+        }
+    }
 
-                HttpResponse res;
-                if (cgi.isDone()) res = cgi.buildResponse();
-                else if (cgi.isTimeout()) res = createErrorResponse(504, "CGI Timeout");
-                else res = createErrorResponse(500, "CGI Error");
+    private void routeOnDiskWorker(SocketChannel client, HttpRequest req, Config config, InputStream body) {
+        diskJobs.put(client, diskWorkers.submit(() -> {
+            try (body) {
+                req.parseBody();
+                return Router.route(req, config);
+            } finally {
+                selector.wakeup();
+            }
+        }));
+    }
 
-                prepareResponse(conn, res);
+    private void tickDiskJobs() {
+        Iterator<Map.Entry<SocketChannel, Future<HttpResponse>>> it = diskJobs.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<SocketChannel, Future<HttpResponse>> entry = it.next();
+            if (!entry.getValue().isDone()) continue;
+            it.remove();
+
+            Connection conn = connections.get(entry.getKey());
+            if (conn == null) continue;
+            HttpResponse res;
+            try {
+                res = entry.getValue().get();
+            } catch (ExecutionException | InterruptedException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                System.err.println("[ERROR] Request failed on disk worker: " + cause.getMessage());
+                res = createErrorResponse(conn.getConfig(), 500, "Internal Server Error");
+            }
+            respond(entry.getKey(), res);
+        }
+    }
 
-                SelectionKey key = client.keyFor(selector);
-                if (key != null && key.isValid())
-                    key.interestOps(SelectionKey.OP_WRITE);
+    private HttpResponse cgiResult(CgiProcess cgi, Config config) {
+        if (cgi.isDone()) return cgi.buildResponse();
+        if (cgi.isTimeout()) return createErrorResponse(config, 504, "CGI Timeout");
+        return createErrorResponse(config, 500, "CGI Error");
+    }
+
+    private void dispatchQueuedCgi() {
+        long now = System.currentTimeMillis();
+
+        for (CgiScheduler.Pending p : cgiScheduler.expireQueued(now)) {
+            failCgiJob(p, unavailable(p.getConfig(), "CGI Queue Timeout"));
+        }
+
+        CgiScheduler.Pending p;
+        while ((p = cgiScheduler.poll()) != null) {
+            SocketChannel client = p.getClient();
+            try {
+                CgiProcess cgi;
+                if (client == null) {
+                    cgi = new CgiProcess(p.getRequest(), p.getConfig(), null, 0);
+                } else {
+                    Connection conn = connections.get(client);
+                    if (conn == null) { cgiScheduler.cancel(client); continue; }
+                    cgi = new CgiProcess(p.getRequest(), p.getConfig(),
+                            conn.openBodyStream(), conn.getBodyLength());
+                    conn.markCgiStarted();
+                }
+                activeCgiProcesses.put(p, cgi);
+            } catch (Exception e) {
+                cgiScheduler.complete(p, false, now);
+                failCgiJob(p, createErrorResponse(p.getConfig(), 500, "CGI Failed to Start"));
             }
         }
     }
 
+    private void handleCgiRequest(SocketChannel client, HttpRequest req,
+                                  Config config, Config.Route route) {
+        long now = System.currentTimeMillis();
+
+        // A request for a script that cannot run is answered here and never counts against a breaker.
+        String script;
+        try {
+            script = CgiProcess.resolveScript(req, config).getPath();
+        } catch (FileNotFoundException e) {
+            respond(client, createErrorResponse(config, 404, "Not Found"));
+            return;
+        } catch (SecurityException e) {
+            respond(client, createErrorResponse(config, 403, "Forbidden"));
+            return;
+        } catch (IOException e) {
+            respond(client, createErrorResponse(config, 500, "Internal Server Error"));
+            return;
+        }
+
+        if (!CgiCache.isCacheable(req, route)) {
+            if (!cgiScheduler.offer(client, req, config, route, script, now))
+                respond(client, unavailable(config, "CGI Rejected " + req.getPath()));
+            return;
+        }
+
+        CgiCache cache = cgiCacheFor(config);
+        String cacheKey = CgiCache.keyFor(req, route);
+        CgiCache.Entry entry = cache.get(cacheKey, now);
+
+        if (entry != null) {
+            respond(client, entry.toResponse(now));
+            if (!entry.isFresh(now) && !cache.isInFlight(cacheKey)
+                    && cgiScheduler.offerShared(cacheKey, req, config, route, script, now))
+                cache.beginFlight(cacheKey, null);
+            return;
+        }
+
+        if (cache.isInFlight(cacheKey)) {
+            cache.joinFlight(cacheKey, client);
+            return;
+        }
+
+        if (!cgiScheduler.offerShared(cacheKey, req, config, route, script, now)) {
+            respond(client, unavailable(config, "CGI Rejected " + req.getPath()));
+            return;
+        }
+        cache.beginFlight(cacheKey, client);
+    }
+
+    private CgiCache cgiCacheFor(Config config) {
+        return cgiCaches.computeIfAbsent(config, c -> new CgiCache(c.getCgiCacheMaxEntries()));
+    }
+
+    private void failCgiJob(CgiScheduler.Pending p, HttpResponse res) {
+        if (p.getCacheKey() == null) {
+            respond(p.getClient(), res);
+            return;
+        }
+        for (SocketChannel waiter : cgiCacheFor(p.getConfig()).finishFlight(p.getCacheKey()))
+            respond(waiter, res);
+    }
+
+    private HttpResponse unavailable(Config config, String reason) {
+        System.err.println("[CGI] 503 " + reason);
+        HttpResponse res = createErrorResponse(config, 503, "Service Unavailable");
+        res.addHeader("Retry-After", "5");
+        return res;
+    }
+
+    private void respond(SocketChannel client, HttpResponse res) {
+        Connection conn = connections.get(client);
+        if (conn == null) return;
+
+        prepareResponse(conn, res);
+
+        SelectionKey key = client.keyFor(selector);
+        if (key != null && key.isValid())
+            key.interestOps(SelectionKey.OP_WRITE);
+    }
+
     private void handleKeys() throws Exception {
         Iterator<SelectionKey> it = selector.selectedKeys().iterator();
         while (it.hasNext()) {
@@ -106,55 +532,67 @@ public class Server {
     }
 
     private void accept(SelectionKey key) throws Exception {
+        acceptOne(key);
+    }
+
+    private boolean acceptOne(SelectionKey key) throws IOException {
         ServerSocketChannel server = (ServerSocketChannel) key.channel();
         Config config = (Config) key.attachment();
 
         SocketChannel client = server.accept();
-        if (client == null) return;
+        if (client == null) return false;
 
         client.configureBlocking(false);
 
-        client.register(selector, SelectionKey.OP_READ, config);
+        // the listener key, so keep-alive requests can pick up a reloaded config
+        client.register(selector, SelectionKey.OP_READ, key);
         connections.put(client, new Connection(client, config));
+        return true;
     }
 
     private void read(SelectionKey key) {
         SocketChannel client = (SocketChannel) key.channel();
         Connection conn = connections.get(client);
-        Config config = (Config) key.attachment();
 
-        if (conn == null || config == null) { close(client); return; }
+        if (conn == null) { close(client); return; }
 
         try {
-            conn.read();
+            if (!conn.read()) { close(client); return; }
             
             if (!conn.isRequestComplete()) return;
+            conn.markRequestRead();
+
+            // Route with the listener's current config; once the listener is
+            // gone after a reload, stay on the one the connection has.
+            SelectionKey listener = (SelectionKey) key.attachment();
+            if (listener.isValid()) conn.setConfig((Config) listener.attachment());
+            Config config = conn.getConfig();
             
             if (conn.isContentLengthTooLarge() || conn.getContentLength() > config.getClientBodySizeLimit()) {
+                  // the body is left unread, so the connection cannot carry another request
+                  conn.setKeepAlive(false);
                   sendErrorAndWrite(key, client, conn, 413, "Payload Too Large");
                   return;
             }
             
             key.interestOps(0);
             
-            System.err.println("[ERROR----------------------------]");
-            HttpRequest req = RequestParser.parse(conn.getBuffer());
-            // req.setBody(conn.getBuffer().array());
-            // req.parseBody();
-            ByteBuffer buffer = conn.getBuffer();
-            byte[] bodyData = new byte[buffer.remaining()];
-            buffer.get(bodyData);
-            req.setBody(bodyData);
-            req.parseBody();
+            HttpRequest req = RequestParser.parseHead(conn.getHeaderBuffer());
             determineKeepAlive(conn, req);
-            if (isCgiRequest(req, config)) {
-                try {
-                    CgiProcess cgi = new CgiProcess(req, config);
-                    activeCgiProcesses.put(client, cgi);
-                } catch (Exception e) {
-                    sendErrorAndWrite(key, client, conn, 500, "CGI Failed to Start");
-                }
+            Config.Route cgiRoute = findCgiRoute(req, config);
+            if (cgiRoute != null) {
+                conn.markRequestParsed(cgiRoute.getPath(), req);
+                handleCgiRequest(client, req, config, cgiRoute);
+            } else if ("PATCH".equals(req.getMethod()) || conn.isSpilled()) {
+                // resumable upload chunks and spilled bodies are read from the read buffer or spool file
+                // as they are, on a disk worker; the stream is opened here so the spool file outlives the connection
+                InputStream body = conn.openBodyStream();
+                req.setBodyStream(() -> body);
+                conn.markRequestParsed(Router.routeLabel(req.getPath(), config), req);
+                routeOnDiskWorker(client, req, config, body);
             } else {
+                req = RequestParser.parse(conn.getBuffer());
+                conn.markRequestParsed(Router.routeLabel(req.getPath(), config), req);
                 HttpResponse res = Router.route(req, config);
                 prepareResponse(conn, res);
                 key.interestOps(SelectionKey.OP_WRITE);
@@ -164,6 +602,12 @@ public class Server {
            String msg = e.getMessage();
            if (msg != null && (msg.contains("Request too large"))) {
            sendErrorAndWrite(key, client, conn, 413, "Payload Too Large");
+        } else if (msg != null && msg.contains("Request buffer budget exhausted")) {
+             RequestBuffers.recordRefusal();
+             sendErrorAndWrite(key, client, conn, 503, "Service Unavailable");
+        } else if (msg != null && msg.contains("Spool quota exceeded")) {
+             System.err.println("[SPOOL] 503 for " + conn.getRemoteAddress() + ": spool_max_bytes reached");
+             sendErrorAndWrite(key, client, conn, 503, "Service Unavailable");
         } else {
              System.err.println("[ERROR] Failed to parse request: " + msg);
              sendErrorAndWrite(key, client, conn, 500, "Internal Server Error");
@@ -180,7 +624,8 @@ public class Server {
         try {
             conn.write();
             if (conn.isWriteComplete()) {
-            if (conn.isKeepAlive()) {
+            recordRequest(conn);
+            if (conn.isKeepAlive() && !draining) {
                 conn.resetForNextRequest();
                 key.interestOps(SelectionKey.OP_READ);
             } else {
@@ -192,18 +637,33 @@ public class Server {
         }
     }
 
-    private boolean isCgiRequest(HttpRequest req, Config config) {
-        String path = req.getPath().split("\\?")[0];
+    private static void recordRequest(Connection conn) {
+        long now = System.nanoTime();
+        long start = conn.getRequestStartNanos();
+        String route = conn.getRouteLabel() != null ? conn.getRouteLabel() : "unmatched";
+
+        Metrics.recordRequest(route, conn.getResponseStatus(), conn.getBytesIn(), conn.getBytesOut(),
+                start > 0 ? now - start : 0);
+        RequestTiming.record(conn, now);
+
+        AccessLog.record(conn.getRemoteAddress(), conn.getMethod(), conn.getTarget(),
+                conn.getProtocol(), conn.getResponseStatus(), conn.getBytesOut(),
+                start > 0 ? now - start : 0, conn.getReferer(), conn.getUserAgent());
+        Capture.record(conn, start > 0 ? now - start : 0);
+    }
+
+    private Config.Route findCgiRoute(HttpRequest req, Config config) {
+        String path = req.getPath();
         for (Config.Route route : config.getRoutes()) {
-            if (path.startsWith(route.getPath()) && route.isCgi()) return true;
+            if (path.startsWith(route.getPath()) && route.isCgi()) return route;
         }
-        return false;
+        return null;
     }
 
     private void sendErrorAndWrite(SelectionKey key, SocketChannel client,
                                    Connection conn, int code, String reason) {
         try {
-            conn.setResponse(createErrorResponse(code, reason));
+            conn.setResponse(createErrorResponse(conn.getConfig(), code, reason));
             key.interestOps(SelectionKey.OP_WRITE);
         } catch (Exception ex) {
             close(client);
@@ -212,14 +672,21 @@ public class Server {
 
     private void close(SocketChannel client) {
         try {
-            CgiProcess cgi = activeCgiProcesses.remove(client);
-            if (cgi != null) cgi.destroy();
+            cancelCgi(client);
 
-            connections.remove(client);
+            Connection conn = connections.remove(client);
+            if (conn != null) conn.release();
             client.close();
         } catch (Exception ignored) {}
     }
 
+    private void cancelCgi(SocketChannel client) {
+        CgiScheduler.Pending job = cgiScheduler.cancel(client);
+        if (job == null) return;
+        CgiProcess cgi = activeCgiProcesses.remove(job);
+        if (cgi != null) cgi.destroy();
+    }
+
     private void cleanupTimeouts() {
         long now = System.currentTimeMillis();
         Iterator<Map.Entry<SocketChannel, Connection>> it = connections.entrySet().iterator();
@@ -228,8 +695,8 @@ public class Server {
             Map.Entry<SocketChannel, Connection> entry = it.next();
             if (entry.getValue().isTimedOut(now)) {
                 SocketChannel ch = entry.getKey();
-                CgiProcess cgi = activeCgiProcesses.remove(ch);
-                if (cgi != null) cgi.destroy();
+                cancelCgi(ch);
+                entry.getValue().release();
                 try { ch.close(); } catch (Exception ignored) {}
                 it.remove();
             }
@@ -240,35 +707,49 @@ public class Server {
         long now = System.currentTimeMillis();
         if (now - lastSessionCleanup > SESSION_CLEANUP_INTERVAL) {
             Session.cleanupExpiredSessions();
+            ResumableUploads.removeExpired();
             lastSessionCleanup = now;
+            retireCgiCaches();
         }
     }
 
-    private HttpResponse createErrorResponse(int statusCode, String reason) {
-        try {
-            for (Config config : configs) {
-                String errorPagePath = config.getErrorPages().get(statusCode);
-                if (errorPagePath != null) {
-                    File errorFile = new File(errorPagePath);
-                    if (errorFile.exists()) {
-                        byte[] content = java.nio.file.Files.readAllBytes(errorFile.toPath());
-                        HttpResponse response = new HttpResponse(statusCode, reason);
-                        response.addHeader("Content-Type", "text/html; charset=UTF-8");
-                        response.setBody(content);
-                        return response;
-                    }
-                }
-            }
-        } catch (Exception e) {
-            System.err.println("[ERROR] Failed to load error page: " + e.getMessage());
+    // A copy for the status page, so serving it never walks the connection table.
+    private void publishStatus() {
+        long now = System.currentTimeMillis();
+        if (now - lastStatusPublish < STATUS_INTERVAL) return;
+        lastStatusPublish = now;
+
+        Status.Snapshot status = new Status.Snapshot(now);
+        Map<SelectionKey, String> addresses = new HashMap<>();
+        for (Map.Entry<String, SelectionKey> e : listeners.entrySet()) {
+            status.addListener(e.getKey());
+            addresses.put(e.getValue(), e.getKey());
         }
+        for (Map.Entry<SocketChannel, Connection> e : connections.entrySet()) {
+            SelectionKey key = e.getKey().keyFor(selector);
+            String address = key != null ? addresses.get(key.attachment()) : null;
+            status.addConnection(address != null ? address : "removed listeners", e.getValue());
+        }
+
+        for (Map.Entry<CgiScheduler.Pending, CgiProcess> e : activeCgiProcesses.entrySet()) {
+            status.addCgi(e.getKey().getScript(), e.getValue().getStartTime(),
+                    e.getKey().getClient() == null);
+        }
+        Map<Config, List<String>> servers = new LinkedHashMap<>();
+        for (Map.Entry<String, Config> e : listenersFor(configs).entrySet())
+            servers.computeIfAbsent(e.getValue(), c -> new ArrayList<>()).add(e.getKey());
+        for (Map.Entry<Config, List<String>> e : servers.entrySet()) {
+            status.addSlots(String.join(", ", e.getValue()),
+                    cgiScheduler.getRunningCount(e.getKey()), e.getKey().getCgiMaxConcurrent() > 0
+                            ? e.getKey().getCgiMaxConcurrent() : e.getKey().getCgiMaxConcurrentTotal());
+        }
+        status.setCgiQueued(cgiScheduler.getQueuedCount());
+        status.setSessions(Session.getSessionCount());
+        Status.publish(status);
+    }
 
-        String html = "<!DOCTYPE html><html><head><title>" + statusCode + " " + reason +
-                      "</title></head><body><h1>" + statusCode + " " + reason + "</h1></body></html>";
-        HttpResponse response = new HttpResponse(statusCode, reason);
-        response.addHeader("Content-Type", "text/html; charset=UTF-8");
-        response.setBody(html);
-        return response;
+    private HttpResponse createErrorResponse(Config config, int statusCode, String reason) {
+        return config.getErrorResponses().response(statusCode, reason);
     }
     private void determineKeepAlive(Connection conn, HttpRequest req) {
     String connectionHeader = req.getHeader("Connection");
@@ -286,14 +767,27 @@ public class Server {
         conn.setKeepAlive(keepAlive);
     }
     private void prepareResponse(Connection conn, HttpResponse res) {
+       if (draining) conn.setKeepAlive(false);
+       if (res.getBodySource() != null && !"HTTP/1.1".equals(conn.getProtocol())) {
+           // no chunked encoding before 1.1: the body ends when the connection does
+           conn.setKeepAlive(false);
+           res.removeHeader("Transfer-Encoding");
+       }
        if (conn.isKeepAlive()) {
            res.addHeader("Connection", "keep-alive");
         } else {
            res.addHeader("Connection", "close");
         }
 
-        res.addHeader("Content-Length",
-                  String.valueOf(res.getBodyLength()));
+        if (res.getBodySource() == null) {
+            res.addHeader("Content-Length",
+                      String.valueOf(res.getBodyLength()));
+        }
+
+        if (conn.getConfig().isServerTiming()) {
+            String timing = RequestTiming.serverTiming(conn, System.nanoTime());
+            if (timing != null) res.addHeader("Server-Timing", timing);
+        }
 
         conn.setResponse(res);
     }
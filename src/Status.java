@@ -0,0 +1,220 @@
+package src;
+
+import src.connection.Connection;
+import src.http.HttpResponse;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Live status page served at a server's status_path, as HTML or, with
+ * ?format=json or an Accept: application/json header, as JSON. The event
+ * loop publishes an immutable Snapshot about once a second; the page only
+ * renders the latest one, so polling it never walks the connection table
+ * and any thread can read it.
+ */
+public final class Status {
+
+    private static final long STARTED_AT = ManagementFactory.getRuntimeMXBean().getStartTime();
+
+    private static final class Listener {
+        final int[] states = new int[Connection.State.values().length];
+        long bufferedBytes;
+        long spilledBytes;
+    }
+
+    private record CgiJob(String script, long startedAt, boolean shared) {}
+
+    private record Slots(String server, int used, int limit) {}
+
+    public static final class Snapshot {
+        private final long takenAt;
+        private final Map<String, Listener> listeners = new LinkedHashMap<>();
+        private final List<CgiJob> cgi = new ArrayList<>();
+        private final List<Slots> slots = new ArrayList<>();
+        private int cgiQueued;
+        private int sessions;
+        private final long heapUsed;
+        private final long heapMax;
+        private final long requestBuffers;
+        private final long requestBufferBudget;
+
+        public Snapshot(long takenAt) {
+            this.takenAt = takenAt;
+            Runtime rt = Runtime.getRuntime();
+            this.heapUsed = rt.totalMemory() - rt.freeMemory();
+            this.heapMax = rt.maxMemory();
+            this.requestBuffers = RequestBuffers.getUsed();
+            this.requestBufferBudget = RequestBuffers.getBudget();
+        }
+
+        // Listeners are listed even without connections, in the order added.
+        public void addListener(String address) {
+            listeners.computeIfAbsent(address, a -> new Listener());
+        }
+
+        public void addConnection(String listener, Connection conn) {
+            Listener l = listeners.computeIfAbsent(listener, a -> new Listener());
+            l.states[conn.getState().ordinal()]++;
+            l.bufferedBytes += conn.getBufferedBytes();
+            l.spilledBytes += conn.getSpilledBytes();
+        }
+
+        public void addCgi(String script, long startedAt, boolean shared) {
+            cgi.add(new CgiJob(script, startedAt, shared));
+        }
+
+        public void addSlots(String server, int used, int limit) {
+            slots.add(new Slots(server, used, limit));
+        }
+
+        public void setCgiQueued(int cgiQueued) { this.cgiQueued = cgiQueued; }
+        public void setSessions(int sessions)   { this.sessions = sessions; }
+    }
+
+    private static volatile Snapshot current;
+
+    private Status() {}
+
+    public static void publish(Snapshot snapshot) {
+        current = snapshot;
+    }
+
+    public static HttpResponse response(boolean json) {
+        Snapshot s = current;
+        if (s == null) s = new Snapshot(System.currentTimeMillis());
+        HttpResponse response = new HttpResponse(200, "OK");
+        response.addHeader("Cache-Control", "no-store");
+        if (json) {
+            response.addHeader("Content-Type", "application/json; charset=UTF-8");
+            response.setBody(json(s));
+        } else {
+            response.addHeader("Content-Type", "text/html; charset=UTF-8");
+            response.setBody(html(s));
+        }
+        return response;
+    }
+
+    static String json(Snapshot s) {
+        StringBuilder sb = new StringBuilder(2048);
+        try {
+            JsonWriter json = new JsonWriter(sb);
+            json.beginObject()
+                .name("taken_at").value(s.takenAt)
+                .name("uptime_ms").value(s.takenAt - STARTED_AT);
+
+            json.name("listeners").beginObject();
+            for (Map.Entry<String, Listener> e : s.listeners.entrySet()) {
+                Listener l = e.getValue();
+                json.name(e.getKey()).beginObject();
+                for (Connection.State state : Connection.State.values())
+                    json.name(state.name().toLowerCase()).value(l.states[state.ordinal()]);
+                json.name("buffered_bytes").value(l.bufferedBytes)
+                    .name("spilled_bytes").value(l.spilledBytes)
+                    .endObject();
+            }
+            json.endObject();
+
+            json.name("cgi").beginObject()
+                .name("running").value(s.cgi.size())
+                .name("queued").value(s.cgiQueued);
+            json.name("slots").beginArray();
+            for (Slots slots : s.slots) {
+                json.beginObject()
+                    .name("server").value(slots.server())
+                    .name("used").value(slots.used())
+                    .name("limit").value(slots.limit())
+                    .endObject();
+            }
+            json.endArray();
+            json.name("processes").beginArray();
+            for (CgiJob job : s.cgi) {
+                json.beginObject()
+                    .name("script").value(job.script())
+                    .name("age_ms").value(s.takenAt - job.startedAt())
+                    .name("shared").value(job.shared())
+                    .endObject();
+            }
+            json.endArray().endObject();
+
+            json.name("sessions").value(s.sessions)
+                .name("heap_used_bytes").value(s.heapUsed)
+                .name("heap_max_bytes").value(s.heapMax)
+                .name("request_buffer_bytes").value(s.requestBuffers)
+                .name("request_buffer_budget_bytes").value(s.requestBufferBudget)
+                .endObject();
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // StringBuilder does not throw
+        }
+        return sb.toString();
+    }
+
+    static String html(Snapshot s) {
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append("<!DOCTYPE html><html><head><meta charset=\"UTF-8\">")
+          .append("<meta http-equiv=\"refresh\" content=\"2\"><title>Server Status</title><style>")
+          .append("body{font-family:sans-serif;margin:2em}table{border-collapse:collapse;margin-bottom:1.5em}")
+          .append("th,td{border:1px solid #ccc;padding:4px 10px;text-align:right}th:first-child,td:first-child{text-align:left}")
+          .append("</style></head><body><h1>Server Status</h1>");
+        sb.append("<p>Up ").append(duration(s.takenAt - STARTED_AT))
+          .append(", heap ").append(bytes(s.heapUsed)).append(" of ").append(bytes(s.heapMax))
+          .append(", request buffers ").append(bytes(s.requestBuffers)).append(" of ")
+          .append(bytes(s.requestBufferBudget))
+          .append(", ").append(s.sessions).append(" sessions</p>");
+
+        sb.append("<h2>Connections</h2><table><tr><th>Listener</th>");
+        for (Connection.State state : Connection.State.values())
+            sb.append("<th>").append(state.name().toLowerCase()).append("</th>");
+        sb.append("<th>Buffered</th><th>Spilled</th></tr>");
+        for (Map.Entry<String, Listener> e : s.listeners.entrySet()) {
+            Listener l = e.getValue();
+            sb.append("<tr><td>").append(escape(e.getKey())).append("</td>");
+            for (int n : l.states) sb.append("<td>").append(n).append("</td>");
+            sb.append("<td>").append(bytes(l.bufferedBytes)).append("</td><td>")
+              .append(bytes(l.spilledBytes)).append("</td></tr>");
+        }
+        sb.append("</table>");
+
+        sb.append("<h2>CGI</h2><p>").append(s.cgi.size()).append(" running, ")
+          .append(s.cgiQueued).append(" queued</p><table><tr><th>Server</th><th>Slots used</th></tr>");
+        for (Slots slots : s.slots) {
+            sb.append("<tr><td>").append(escape(slots.server())).append("</td><td>")
+              .append(slots.used()).append(" / ").append(slots.limit()).append("</td></tr>");
+        }
+        sb.append("</table>");
+        if (!s.cgi.isEmpty()) {
+            sb.append("<table><tr><th>Script</th><th>Age</th></tr>");
+            for (CgiJob job : s.cgi) {
+                sb.append("<tr><td>").append(escape(job.script()))
+                  .append(job.shared() ? " (shared)" : "").append("</td><td>")
+                  .append(duration(s.takenAt - job.startedAt())).append("</td></tr>");
+            }
+            sb.append("</table>");
+        }
+        sb.append("</body></html>\n");
+        return sb.toString();
+    }
+
+    private static String bytes(long n) {
+        if (n < 1024) return n + " B";
+        if (n < 1024 * 1024) return String.format(Locale.ROOT, "%.1f KB", n / 1024.0);
+        if (n < 1024L * 1024 * 1024) return String.format(Locale.ROOT, "%.1f MB", n / (1024.0 * 1024));
+        return String.format(Locale.ROOT, "%.1f GB", n / (1024.0 * 1024 * 1024));
+    }
+
+    private static String duration(long ms) {
+        if (ms < 10_000) return ms + " ms";
+        long s = ms / 1000;
+        if (s < 3600) return (s / 60) + "m " + (s % 60) + "s";
+        return (s / 3600) + "h " + (s / 60 % 60) + "m";
+    }
+
+    private static String escape(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+}
@@ -0,0 +1,182 @@
+package src;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A page with {{name}} placeholders, split once into literal byte segments and
+ * placeholder names. Rendering walks the segments into a per-thread buffer;
+ * plain values are HTML-escaped, Fragment values write their own markup.
+ * Compiled templates are cached by path and recompiled when the file's mtime
+ * changes, checked at most once a second.
+ */
+public final class Template {
+
+    private static final long CHECK_INTERVAL_MS = 1000;
+    private static final int  MAX_POOLED_BUFFER = 1024 * 1024;
+
+    public interface Fragment {
+        void writeTo(Output out);
+    }
+
+    private static class Cached {
+        private final    Path     path;
+        private volatile Template template;
+        private volatile long     modifiedAt = -1;
+        private volatile long     checkedAt;
+
+        Cached(Path path) {
+            this.path = path;
+        }
+    }
+
+    private static final Map<Path, Cached>   cache   = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Output> buffers = ThreadLocal.withInitial(Output::new);
+
+    private final byte[][] literals;
+    private final String[] names;
+
+    private Template(byte[][] literals, String[] names) {
+        this.literals = literals;
+        this.names    = names;
+    }
+
+    public static Template load(String file) throws IOException {
+        Path path = Paths.get(file);
+        Cached cached = cache.computeIfAbsent(path, Cached::new);
+        long now = System.currentTimeMillis();
+        if (cached.template == null || now - cached.checkedAt > CHECK_INTERVAL_MS) {
+            synchronized (cached) {
+                if (cached.template == null || now - cached.checkedAt > CHECK_INTERVAL_MS) {
+                    long modifiedAt = Files.getLastModifiedTime(path).toMillis();
+                    if (modifiedAt != cached.modifiedAt) {
+                        cached.template = compile(Files.readString(path, StandardCharsets.UTF_8));
+                        cached.modifiedAt = modifiedAt;
+                    }
+                    cached.checkedAt = now;
+                }
+            }
+        }
+        return cached.template;
+    }
+
+    static Template compile(String source) {
+        List<byte[]> literals = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        int pos = 0;
+        while (true) {
+            int open = source.indexOf("{{", pos);
+            int close = open < 0 ? -1 : source.indexOf("}}", open + 2);
+            if (close < 0) break;
+            literals.add(source.substring(pos, open).getBytes(StandardCharsets.UTF_8));
+            names.add(source.substring(open + 2, close).trim());
+            pos = close + 2;
+        }
+        literals.add(source.substring(pos).getBytes(StandardCharsets.UTF_8));
+        return new Template(literals.toArray(new byte[0][]), names.toArray(new String[0]));
+    }
+
+    public byte[] render(Map<String, ?> values) {
+        Output out = buffers.get();
+        if (out.inUse) out = new Output();   // a fragment rendering another template
+        out.inUse = true;
+        try {
+            for (int i = 0; i < names.length; i++) {
+                out.write(literals[i]);
+                Object value = values.get(names[i]);
+                if (value instanceof Fragment) ((Fragment) value).writeTo(out);
+                else if (value != null) out.text(value);
+            }
+            out.write(literals[names.length]);
+            return out.toByteArray();
+        } finally {
+            out.reset();
+        }
+    }
+
+    public static final class Output {
+        private byte[]  buf = new byte[16 * 1024];
+        private int     len;
+        private boolean inUse;
+
+        public Output raw(String markup) {
+            for (int i = 0; i < markup.length(); i++) i = put(markup, i, markup.charAt(i));
+            return this;
+        }
+
+        public Output text(Object value) {
+            String s = String.valueOf(value);
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                switch (c) {
+                    case '&'  -> ascii("&amp;");
+                    case '<'  -> ascii("&lt;");
+                    case '>'  -> ascii("&gt;");
+                    case '"'  -> ascii("&quot;");
+                    case '\'' -> ascii("&#39;");
+                    default   -> i = put(s, i, c);
+                }
+            }
+            return this;
+        }
+
+        private void write(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, len, bytes.length);
+            len += bytes.length;
+        }
+
+        private void ascii(String s) {
+            ensure(s.length());
+            for (int i = 0; i < s.length(); i++) buf[len++] = (byte) s.charAt(i);
+        }
+
+        // UTF-8 encodes the char at i; returns the index of the last char consumed
+        private int put(String s, int i, char c) {
+            ensure(4);
+            if (c < 0x80) {
+                buf[len++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[len++] = (byte) (0xC0 | (c >> 6));
+                buf[len++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[len++] = (byte) (0xF0 | (cp >> 18));
+                buf[len++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[len++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[len++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buf[len++] = '?';
+            } else {
+                buf[len++] = (byte) (0xE0 | (c >> 12));
+                buf[len++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[len++] = (byte) (0x80 | (c & 0x3F));
+            }
+            return i;
+        }
+
+        private void ensure(int extra) {
+            if (len + extra > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(buf, len);
+        }
+
+        private void reset() {
+            len = 0;
+            inUse = false;
+            if (buf.length > MAX_POOLED_BUFFER) buf = new byte[16 * 1024];
+        }
+    }
+}
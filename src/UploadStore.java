@@ -0,0 +1,534 @@
+package src;
+
+import src.http.MimeTypes;
+import src.http.Spool;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Upload directory whose file contents are stored once per SHA-256, under
+ * .blobs/ab/cd/&lt;hash&gt;. Every uploaded name is a hard link to its blob (a
+ * copy where links aren't supported), so GET and directory listings see
+ * ordinary files. The .index file is an append-only log of added and removed
+ * names that is replayed at startup; it gives each blob a reference count,
+ * and a blob is deleted with its last name.
+ *
+ * Files that turn up in the directory by other means are added to the index
+ * without a blob, at startup and by a thread watching the directory, and
+ * names deleted behind the server's back are dropped. The index is kept
+ * sorted by name, size and modification time so a page of {@link #list} costs
+ * the same however many files there are.
+ */
+public final class UploadStore {
+
+    private static final String BLOBS = ".blobs";
+    private static final String INDEX = ".index";
+    static final String PARTIAL = ".partial";
+    private static final int    COMPACT_MIN_LINES = 1024;
+    private static final Pattern UUID_PREFIX =
+            Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}_.+");
+
+    private static final Map<Path, UploadStore> stores = new ConcurrentHashMap<>();
+    private static final AtomicLong deduplicated = new AtomicLong();
+    private static final AtomicLong sequence = new AtomicLong();
+
+    static {
+        Metrics.counter("upload_bytes_deduplicated_total",
+                "Uploaded bytes that matched a stored blob and took no extra disk.", deduplicated::get);
+        Metrics.gauge("upload_blobs", "Distinct upload contents on disk.", () -> {
+            long n = 0;
+            for (UploadStore store : stores.values()) n += store.blobCount();
+            return n;
+        });
+        Metrics.gauge("upload_files", "Names in upload indexes.", () -> {
+            long n = 0;
+            for (UploadStore store : stores.values()) n += store.size();
+            return n;
+        });
+    }
+
+    public static final class Entry {
+        private final String name;
+        private final String label;
+        private final String key;
+        private final String sha256;
+        private final long   size;
+        private final String contentType;
+        private final long   modified;
+
+        Entry(String name, String sha256, long size, String contentType, long modified) {
+            this(name, UUID_PREFIX.matcher(name).matches() ? name.substring(37) : name, null,
+                    sha256, size, contentType, modified);
+        }
+
+        // A position in the sort orders, for cursors and prefix ranges.
+        private Entry(String name, String key, long size, long modified) {
+            this(name, name, key, "", size, "", modified);
+        }
+
+        private Entry(String name, String label, String key, String sha256, long size, String contentType,
+                long modified) {
+            this.name = name;
+            this.label = label;
+            this.key = key != null ? key : label.toLowerCase(Locale.ROOT);
+            this.sha256 = sha256;
+            this.size = size;
+            this.contentType = contentType;
+            this.modified = modified;
+        }
+
+        public String getName()        { return name; }
+        // The name as uploaded, without the UUID the server put in front of it.
+        public String getLabel()       { return label; }
+        // Empty for files that were not uploaded through the server.
+        public String getSha256()      { return sha256; }
+        public long   getSize()        { return size; }
+        public String getContentType() { return contentType; }
+        public long   getModified()    { return modified; }
+    }
+
+    public enum Sort {
+        NAME(Comparator.comparing((Entry e) -> e.key)),
+        SIZE(Comparator.comparingLong((Entry e) -> e.size)),
+        MODIFIED(Comparator.comparingLong((Entry e) -> e.modified));
+
+        private final Comparator<Entry> order;
+
+        Sort(Comparator<Entry> order) {
+            this.order = order.thenComparing(e -> e.name);
+        }
+    }
+
+    public record Page(List<Entry> entries, int total, String nextCursor) {}
+
+    private final Path dir;
+    private final Path blobs;
+    private final Path index;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<Sort, TreeSet<Entry>> sorted = new HashMap<>();
+    private final Map<String, Integer> refs = new HashMap<>();
+    private int indexLines;
+    private WatchService watcher;
+
+    private UploadStore(Path dir) {
+        this.dir = dir;
+        this.blobs = dir.resolve(BLOBS);
+        this.index = dir.resolve(INDEX);
+        for (Sort sort : Sort.values()) sorted.put(sort, new TreeSet<>(sort.order));
+    }
+
+    public static UploadStore forDirectory(Path dir) throws IOException {
+        Path key = dir.toAbsolutePath().normalize();
+        UploadStore store = stores.get(key);
+        if (store != null) return store;
+        synchronized (stores) {
+            store = stores.get(key);
+            if (store == null) {
+                store = new UploadStore(key);
+                store.load();
+                store.watch();
+                stores.put(key, store);
+            }
+            return store;
+        }
+    }
+
+    // The store for a directory that already has an index, or null.
+    public static UploadStore find(Path dir) throws IOException {
+        Path key = dir.toAbsolutePath().normalize();
+        UploadStore store = stores.get(key);
+        if (store != null || !Files.exists(key.resolve(INDEX))) return store;
+        return forDirectory(key);
+    }
+
+    public static void closeAll() {
+        for (UploadStore store : stores.values()) {
+            try {
+                if (store.watcher != null) store.watcher.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    // True for the blob directory, the index and unfinished resumable uploads, which are not served or listed.
+    public static boolean isInternal(Path path) {
+        for (Path part : path) {
+            String name = part.toString();
+            if (name.equals(BLOBS) || name.equals(PARTIAL) || name.startsWith(INDEX)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds {@code name} with the contents of {@code file}, whose SHA-256 the
+     * caller computed while the bytes came in. Contents already stored are
+     * not written again.
+     */
+    public synchronized Entry store(String name, Spool.SpoolFile file, String sha256, String contentType)
+            throws IOException {
+        return put(name, sha256, file.size(), contentType, file::copyTo);
+    }
+
+    /**
+     * Adds {@code name} with the contents of {@code file}, a finished file
+     * on the same filesystem, which is moved into place as the blob. If the
+     * contents are already stored it is left where it is for the caller to
+     * delete.
+     */
+    public synchronized Entry commit(String name, Path file, String sha256, String contentType)
+            throws IOException {
+        return put(name, sha256, Files.size(file), contentType,
+                tmp -> Files.move(file, tmp, StandardCopyOption.ATOMIC_MOVE));
+    }
+
+    private interface BlobWriter {
+        void writeTo(Path tmp) throws IOException;
+    }
+
+    private Entry put(String name, String sha256, long size, String contentType, BlobWriter writer)
+            throws IOException {
+        if (entries.containsKey(name)) throw new FileAlreadyExistsException(name);
+        Path blob = blobPath(sha256);
+        if (refs.containsKey(sha256) && Files.exists(blob)) {
+            deduplicated.addAndGet(size);
+        } else {
+            Files.createDirectories(blob.getParent());
+            Path tmp = blobs.resolve("tmp-" + sequence.incrementAndGet());
+            try {
+                writer.writeTo(tmp);
+                Files.move(tmp, blob, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+
+        Path target = dir.resolve(name);
+        try {
+            Files.createLink(target, blob);
+        } catch (UnsupportedOperationException | IOException e) {
+            try {
+                Files.copy(blob, target);
+            } catch (IOException copyFailed) {
+                if (!refs.containsKey(sha256)) Files.deleteIfExists(blob);
+                throw copyFailed;
+            }
+        }
+
+        Entry entry = new Entry(name, sha256, size, clean(contentType), System.currentTimeMillis());
+        log(entry);
+        add(entry);
+        return entry;
+    }
+
+    // Removes a tracked name, and its blob if nothing else refers to it. False if not tracked.
+    public synchronized boolean delete(String name) throws IOException {
+        Entry entry = entries.get(name);
+        if (entry == null) return false;
+        Files.deleteIfExists(dir.resolve(name));
+        append("-\t" + name);
+        remove(entry);
+        if (indexLines > COMPACT_MIN_LINES && indexLines > 2 * entries.size()) compact();
+        return true;
+    }
+
+    public synchronized Entry get(String name) {
+        return entries.get(name);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized int blobCount() {
+        return refs.size();
+    }
+
+    /**
+     * Up to {@code limit} entries after {@code cursor} (the nextCursor of the
+     * previous page, or null for the first) in the given order. A non-empty
+     * {@code prefix} keeps names starting with it, ignoring case; in name order
+     * that is a range of the index, in the others the entries in between are
+     * skipped one by one.
+     */
+    public synchronized Page list(Sort sort, boolean descending, String prefix, String cursor, int limit) {
+        NavigableSet<Entry> set = sorted.get(sort);
+        String p = prefix == null ? "" : prefix.toLowerCase(Locale.ROOT);
+
+        Entry after = cursor == null || cursor.isEmpty() ? null : decodeCursor(cursor);
+        if (after == null && sort == Sort.NAME && !p.isEmpty()) {
+            // just before the first key with the prefix, or just past the last one
+            after = new Entry("", descending ? p + Character.MAX_VALUE : p, descending ? Long.MAX_VALUE : -1,
+                    descending ? Long.MAX_VALUE : -1);
+        }
+        NavigableSet<Entry> view = descending ? set.descendingSet() : set;
+        if (after != null) view = view.tailSet(after, false);
+
+        List<Entry> page = new ArrayList<>(Math.min(limit, 256));
+        Iterator<Entry> it = view.iterator();
+        Entry last = null;
+        while (it.hasNext() && page.size() < limit) {
+            Entry e = it.next();
+            if (!e.key.startsWith(p)) {
+                if (sort == Sort.NAME) break;
+                continue;
+            }
+            page.add(e);
+            last = e;
+        }
+        boolean more = page.size() == limit && it.hasNext();
+        return new Page(page, entries.size(), more ? encodeCursor(last) : null);
+    }
+
+    private static String encodeCursor(Entry e) {
+        String raw = e.key + "\n" + e.size + "\n" + e.modified + "\n" + e.name;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Entry decodeCursor(String cursor) {
+        try {
+            String[] f = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\n", 4);
+            if (f.length != 4) throw new IllegalArgumentException("Bad cursor");
+            return new Entry(f[3], f[0], Long.parseLong(f[1]), Long.parseLong(f[2]));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Bad cursor", e);
+        }
+    }
+
+    private void add(Entry entry) {
+        entries.put(entry.name, entry);
+        for (TreeSet<Entry> set : sorted.values()) set.add(entry);
+        if (!entry.sha256.isEmpty()) refs.merge(entry.sha256, 1, Integer::sum);
+    }
+
+    // Drops an entry from memory and returns true if its blob has no names left.
+    private boolean forget(Entry entry) {
+        entries.remove(entry.name);
+        for (TreeSet<Entry> set : sorted.values()) set.remove(entry);
+        if (entry.sha256.isEmpty()) return false;
+        if (refs.merge(entry.sha256, -1, Integer::sum) > 0) return false;
+        refs.remove(entry.sha256);
+        return true;
+    }
+
+    private void remove(Entry entry) throws IOException {
+        if (forget(entry)) Files.deleteIfExists(blobPath(entry.sha256));
+    }
+
+    private Path blobPath(String sha256) {
+        return blobs.resolve(sha256.substring(0, 2)).resolve(sha256.substring(2, 4)).resolve(sha256);
+    }
+
+    private static String clean(String contentType) {
+        return contentType == null ? "" : contentType.replaceAll("[\\t\\r\\n]", " ");
+    }
+
+    private void log(Entry e) throws IOException {
+        append("+\t" + e.name + "\t" + e.sha256 + "\t" + e.size + "\t" + e.contentType + "\t" + e.modified);
+    }
+
+    private void append(String line) throws IOException {
+        Files.writeString(index, line + "\n", StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        indexLines++;
+    }
+
+    /**
+     * Replays the index, then reconciles it with the directory: names whose
+     * file was removed behind the server's back are dropped, files the index
+     * doesn't know are added, and blobs nothing refers to, such as those left
+     * by a crash between writing a blob and logging its name, are deleted.
+     */
+    private void load() throws IOException {
+        Files.createDirectories(blobs);
+        if (Files.exists(index)) {
+            List<String> lines = Files.readAllLines(index, StandardCharsets.UTF_8);
+            for (String line : lines) {
+                String[] f = line.split("\t", -1);
+                try {
+                    if (f.length == 6 && f[0].equals("+")) {
+                        Entry old = entries.get(f[1]);
+                        if (old != null) forget(old);
+                        add(new Entry(f[1], f[2], Long.parseLong(f[3]), f[4], Long.parseLong(f[5])));
+                    } else if (f.length == 2 && f[0].equals("-")) {
+                        Entry old = entries.get(f[1]);
+                        if (old != null) forget(old);
+                    }
+                } catch (NumberFormatException e) {
+                    // a line torn by a crash mid-append
+                }
+            }
+            indexLines = lines.size();
+        }
+
+        Set<String> blobFiles = new HashSet<>();
+        try (Stream<Path> files = Files.walk(blobs)) {
+            files.filter(Files::isRegularFile).forEach(p -> blobFiles.add(p.getFileName().toString()));
+        }
+        int dropped = 0;
+        for (Entry entry : List.copyOf(entries.values())) {
+            if (!entry.sha256.isEmpty() && !blobFiles.contains(entry.sha256)) {
+                forget(entry);
+                dropped++;
+            }
+        }
+        int[] counts = reconcile();
+        dropped += counts[0];
+
+        int orphans = 0;
+        try (Stream<Path> files = Files.walk(blobs)) {
+            for (Path p : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                if (refs.containsKey(p.getFileName().toString())) continue;
+                Files.deleteIfExists(p);
+                orphans++;
+            }
+        }
+        if (dropped > 0 || counts[1] > 0 || orphans > 0) {
+            System.out.println("[UPLOADS] " + dir + ": dropped " + dropped + " missing names, added "
+                    + counts[1] + " untracked files, removed " + orphans + " unreferenced blobs");
+        }
+        if (dropped > 0 || indexLines > 2 * entries.size()) compact();
+        System.out.println("[UPLOADS] " + dir + ": " + entries.size() + " files in " + refs.size() + " blobs");
+    }
+
+    /**
+     * Lists the directory once and brings the index in line with it. Returns
+     * the number of names dropped and files added. Blobs left without names
+     * are deleted.
+     */
+    private int[] reconcile() throws IOException {
+        Set<String> present = new HashSet<>();
+        int added = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path p : files) {
+                String name = p.getFileName().toString();
+                if (isInternal(p.getFileName())) continue;
+                present.add(name);
+                if (!entries.containsKey(name) && adopt(p) != null) added++;
+            }
+        }
+        int dropped = 0;
+        for (Entry entry : List.copyOf(entries.values())) {
+            if (present.contains(entry.name)) continue;
+            append("-\t" + entry.name);
+            remove(entry);
+            dropped++;
+        }
+        return new int[] {dropped, added};
+    }
+
+    // Indexes a file that was not uploaded through the store, or updates its size and time.
+    private Entry adopt(Path p) throws IOException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(p, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null; // gone again
+        }
+        if (!attrs.isRegularFile()) return null;
+        String name = p.getFileName().toString();
+        Entry old = entries.get(name);
+        if (old != null) {
+            if (!old.sha256.isEmpty()) return null; // ours; a link does not change
+            if (old.size == attrs.size() && old.modified == attrs.lastModifiedTime().toMillis()) return null;
+            forget(old);
+        }
+        Entry entry = new Entry(name, "", attrs.size(), MimeTypes.getMimeType(name),
+                attrs.lastModifiedTime().toMillis());
+        log(entry);
+        add(entry);
+        return entry;
+    }
+
+    private void watch() {
+        try {
+            watcher = dir.getFileSystem().newWatchService();
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.println("[UPLOADS] Not watching " + dir + " for outside changes: " + e.getMessage());
+            return;
+        }
+        Thread thread = new Thread(this::watchLoop, "upload-watch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void watchLoop() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            for (WatchEvent<?> event : key.pollEvents()) {
+                try {
+                    synchronized (this) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            reconcile();
+                            continue;
+                        }
+                        Path name = (Path) event.context();
+                        if (isInternal(name)) continue;
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                            Entry entry = entries.get(name.toString());
+                            if (entry != null && !Files.exists(dir.resolve(name))) {
+                                append("-\t" + entry.name);
+                                remove(entry);
+                            }
+                        } else {
+                            adopt(dir.resolve(name));
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("[UPLOADS] Could not update index of " + dir + ": " + e.getMessage());
+                }
+            }
+            if (!key.reset()) {
+                System.err.println("[UPLOADS] " + dir + " is gone; no longer watching it");
+                return;
+            }
+        }
+    }
+
+    // Rewrites the index with one line per live name.
+    private void compact() throws IOException {
+        StringBuilder sb = new StringBuilder(entries.size() * 128);
+        for (Entry e : sorted.get(Sort.NAME)) {
+            sb.append("+\t").append(e.name).append('\t').append(e.sha256).append('\t').append(e.size)
+              .append('\t').append(e.contentType).append('\t').append(e.modified).append('\n');
+        }
+        Path tmp = dir.resolve(INDEX + ".tmp");
+        Files.writeString(tmp, sb, StandardCharsets.UTF_8);
+        Files.move(tmp, index, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        indexLines = entries.size();
+    }
+}
@@ -1,41 +1,79 @@
 package src.connection;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import src.http.HttpRequest;
 import src.http.HttpResponse;
+import src.http.RequestParser;
+import src.http.Spool;
 import src.Config;
+import src.RequestBuffers;
 
 public class Connection {
 
+    public enum State { READING, PROCESSING, WRITING, IDLE }
+
     private static final int INITIAL_BUFFER_SIZE = 8192;
     private static final long MAX_BUFFER_SIZE = 50 * 1024 * 1024; // 10MB
     private static final long TIMEOUT_MS = 30000;
-    private static final long TEMP_FILE_THRESHOLD = 50 * 1024 * 1024; // 2MB
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+    private static final int    PIECES_PER_WRITE = 16;
+    private static final byte[] CHUNKED_END = {'\r', '\n', '0', '\r', '\n', '\r', '\n'};
     private boolean keepAlive = false;
     private int requestCount = 0;
     private static final int MAX_REQUESTS = 100;
 
     private final SocketChannel channel;
-    private final Config config;
+    private Config config;
     private ByteBuffer readBuffer;
-    private ByteBuffer writeBuffer;
+    private ByteBuffer[] writeBuffers;
+    private HttpResponse.BodySource bodySource;
+    private boolean chunkedResponse;
 
     private long lastActivityAt;
+
+    // Per-request accounting for metrics, reset with the rest of the request state.
+    private long requestStartNanos;
+    private long requestReadNanos;
+    private long requestParsedNanos;
+    private long cgiStartNanos;
+    private long responseReadyNanos;
+    private long bytesIn;
+    private long bytesOut;
+    private int responseStatus;
+    private String routeLabel;
+    private HttpRequest request;
+    private String remoteAddress;
+    private String method;
+    private String target;
+    private String protocol;
+    private String referer;
+    private String userAgent;
     private boolean requestComplete = false;
     private boolean writeComplete = false;
 
     private int headerEndPosition = -1;
+    private int scannedTo = 0;
     private long expectedContentLength = -1; 
     private boolean isChunked = false;
+    private boolean bodyTooLarge = false;
 
-    private File tempBodyFile;
-    private FileOutputStream tempBodyOut;
+    private Spool.SpoolFile spoolFile;
+    private boolean spilling;
+    private byte[] spilledHeader;
+    private byte[] decodedChunkedBody;
 
     public Connection(SocketChannel channel, Config config) {
         this.channel = channel;
         this.config = config;
         this.readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        RequestBuffers.reserve(INITIAL_BUFFER_SIZE);
         this.lastActivityAt = System.currentTimeMillis();
     }
     
@@ -43,45 +81,68 @@ public class Connection {
         return config; 
     }
 
-    public void read() throws IOException {
+    // Set once the request has been read, to follow config reloads.
+    public void setConfig(Config config) {
+        this.config = config;
+    }
+
+    // Returns false once the client has closed its side.
+    public boolean read() throws IOException {
         if (!readBuffer.hasRemaining()) expandBuffer();
 
         int bytesRead = channel.read(readBuffer);
-        if (bytesRead == -1) throw new IOException("Client closed connection");
+        if (bytesRead == -1) return false;
 
-        if (bytesRead > 0) lastActivityAt = System.currentTimeMillis();
+        if (bytesRead > 0) {
+            lastActivityAt = System.currentTimeMillis();
+            if (requestStartNanos == 0) requestStartNanos = System.nanoTime();
+            bytesIn += bytesRead;
+        }
 
         checkRequestComplete();
+        return true;
     }
 
     private void expandBuffer() throws IOException {
-    if (tempBodyFile != null) {
+    if (spoolFile != null) {
         return;
     }
     int newCapacity = readBuffer.capacity() * 2;
     if (newCapacity > MAX_BUFFER_SIZE) throw new IOException("Request too large");
-    ByteBuffer newBuffer = ByteBuffer.allocate(newCapacity);
-    readBuffer.flip();
-    newBuffer.put(readBuffer);
-    readBuffer = newBuffer;
+    if (!growBuffer(newCapacity)) throw new IOException("Request buffer budget exhausted");
 }
 
-    private void checkRequestComplete() throws IOException {
-        int currentPos = readBuffer.position();
+    // Reallocates the read buffer at the given size if the budget allows it.
+    private boolean growBuffer(int capacity) {
+        int current = readBuffer.capacity();
+        if (capacity <= current) return true;
+        if (!RequestBuffers.tryReserve(capacity - current)) return false;
+        ByteBuffer newBuffer = ByteBuffer.allocate(capacity);
         readBuffer.flip();
-        byte[] data = new byte[readBuffer.remaining()];
-        readBuffer.get(data);
-        readBuffer.clear();
-        readBuffer.position(currentPos);
+        newBuffer.put(readBuffer);
+        readBuffer = newBuffer;
+        return true;
+    }
+
+    private void checkRequestComplete() throws IOException {
+        if (spilling) {
+            spillBuffer();
+            checkSpillComplete();
+            return;
+        }
 
-        String dataStr = new String(data);
+        byte[] data = readBuffer.array();
+        int length = readBuffer.position();
 
+        // Only the bytes that arrived since the last read are searched.
         if (headerEndPosition == -1) {
-            int headerEnd = dataStr.indexOf("\r\n\r\n");
+            int headerEnd = indexOf(data, HEADER_END, Math.max(0, scannedTo - 3), length);
+            scannedTo = length;
             if (headerEnd == -1) return;
 
             headerEndPosition = headerEnd + 4;
-            String headers = dataStr.substring(0, headerEnd).toLowerCase();
+            scannedTo = headerEndPosition - 2;
+            String headers = new String(data, 0, headerEnd, StandardCharsets.ISO_8859_1).toLowerCase();
 
             if (headers.contains("transfer-encoding: chunked")) {
                 isChunked = true;
@@ -90,39 +151,36 @@ public class Connection {
                 expectedContentLength = extractContentLength(headers);
             }
 
-            if (expectedContentLength > TEMP_FILE_THRESHOLD) {
-            if (tempBodyFile == null) {
-                tempBodyFile = File.createTempFile("http_body_", ".tmp");
-                tempBodyFile.deleteOnExit();
-                tempBodyOut = new FileOutputStream(tempBodyFile);
+            // Refused from the headers alone, before any buffer or spool quota is taken for the body.
+            if (expectedContentLength > config.getClientBodySizeLimit()) {
+                bodyTooLarge = true;
+                requestComplete = true;
+                return;
             }
-                tempBodyOut.write(readBuffer.array(), 0, readBuffer.position());
-                readBuffer.clear();
+
+            // Small bodies are read into a buffer sized once from Content-Length;
+            // large ones, or any once the budget is used up, go to a temp file.
+            if (expectedContentLength > 0
+                    && (expectedContentLength > Math.min(RequestBuffers.getSpillThreshold(), MAX_BUFFER_SIZE)
+                        || !growBuffer((int) (headerEndPosition + expectedContentLength)))) {
+                startSpill();
+                return;
             }
         }
 
-        if (headerEndPosition == -1) return;
-
         if (isChunked) {
-            if (dataStr.contains("\r\n0\r\n\r\n")) {
+            int end = indexOf(data, CHUNKED_END, Math.max(headerEndPosition - 2, scannedTo - 6), length);
+            scannedTo = length;
+            if (end != -1) {
                 requestComplete = true;
-                closeTempFile();
             }
             return;
         }
 
-        long bodyStart = headerEndPosition;
-        long bodyLength = data.length - bodyStart;
-
-        if (bodyLength > 0) {
-            if (tempBodyOut != null) {
-                tempBodyOut.write(data, (int) bodyStart, (int) bodyLength);
-            }
-        }
+        long bodyLength = length - headerEndPosition;
 
         if (expectedContentLength >= 0 && bodyLength >= expectedContentLength) {
             requestComplete = true;
-            closeTempFile();
         }
 
         if (expectedContentLength == 0) {
@@ -130,10 +188,37 @@ public class Connection {
         }
     }
 
-    private void closeTempFile() throws IOException {
-        if (tempBodyOut != null) {
-            tempBodyOut.close();
-            tempBodyOut = null;
+    private void startSpill() throws IOException {
+        spoolFile = Spool.create(headerEndPosition + expectedContentLength);
+        spilling = true;
+        RequestBuffers.recordSpill();
+        spilledHeader = Arrays.copyOf(readBuffer.array(), headerEndPosition);
+        spillBuffer();
+        checkSpillComplete();
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from, int to) {
+        outer:
+        for (int i = from; i <= to - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private void spillBuffer() throws IOException {
+        int len = readBuffer.position();
+        if (len == 0) return;
+        spoolFile.write(readBuffer.array(), 0, len);
+        readBuffer.clear();
+    }
+
+    private void checkSpillComplete() {
+        if (spoolFile.size() - headerEndPosition >= expectedContentLength) {
+            requestComplete = true;
+            spilling = false;
         }
     }
 
@@ -148,31 +233,173 @@ public class Connection {
         return 0;
     }
 
-    public File getTempBodyFile() { return tempBodyFile; }
+    // Drops the spilled body and the buffer budget of a connection that is being closed.
+    public void release() {
+        closeBodySource();
+        RequestBuffers.release(readBuffer.capacity());
+        readBuffer = ByteBuffer.allocate(0);
+        releaseFiles();
+    }
+
+    // Temp files of the current request; a CGI script still reading the
+    // body keeps its stream, and so the file, until it is done.
+    private void releaseFiles() {
+        if (spoolFile != null) {
+            spoolFile.release();
+            spoolFile = null;
+        }
+        spilling = false;
+        if (request != null) request.releaseFiles();
+    }
+
+    public void setResponse(HttpResponse response) {
+        this.writeBuffers = response.toByteBuffers();
+        this.bodySource = response.getBodySource();
+        this.chunkedResponse = "chunked".equals(response.getHeader("Transfer-Encoding"));
+        this.responseStatus = response.getStatusCode();
+        this.responseReadyNanos = System.nanoTime();
+    }
 
-    public void setResponse(HttpResponse response) { this.writeBuffer = response.toByteBuffer(); }
+    public void markRequestRead() {
+        this.requestReadNanos = System.nanoTime();
+    }
+
+    public void markRequestParsed(String routeLabel, HttpRequest request) {
+        this.requestParsedNanos = System.nanoTime();
+        this.request = request;
+        this.routeLabel = routeLabel;
+        this.method = request.getMethod();
+        this.target = request.getPath();
+        this.protocol = request.getVersion();
+        this.referer = request.getHeader("referer");
+        this.userAgent = request.getHeader("user-agent");
+    }
+
+    public String getRemoteAddress() {
+        if (remoteAddress == null) {
+            try {
+                remoteAddress = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+            } catch (IOException | RuntimeException e) {
+                remoteAddress = "-";
+            }
+        }
+        return remoteAddress;
+    }
+
+    public HttpRequest getRequest() { return request; }
+    public String getMethod()    { return method; }
+    public String getTarget()    { return target; }
+    public String getProtocol()  { return protocol; }
+    public String getReferer()   { return referer; }
+    public String getUserAgent() { return userAgent; }
+
+    public long getRequestStartNanos()  { return requestStartNanos; }
+    public long getRequestReadNanos()   { return requestReadNanos; }
+    public long getRequestParsedNanos() { return requestParsedNanos; }
+    public long getCgiStartNanos()      { return cgiStartNanos; }
+    public long getResponseReadyNanos() { return responseReadyNanos; }
+
+    public void markCgiStarted() {
+        this.cgiStartNanos = System.nanoTime();
+    }
+    public long getBytesIn()            { return bytesIn; }
+    public long getBytesOut()           { return bytesOut; }
+    public int getResponseStatus()      { return responseStatus; }
+    public String getRouteLabel()       { return routeLabel; }
 
     public void write() throws IOException {
-        if (writeBuffer == null) throw new IOException("No response to write");
+        if (writeBuffers == null) throw new IOException("No response to write");
+
+        for (int pieces = 0; ; pieces++) {
+            bytesOut += channel.write(writeBuffers);
+            if (writeBuffers[writeBuffers.length - 1].hasRemaining()) return;
+            if (bodySource == null) {
+                writeComplete = true;
+                return;
+            }
+            // Another go from the selector lets other connections in between.
+            if (pieces == PIECES_PER_WRITE) return;
+            nextPiece();
+        }
+    }
 
-        channel.write(writeBuffer);
-        if (!writeBuffer.hasRemaining()) writeComplete = true;
+    // Puts the next piece of a streamed body, framed if chunked, in writeBuffers.
+    private void nextPiece() throws IOException {
+        byte[] piece;
+        do {
+            piece = bodySource.next();
+        } while (piece != null && piece.length == 0); // an empty chunk would end the body
+        if (piece == null) {
+            closeBodySource();
+            writeBuffers = new ByteBuffer[] {
+                    ByteBuffer.wrap(chunkedResponse ? LAST_CHUNK : new byte[0]) };
+        } else if (chunkedResponse) {
+            writeBuffers = new ByteBuffer[] {
+                    ByteBuffer.wrap((Integer.toHexString(piece.length) + "\r\n").getBytes(StandardCharsets.US_ASCII)),
+                    ByteBuffer.wrap(piece), ByteBuffer.wrap(CRLF) };
+        } else {
+            writeBuffers = new ByteBuffer[] { ByteBuffer.wrap(piece) };
+        }
+    }
+
+    private void closeBodySource() {
+        if (bodySource == null) return;
+        bodySource.close();
+        bodySource = null;
     }
 
     public boolean isRequestComplete() { return requestComplete; }
     public boolean isWriteComplete() { return writeComplete; }
-    public boolean isTimedOut(long now) { return (now - lastActivityAt) > TIMEOUT_MS; }
+    // A request being processed is not idle: a queued or running CGI job has timeouts of its own.
+    public boolean isTimedOut(long now) {
+        return getState() != State.PROCESSING && (now - lastActivityAt) > TIMEOUT_MS;
+    }
     public SocketChannel getChannel() { return channel; }
-    public boolean isContentLengthTooLarge() { return expectedContentLength > MAX_BUFFER_SIZE; }
+    public boolean isContentLengthTooLarge() {
+        if (bodyTooLarge) return true;
+        long limit = spoolFile != null ? config.getClientBodySizeLimit() : MAX_BUFFER_SIZE;
+        return expectedContentLength > limit;
+    }
     public long getContentLength() { return expectedContentLength; }
 
-    public ByteBuffer getBuffer() throws IOException {
-    if (tempBodyFile != null) {
-        FileInputStream fis = new FileInputStream(tempBodyFile);
-        byte[] data = fis.readAllBytes();
-        fis.close();
-        return ByteBuffer.wrap(data);
-    } else {
+    public boolean isChunked() { return isChunked; }
+
+    public ByteBuffer getHeaderBuffer() {
+        if (spilledHeader != null) return ByteBuffer.wrap(spilledHeader);
+        return ByteBuffer.wrap(readBuffer.array(), 0, headerEndPosition);
+    }
+
+    public long getBodyLength() {
+        if (isChunked) return decodeChunkedBody().length;
+        return Math.max(expectedContentLength, 0);
+    }
+
+    public InputStream openBodyStream() throws IOException {
+        if (isChunked) return new ByteArrayInputStream(decodeChunkedBody());
+
+        long length = getBodyLength();
+        if (spoolFile != null) {
+            return new BufferedInputStream(spoolFile.openStream(headerEndPosition), INITIAL_BUFFER_SIZE);
+        }
+        return new ByteArrayInputStream(readBuffer.array(), headerEndPosition, (int) length);
+    }
+
+    private byte[] decodeChunkedBody() {
+        if (decodedChunkedBody == null) {
+            try {
+                decodedChunkedBody = RequestParser.decodeChunkedBody(ByteBuffer.wrap(
+                        readBuffer.array(), headerEndPosition,
+                        readBuffer.position() - headerEndPosition));
+            } catch (Exception e) {
+                decodedChunkedBody = new byte[0];
+            }
+        }
+        return decodedChunkedBody;
+    }
+
+    // The whole request as read, for one held in the read buffer; a spilled body is read with openBodyStream().
+    public ByteBuffer getBuffer() {
+        if (spoolFile != null) throw new IllegalStateException("Request body is spilled to disk");
         int currentPos = readBuffer.position();
         readBuffer.flip();
         byte[] data = new byte[readBuffer.remaining()];
@@ -181,31 +408,77 @@ public class Connection {
         readBuffer.position(currentPos);
         return ByteBuffer.wrap(data);
     }
-}
+
+    public boolean isSpilled() {
+        return spoolFile != null;
+    }
 
     public void setKeepAlive(boolean keepAlive) {
         this.keepAlive = keepAlive;
     }
 
+    // Between requests on a keep-alive connection, with nothing buffered.
+    // A fresh connection is not idle: its first request is still on the way.
+    public boolean isIdle() {
+        return requestCount > 0 && !requestComplete && readBuffer.position() == 0
+                && spoolFile == null && writeBuffers == null;
+    }
+
+    public State getState() {
+        if (writeBuffers != null) return State.WRITING;
+        if (requestComplete) return State.PROCESSING;
+        return isIdle() ? State.IDLE : State.READING;
+    }
+
+    // Heap held for this connection's request, whether or not it is in use.
+    public long getBufferedBytes() {
+        long bytes = readBuffer.capacity();
+        if (decodedChunkedBody != null) bytes += decodedChunkedBody.length;
+        return bytes;
+    }
+
+    public long getSpilledBytes() {
+        return spoolFile != null ? spoolFile.size() : 0;
+    }
+
     public boolean isKeepAlive() {
          return keepAlive;
     }
 
     public void resetForNextRequest() {
-    readBuffer.clear();
-    writeBuffer = null;
+    if (readBuffer.capacity() > INITIAL_BUFFER_SIZE) {
+        RequestBuffers.release(readBuffer.capacity() - INITIAL_BUFFER_SIZE);
+        readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    } else {
+        readBuffer.clear();
+    }
+    writeBuffers = null;
+    closeBodySource();
     requestComplete = false;
     writeComplete = false;
     headerEndPosition = -1;
+    scannedTo = 0;
     expectedContentLength = -1;
     isChunked = false;
-
-
-    if (tempBodyFile != null && tempBodyFile.exists()) {
-        tempBodyFile.delete();
-    }
-
-    tempBodyFile = null;
+    bodyTooLarge = false;
+    releaseFiles();
+    spilledHeader = null;
+    decodedChunkedBody = null;
+    requestStartNanos = 0;
+    requestReadNanos = 0;
+    requestParsedNanos = 0;
+    cgiStartNanos = 0;
+    responseReadyNanos = 0;
+    bytesIn = 0;
+    bytesOut = 0;
+    responseStatus = 0;
+    routeLabel = null;
+    request = null;
+    method = null;
+    target = null;
+    protocol = null;
+    referer = null;
+    userAgent = null;
 
     requestCount++;
     if (requestCount >= MAX_REQUESTS) {
@@ -0,0 +1,85 @@
+package src.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Compact tagged binary encoding for session ids and attribute values,
+// shared by the persistent and cookie session stores.
+final class AttributeCodec {
+
+    private static final byte T_NULL   = 0;
+    private static final byte T_STRING = 1;
+    private static final byte T_LONG   = 2;
+    private static final byte T_INT    = 3;
+    private static final byte T_BOOL   = 4;
+    private static final byte T_DOUBLE = 5;
+
+    // Strings (ids and attribute names) carry an unsigned 16-bit length.
+    static final int MAX_STRING_BYTES = 0xFFFF;
+
+    private AttributeCodec() {}
+
+    static void putString(ByteBuffer buf, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_BYTES) {
+            throw new IllegalArgumentException("String of " + bytes.length
+                    + " bytes is over the " + MAX_STRING_BYTES + "-byte limit");
+        }
+        buf.putShort((short) bytes.length);
+        buf.put(bytes);
+    }
+
+    static String getString(ByteBuffer buf) {
+        int len = buf.getShort() & 0xFFFF;
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static int stringSize(String s) {
+        return 2 + s.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    // Encoded size of a value, as putValue writes it.
+    static int valueSize(Object value) {
+        if (value == null) return 1;
+        if (value instanceof Long || value instanceof Double) return 9;
+        if (value instanceof Integer) return 5;
+        if (value instanceof Boolean) return 2;
+        return 5 + value.toString().getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    // Values other than the primitive wrappers are stored by toString().
+    static void putValue(ByteBuffer buf, Object value) {
+        if (value == null) {
+            buf.put(T_NULL);
+        } else if (value instanceof Long l) {
+            buf.put(T_LONG).putLong(l);
+        } else if (value instanceof Integer i) {
+            buf.put(T_INT).putInt(i);
+        } else if (value instanceof Boolean b) {
+            buf.put(T_BOOL).put((byte) (b ? 1 : 0));
+        } else if (value instanceof Double d) {
+            buf.put(T_DOUBLE).putDouble(d);
+        } else {
+            byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+            buf.put(T_STRING).putInt(bytes.length).put(bytes);
+        }
+    }
+
+    static Object getValue(ByteBuffer buf) {
+        byte tag = buf.get();
+        switch (tag) {
+            case T_LONG:   return buf.getLong();
+            case T_INT:    return buf.getInt();
+            case T_BOOL:   return buf.get() != 0;
+            case T_DOUBLE: return buf.getDouble();
+            case T_STRING: {
+                byte[] bytes = new byte[buf.getInt()];
+                buf.get(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+            default:       return null;
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package src.http;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
 
 public class HttpRequest {
@@ -7,7 +10,9 @@ public class HttpRequest {
     private String method;
     private String path;
     private String version;
+    private String queryString;
     private byte[] body;
+    private BodyStream bodyStream;
 
     private final Map<String, String> headers = new HashMap<>();
     private final Map<String, String> cookies = new HashMap<>();
@@ -51,10 +56,24 @@ public class HttpRequest {
         return headers.get(name.toLowerCase());
     }
 
+    public interface BodyStream {
+        InputStream open() throws IOException;
+    }
+
     public byte[] getBody() {
         return body;
     }
 
+    // For requests whose body is left where the connection read it instead of copied into getBody().
+    public void setBodyStream(BodyStream bodyStream) {
+        this.bodyStream = bodyStream;
+    }
+
+    public InputStream openBodyStream() throws IOException {
+        if (bodyStream != null) return bodyStream.open();
+        return new ByteArrayInputStream(body != null ? body : new byte[0]);
+    }
+
     public void setBody(byte[] b) {
         this.body = b;
     }
@@ -92,10 +111,22 @@ public class HttpRequest {
     }
 
     public void parseBody() {
-        if (body == null || body.length == 0) return;
-
         String contentType = getHeader("content-type");
 
+        // a body left on disk: multipart parts are streamed from it, a form is read in
+        if (body == null && bodyStream != null && contentType != null) {
+            if (contentType.contains("multipart/form-data")) {
+                parseMultipart();
+            } else if (contentType.contains("application/x-www-form-urlencoded")) {
+                try (InputStream in = bodyStream.open()) {
+                    body = in.readAllBytes();
+                } catch (IOException e) {
+                    System.err.println("[ERROR] Form body read failed: " + e.getMessage());
+                }
+            }
+        }
+        if (body == null || body.length == 0) return;
+
         if (contentType != null && contentType.contains("application/x-www-form-urlencoded")) {
             parseQueryString(new String(body), formData);
         } else if (contentType != null && contentType.contains("multipart/form-data")) {
@@ -103,6 +134,11 @@ public class HttpRequest {
         }
     }
 
+    // Frees the temp files of uploaded parts once the request is done.
+    public void releaseFiles() {
+        if (multipartParts != null) MultipartParser.release(multipartParts);
+    }
+
     private void parseMultipart() {
         String contentType = getHeader("content-type");
         if (contentType == null) return;
@@ -116,9 +152,15 @@ public class HttpRequest {
             }
         }
 
-        if (boundary != null && body != null) {
+        if (boundary != null && (body != null || bodyStream != null)) {
             try {
-                multipartParts = MultipartParser.parse(body, boundary);
+                if (body != null) {
+                    multipartParts = MultipartParser.parse(body, boundary);
+                } else {
+                    try (InputStream in = bodyStream.open()) {
+                        multipartParts = MultipartParser.parse(in, boundary);
+                    }
+                }
                 for (MultipartParser.Part part : multipartParts) {
                     if (!part.isFile()) {
                         formData.put(part.getName(), new String(part.getData()));
@@ -148,7 +190,12 @@ public class HttpRequest {
         }
     }
 
+    public void setQueryString(String q) {
+        this.queryString = q;
+    }
+
     public String getQueryString() {
+    if (this.queryString != null) return this.queryString;
     if (this.path == null) return "";
 
     int idx = this.path.indexOf("?");
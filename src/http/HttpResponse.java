@@ -1,5 +1,6 @@
 package src.http;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.time.ZonedDateTime;
@@ -12,10 +13,24 @@ public class HttpResponse {
 
     private static final String HTTP_VERSION = "HTTP/1.1";
 
+    /**
+     * A body produced piece by piece as the client takes it, sent with
+     * chunked transfer encoding. Called on the event loop, so each piece
+     * should be quick to make.
+     */
+    public interface BodySource {
+        // The next piece, or null once there is no more.
+        byte[] next() throws IOException;
+
+        // Called once the source is done with, whether or not it ran to the end.
+        default void close() {}
+    }
+
     private final int statusCode;
     private final String reason;
     private final Map<String, String> headers = new HashMap<>();
     private byte[] body = new byte[0];
+    private BodySource bodySource;
 
     public HttpResponse(int statusCode, String reason) {
         this.statusCode = statusCode;
@@ -31,6 +46,17 @@ public class HttpResponse {
         headers.put("Content-Length", String.valueOf(body.length));
     }
 
+    public void setBody(BodySource source) {
+        this.body = new byte[0];
+        this.bodySource = source;
+        headers.remove("Content-Length");
+        headers.put("Transfer-Encoding", "chunked");
+    }
+
+    public BodySource getBodySource() {
+        return bodySource;
+    }
+
     public void setBody(String body) {
         setBody(body.getBytes(StandardCharsets.UTF_8));
         headers.putIfAbsent("Content-Type", "text/plain; charset=UTF-8");
@@ -40,6 +66,14 @@ public class HttpResponse {
         headers.put(key, value);
     }
 
+    public String getHeader(String key) {
+        return headers.get(key);
+    }
+
+    public void removeHeader(String key) {
+        headers.remove(key);
+    }
+
     public void addCookie(String name, String value, int maxAge, String path) {
         StringBuilder cookie = new StringBuilder();
         cookie.append(name).append("=").append(value);
@@ -63,6 +97,30 @@ public class HttpResponse {
     }
 
     public ByteBuffer toByteBuffer() {
+        byte[] headerBytes = encodeHead();
+
+        if (body == null || body.length == 0) {
+            return ByteBuffer.wrap(headerBytes);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(headerBytes.length + body.length);
+        buffer.put(headerBytes);
+        buffer.put(body);
+        buffer.flip();
+        return buffer;
+    }
+
+    // Head and body as separate buffers for a gathering write; the body array
+    // is wrapped, not copied, so shared bodies (error pages, cache hits) stay shared.
+    public ByteBuffer[] toByteBuffers() {
+        ByteBuffer head = ByteBuffer.wrap(encodeHead());
+        if (body == null || body.length == 0) {
+            return new ByteBuffer[] { head };
+        }
+        return new ByteBuffer[] { head, ByteBuffer.wrap(body).asReadOnlyBuffer() };
+    }
+
+    private byte[] encodeHead() {
         headers.putIfAbsent("Date",
             ZonedDateTime.now(ZoneOffset.UTC)
                 .format(DateTimeFormatter.RFC_1123_DATE_TIME)
@@ -87,17 +145,7 @@ public class HttpResponse {
 
         response.append("\r\n");
 
-        byte[] headerBytes = response.toString().getBytes(StandardCharsets.UTF_8);
-
-        if (body == null || body.length == 0) {
-            return ByteBuffer.wrap(headerBytes);
-        }
-
-        ByteBuffer buffer = ByteBuffer.allocate(headerBytes.length + body.length);
-        buffer.put(headerBytes);
-        buffer.put(body);
-        buffer.flip();
-        return buffer;
+        return response.toString().getBytes(StandardCharsets.UTF_8);
     }
 
     public static HttpResponse ok(String body) {
@@ -0,0 +1,612 @@
+package src.http;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps sessions in a MemorySessionStore and mirrors every change to an
+ * append-only log mapped into memory. Records are framed as
+ * [int length][payload][int crc32]; a zero length or bad checksum marks the
+ * end of the log, so a torn write at crash time is simply dropped on replay.
+ * The log is rewritten with only live sessions once it holds mostly garbage.
+ * A lock file keeps a second process (e.g. a handoff successor) from opening
+ * the log until this one has closed it; after close() the sessions are still
+ * served from memory but changes are no longer logged.
+ *
+ * Compaction also writes an index next to the log: an open-addressed table
+ * of (id hash, record offset, last access) slots, one per session in the
+ * compacted log, which starts with a generation record the index names. At
+ * startup a matching index is mapped rather than read, only the records
+ * appended since compaction are replayed, and the other sessions are loaded
+ * from their record the first time they are asked for. A log without a
+ * matching index is replayed in full and compacted once.
+ *
+ * A single mapping reaches 2GB, so that is as far as the log grows: at the
+ * limit it is compacted, and if that frees too little, changes stop being
+ * logged with an error rather than failing the request that made them.
+ */
+class MappedSessionStore implements SessionStore {
+
+    private static final int  INITIAL_MAP_SIZE      = 16 * 1024 * 1024;
+    private static final int  MAX_RECORD_SIZE       = 1024 * 1024;
+    private static final long MAX_LOG_SIZE          = Integer.MAX_VALUE;
+    private static final long TOUCH_PERSIST_MS      = 60_000;
+    private static final long COMPACT_MIN_RECORDS   = 100_000;
+
+    private static final byte PUT        = 1;
+    private static final byte REMOVE     = 2;
+    private static final byte TOUCH      = 3;
+    private static final byte GENERATION = 4;
+
+    // Index layout: magic, version, generation, log end, sessions, slots; then 24-byte slots.
+    private static final int  INDEX_MAGIC   = 0x53494458;
+    private static final int  INDEX_VERSION = 1;
+    private static final int  INDEX_HEADER  = 32;
+    private static final int  SLOT_BYTES    = 24;
+    private static final int  MAX_SLOTS     = 1 << 26;
+    private static final long EMPTY         = 0;
+    private static final long TOMBSTONE     = 1;
+    private static final int  SWEEP_SLOTS   = 1 << 18;
+
+    private static final Object UNSAFE         = unsafe();
+    private static final Method INVOKE_CLEANER = cleaner();
+
+    private final MemorySessionStore  index;
+    private final Path                path;
+    private final Path                indexPath;
+    private final long                timeoutMs;
+    private final ByteBuffer          scratch = ByteBuffer.allocate(MAX_RECORD_SIZE);
+    private final CRC32               crc     = new CRC32();
+    private final Map<String, String> names   = new HashMap<>();
+
+    private FileChannel      lockChannel;
+    private FileLock         lock;
+    private FileChannel      channel;
+    private MappedByteBuffer log;
+    private boolean          closed = false;
+    private boolean          full = false;
+    private long             recordCount = 0;
+
+    // Sessions of the last compaction not loaded yet; a private mapping, so
+    // slots emptied as sessions are loaded or removed never reach the file.
+    private MappedByteBuffer slots;
+    private int              slotMask;
+    private volatile int     indexedLive;
+    private int              sweepCursor;
+
+    MappedSessionStore(Path path, int maxSessions, long timeoutMs) throws IOException {
+        this.index     = new MemorySessionStore(maxSessions, timeoutMs);
+        this.path      = path;
+        this.indexPath = path.resolveSibling(path.getFileName() + ".idx");
+        this.timeoutMs = timeoutMs;
+
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+
+        acquireLock();
+        long start = System.currentTimeMillis();
+        openLog();
+        boolean indexed = openIndex();
+        int restored = replay();
+        System.out.println("[SESSION] Restored " + (restored + indexedLive) + " sessions from " + path
+                + " in " + (System.currentTimeMillis() - start) + "ms"
+                + (indexed ? " (" + indexedLive + " indexed, loaded on first use)" : ""));
+        if (!indexed && recordCount > 0) compact();
+    }
+
+    @Override
+    public synchronized void put(Session session) {
+        index.put(session);
+        writePut(session, session.getAttributes());
+    }
+
+    @Override
+    public Session get(String id, long now) {
+        Session session = index.get(id, now);
+        if (session == null && indexedLive > 0) session = load(id, now);
+        if (session != null && now - session.getPersistedAccessAt() > TOUCH_PERSIST_MS) {
+            synchronized (this) {
+                if (!persisting()) return session;
+                scratch.clear();
+                scratch.put(TOUCH);
+                AttributeCodec.putString(scratch, id);
+                scratch.putLong(now);
+                append();
+            }
+            session.setPersistedAccessAt(now);
+        }
+        return session;
+    }
+
+    @Override
+    public synchronized void remove(String id) {
+        index.remove(id);
+        int slot = findSlot(id);
+        if (slot >= 0) clearSlot(slot);
+        if (!persisting()) return;
+        scratch.clear();
+        scratch.put(REMOVE);
+        AttributeCodec.putString(scratch, id);
+        append();
+    }
+
+    @Override
+    public synchronized int removeExpired(long now) {
+        int removed = index.removeExpired(now) + sweepIndex(now);
+        if (persisting() && recordCount > COMPACT_MIN_RECORDS && recordCount > 2L * size()) {
+            try {
+                compact();
+            } catch (IOException e) {
+                System.err.println("[SESSION] Compaction failed: " + e.getMessage());
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public int size() {
+        return index.size() + indexedLive;
+    }
+
+    // Every record of a session, including the full one written at compaction, must fit the scratch buffer.
+    @Override
+    public void checkAttribute(Session session, String key, Object value) {
+        if (AttributeCodec.stringSize(key) - 2 > AttributeCodec.MAX_STRING_BYTES) {
+            throw new IllegalArgumentException("Session attribute name is over "
+                    + AttributeCodec.MAX_STRING_BYTES + " bytes");
+        }
+        long size = 1 + AttributeCodec.stringSize(session.getKey()) + 8 + 8 + 4
+                + AttributeCodec.stringSize(key) + AttributeCodec.valueSize(value);
+        for (Map.Entry<String, Object> e : session.getAttributes().entrySet()) {
+            if (e.getKey().equals(key)) continue;
+            size += AttributeCodec.stringSize(e.getKey()) + AttributeCodec.valueSize(e.getValue());
+        }
+        if (size > MAX_RECORD_SIZE) {
+            throw new IllegalArgumentException("Session attribute '" + key + "' would make the session "
+                    + size + " bytes; the persistent store holds up to " + MAX_RECORD_SIZE);
+        }
+    }
+
+    // Only the changed attribute is logged; replay merges deltas per session.
+    @Override
+    public synchronized void attributeChanged(Session session, String key, Object value) {
+        writePut(session, Collections.singletonMap(key, value));
+    }
+
+    // The mappings stay: sessions not loaded yet can still be read from them.
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        log.force();
+        try {
+            channel.close();
+            lock.release();
+            lockChannel.close();
+        } catch (IOException ignored) {}
+    }
+
+    private boolean persisting() {
+        return !closed && !full;
+    }
+
+    private void writePut(Session session, Map<String, Object> attributes) {
+        if (!persisting()) return;
+        scratch.clear();
+        encodePut(scratch, session, attributes);
+        append();
+    }
+
+    private static void encodePut(ByteBuffer buf, Session session, Map<String, Object> attributes) {
+        buf.put(PUT);
+        AttributeCodec.putString(buf, session.getKey());
+        buf.putLong(session.getCreatedAt());
+        buf.putLong(session.getLastAccessedAt());
+        buf.putInt(attributes.size());
+        for (Map.Entry<String, Object> e : attributes.entrySet()) {
+            AttributeCodec.putString(buf, e.getKey());
+            AttributeCodec.putValue(buf, e.getValue());
+        }
+    }
+
+    private void append() {
+        scratch.flip();
+        int len = scratch.remaining();
+        if (!ensureCapacity(len + 8)) {
+            byte[] pending = new byte[len];
+            scratch.get(pending);
+            try {
+                compact();
+            } catch (IOException e) {
+                System.err.println("[SESSION] Compaction failed: " + e.getMessage());
+            }
+            scratch.clear();
+            scratch.put(pending).flip();
+            // a log still half full would be compacted again every few records
+            if (log.position() > MAX_LOG_SIZE / 2 || !ensureCapacity(len + 8)) {
+                full = true;
+                System.err.println("[SESSION] " + path + " cannot grow past " + log.capacity()
+                        + " bytes even after compaction; session changes are no longer persisted");
+                return;
+            }
+        }
+
+        crc.reset();
+        crc.update(scratch.duplicate());
+
+        log.putInt(len);
+        log.put(scratch);
+        log.putInt((int) crc.getValue());
+        recordCount++;
+    }
+
+    // False once the log would pass the 2GB a mapping can cover, or the file cannot grow.
+    private boolean ensureCapacity(int needed) {
+        if (log.remaining() >= needed) return true;
+        int pos = log.position();
+        if (pos + (long) needed > MAX_LOG_SIZE) return false;
+        long newSize = Math.min(Math.max((long) log.capacity() * 2, pos + (long) needed), MAX_LOG_SIZE);
+        MappedByteBuffer old = log;
+        try {
+            log = channel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+        } catch (IOException e) {
+            System.err.println("[SESSION] Session log could not grow: " + e.getMessage());
+            return false;
+        }
+        log.position(pos);
+        unmap(old);
+        return true;
+    }
+
+    private void acquireLock() throws IOException {
+        Path lockPath = path.resolveSibling(path.getFileName() + ".lock");
+        lockChannel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        lock = lockChannel.tryLock();
+        if (lock == null) {
+            System.out.println("[SESSION] Waiting for another process to release " + path);
+            lock = lockChannel.lock();
+        }
+    }
+
+    private void openLog() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = Math.min(Math.max(INITIAL_MAP_SIZE, channel.size()), MAX_LOG_SIZE);
+        log = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    // Maps the index if it was written for this log, and starts the replay where it ends.
+    private boolean openIndex() throws IOException {
+        if (!Files.exists(indexPath)) return false;
+        MappedByteBuffer table;
+        try (FileChannel ch = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (ch.size() < INDEX_HEADER || ch.size() > Integer.MAX_VALUE) return false;
+            table = ch.map(FileChannel.MapMode.PRIVATE, 0, ch.size());
+        }
+        int  slotCount = table.getInt(28);
+        long logEnd    = table.getLong(16);
+        boolean valid = table.getInt(0) == INDEX_MAGIC && table.getInt(4) == INDEX_VERSION
+                && slotCount > 0 && Integer.bitCount(slotCount) == 1
+                && table.capacity() == INDEX_HEADER + (long) slotCount * SLOT_BYTES
+                && logEnd <= log.capacity() && table.getLong(8) == logGeneration();
+        if (!valid) {
+            unmap(table);
+            return false;
+        }
+        slots       = table;
+        slotMask    = slotCount - 1;
+        indexedLive = table.getInt(24);
+        recordCount = indexedLive;
+        log.position((int) logEnd);
+        return true;
+    }
+
+    // The id of the first record if it is a generation record, else 0.
+    private long logGeneration() {
+        if (log.capacity() < 17 || log.getInt(0) != 9 || log.get(4) != GENERATION) return 0;
+        return log.getLong(5);
+    }
+
+    private int replay() {
+        // insertion order tracks last activity: touches move a session to the tail
+        Map<String, Session> restored = new LinkedHashMap<>();
+
+        while (log.remaining() >= 8) {
+            int start = log.position();
+            int len = log.getInt();
+            if (len <= 0 || len > MAX_RECORD_SIZE || len > log.remaining() - 4) {
+                log.position(start);
+                break;
+            }
+
+            ByteBuffer payload = log.slice(log.position(), len);
+            crc.reset();
+            crc.update(payload.duplicate());
+            log.position(log.position() + len);
+            if (log.getInt() != (int) crc.getValue()) {
+                log.position(start);
+                break;
+            }
+
+            apply(payload, restored);
+            recordCount++;
+        }
+
+        long now = System.currentTimeMillis();
+        int live = 0;
+        Iterator<Session> it = restored.values().iterator();
+        while (it.hasNext()) {
+            Session s = it.next();
+            it.remove();
+            if (s.isExpired(now, timeoutMs)) continue;
+            index.put(s);
+            live++;
+        }
+        return live;
+    }
+
+    private void apply(ByteBuffer payload, Map<String, Session> restored) {
+        byte type = payload.get();
+        if (type == GENERATION) return;
+        String id = AttributeCodec.getString(payload);
+
+        // a change to an indexed session applies on top of its compacted record
+        Session session = restored.get(id);
+        if (session == null) {
+            int slot = findSlot(id);
+            if (slot >= 0) {
+                session = readSession(slotOffset(slot));
+                clearSlot(slot);
+                restored.put(id, session);
+            }
+        }
+
+        switch (type) {
+            case PUT -> {
+                long createdAt = payload.getLong();
+                long lastAccessedAt = payload.getLong();
+                if (session == null) {
+                    session = new Session(id, createdAt, lastAccessedAt);
+                    restored.put(id, session);
+                } else if (lastAccessedAt > session.getLastAccessedAt()) {
+                    session.touch(lastAccessedAt);
+                    restored.put(id, restored.remove(id));
+                }
+                readAttributes(payload, session);
+            }
+            case REMOVE -> restored.remove(id);
+            case TOUCH -> {
+                if (session != null) {
+                    restored.remove(id);
+                    session.touch(payload.getLong());
+                    restored.put(id, session);
+                }
+            }
+            default -> {}
+        }
+    }
+
+    private void readAttributes(ByteBuffer payload, Session session) {
+        int count = payload.getInt();
+        for (int i = 0; i < count; i++) {
+            String key = names.computeIfAbsent(AttributeCodec.getString(payload), k -> k);
+            session.restoreAttribute(key, AttributeCodec.getValue(payload));
+        }
+    }
+
+    // Moves an indexed session into memory the first time it is asked for.
+    private synchronized Session load(String id, long now) {
+        Session session = index.get(id, now);
+        if (session != null) return session;
+        int slot = findSlot(id);
+        if (slot < 0) return null;
+        session = readSession(slotOffset(slot));
+        clearSlot(slot);
+        if (session.isExpired(now, timeoutMs)) return null;
+        index.put(session);
+        return index.get(id, now);
+    }
+
+    // The PUT record a compaction wrote for one session.
+    private Session readSession(long offset) {
+        ByteBuffer payload = log.slice((int) offset + 4, log.getInt((int) offset));
+        payload.get();
+        String id = AttributeCodec.getString(payload);
+        Session session = new Session(id, payload.getLong(), payload.getLong());
+        readAttributes(payload, session);
+        return session;
+    }
+
+    private int findSlot(String id) {
+        if (slots == null || indexedLive == 0) return -1;
+        long hash = hash(id);
+        byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        for (int i = (int) (hash ^ (hash >>> 32)) & slotMask; ; i = (i + 1) & slotMask) {
+            long h = slots.getLong(INDEX_HEADER + i * SLOT_BYTES);
+            if (h == EMPTY) return -1;
+            if (h == hash && idMatches(slotOffset(i), key)) return i;
+        }
+    }
+
+    // Compares the id of the record at offset, stored after the length and type bytes.
+    private boolean idMatches(long offset, byte[] key) {
+        int at = (int) offset + 5;
+        if ((log.getShort(at) & 0xFFFF) != key.length) return false;
+        for (int i = 0; i < key.length; i++) {
+            if (log.get(at + 2 + i) != key[i]) return false;
+        }
+        return true;
+    }
+
+    private long slotOffset(int slot) {
+        return slots.getLong(INDEX_HEADER + slot * SLOT_BYTES + 8);
+    }
+
+    private void clearSlot(int slot) {
+        slots.putLong(INDEX_HEADER + slot * SLOT_BYTES, TOMBSTONE);
+        indexedLive--;
+    }
+
+    // Drops expired indexed sessions a slice of the table at a time, so a sweep never stalls the caller.
+    private int sweepIndex(long now) {
+        if (slots == null || indexedLive == 0) return 0;
+        int removed = 0;
+        for (int n = 0; n < SWEEP_SLOTS && n <= slotMask; n++) {
+            int at = INDEX_HEADER + sweepCursor * SLOT_BYTES;
+            long h = slots.getLong(at);
+            if (h != EMPTY && h != TOMBSTONE && now - slots.getLong(at + 16) > timeoutMs) {
+                clearSlot(sweepCursor);
+                removed++;
+            }
+            sweepCursor = (sweepCursor + 1) & slotMask;
+        }
+        return removed;
+    }
+
+    private static long hash(String id) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            h ^= id.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 29;
+        return h == EMPTY || h == TOMBSTONE ? h + 2 : h;
+    }
+
+    private void compact() throws IOException {
+        long start = System.currentTimeMillis();
+        long now = start;
+        Path tmp = path.resolveSibling(path.getFileName() + ".compact");
+        Path indexTmp = path.resolveSibling(indexPath.getFileName() + ".compact");
+        long generation = ThreadLocalRandom.current().nextLong() | 1;
+
+        int sessions = index.size() + indexedLive;
+        int slotCount = Math.min(Integer.highestOneBit(Math.max(sessions, 512) * 2 - 1) << 1, MAX_SLOTS);
+        if (sessions > slotCount / 2) throw new IOException("Too many sessions to index: " + sessions);
+
+        long[] end = {0};
+        int[]  written = {0};
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             FileChannel indexOut = FileChannel.open(indexTmp, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer table = indexOut.map(FileChannel.MapMode.READ_WRITE, 0,
+                    INDEX_HEADER + (long) slotCount * SLOT_BYTES);
+            ByteBuffer frame = ByteBuffer.allocate(4 * MAX_RECORD_SIZE);
+            IOException[] failure = {null};
+
+            scratch.clear();
+            scratch.put(GENERATION).putLong(generation);
+            writeFrame(out, frame, end);
+
+            Consumer<Session> write = session -> {
+                if (failure[0] != null) return;
+                scratch.clear();
+                encodePut(scratch, session, session.getAttributes());
+                long offset = end[0];
+                try {
+                    writeFrame(out, frame, end);
+                } catch (IOException e) {
+                    failure[0] = e;
+                    return;
+                }
+                long hash = hash(session.getKey());
+                int i = (int) (hash ^ (hash >>> 32)) & (slotCount - 1);
+                while (table.getLong(INDEX_HEADER + i * SLOT_BYTES) != EMPTY) i = (i + 1) & (slotCount - 1);
+                table.putLong(INDEX_HEADER + i * SLOT_BYTES, hash);
+                table.putLong(INDEX_HEADER + i * SLOT_BYTES + 8, offset);
+                table.putLong(INDEX_HEADER + i * SLOT_BYTES + 16, session.getLastAccessedAt());
+                written[0]++;
+            };
+            index.forEach(write);
+            for (int i = 0; slots != null && i <= slotMask; i++) {
+                long h = slots.getLong(INDEX_HEADER + i * SLOT_BYTES);
+                if (h == EMPTY || h == TOMBSTONE) continue;
+                Session session = readSession(slotOffset(i));
+                if (!session.isExpired(now, timeoutMs)) write.accept(session);
+            }
+            if (failure[0] != null) throw failure[0];
+            flush(out, frame);
+            out.force(true);
+
+            table.putInt(0, INDEX_MAGIC).putInt(4, INDEX_VERSION).putLong(8, generation)
+                 .putLong(16, end[0]).putInt(24, written[0]).putInt(28, slotCount);
+            table.force();
+            unmap(table);
+        }
+
+        channel.close();
+        unmap(log);
+        unmap(slots);
+        slots = null;
+        indexedLive = 0;
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(indexTmp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        openLog();
+        if (!openIndex()) throw new IOException("Index written for " + path + " did not verify");
+
+        // sessions held in memory are served from there, not from the index
+        index.forEach(session -> {
+            int slot = findSlot(session.getKey());
+            if (slot >= 0) clearSlot(slot);
+        });
+        recordCount = written[0];
+        sweepCursor = 0;
+        System.out.println("[SESSION] Compacted log to " + written[0] + " sessions in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    // Frames are batched in the buffer; flush() writes out what is left.
+    private void writeFrame(FileChannel out, ByteBuffer frame, long[] end) throws IOException {
+        scratch.flip();
+        if (frame.remaining() < scratch.remaining() + 8) flush(out, frame);
+        crc.reset();
+        crc.update(scratch.duplicate());
+        end[0] += scratch.remaining() + 8;
+        frame.putInt(scratch.remaining()).put(scratch).putInt((int) crc.getValue());
+    }
+
+    private static void flush(FileChannel out, ByteBuffer frame) throws IOException {
+        frame.flip();
+        while (frame.hasRemaining()) out.write(frame);
+        frame.clear();
+    }
+
+    // Releases a mapping now instead of whenever it is collected, so a
+    // replaced log does not keep holding its address space.
+    private static void unmap(MappedByteBuffer buffer) {
+        if (buffer == null || INVOKE_CLEANER == null) return;
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException | RuntimeException ignored) {}
+    }
+
+    private static Object unsafe() {
+        try {
+            Field field = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return field.get(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static Method cleaner() {
+        try {
+            return UNSAFE == null ? null : UNSAFE.getClass().getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
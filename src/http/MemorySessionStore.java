@@ -0,0 +1,113 @@
+package src.http;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Sessions split across independently locked shards. Each shard is an
+ * access-ordered LinkedHashMap, so its head is always the least recently used
+ * session: expiry sweeps stop at the first live entry, and the same order
+ * drives LRU eviction once a shard reaches its share of the size bound.
+ */
+class MemorySessionStore implements SessionStore {
+
+    private static final int SHARD_COUNT = 64;
+
+    private final Shard[] shards = new Shard[SHARD_COUNT];
+    private final long    timeoutMs;
+
+    MemorySessionStore(int maxSessions, long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+        int perShard = Math.max(1, maxSessions / SHARD_COUNT);
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            shards[i] = new Shard(perShard);
+        }
+    }
+
+    @Override
+    public void put(Session session) {
+        Shard shard = shardFor(session.getKey());
+        synchronized (shard) {
+            shard.sessions.put(session.getKey(), session);
+        }
+    }
+
+    @Override
+    public Session get(String id, long now) {
+        Shard shard = shardFor(id);
+        synchronized (shard) {
+            Session session = shard.sessions.get(id);
+            if (session == null) return null;
+
+            if (session.isExpired(now, timeoutMs)) {
+                shard.sessions.remove(id);
+                return null;
+            }
+            session.touch(now);
+            return session;
+        }
+    }
+
+    @Override
+    public void remove(String id) {
+        Shard shard = shardFor(id);
+        synchronized (shard) {
+            shard.sessions.remove(id);
+        }
+    }
+
+    @Override
+    public int removeExpired(long now) {
+        int removed = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                Iterator<Session> it = shard.sessions.values().iterator();
+                while (it.hasNext()) {
+                    if (!it.next().isExpired(now, timeoutMs)) break;
+                    it.remove();
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public int size() {
+        int total = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                total += shard.sessions.size();
+            }
+        }
+        return total;
+    }
+
+    void forEach(Consumer<Session> action) {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.sessions.values().forEach(action);
+            }
+        }
+    }
+
+    private Shard shardFor(String id) {
+        int h = id.hashCode();
+        return shards[(h ^ (h >>> 16)) & (SHARD_COUNT - 1)];
+    }
+
+    private static class Shard {
+        private final LinkedHashMap<String, Session> sessions;
+
+        Shard(int capacity) {
+            this.sessions = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+    }
+}
@@ -2,16 +2,25 @@ package src.http;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
 public class MultipartParser {
+
+    // Hashed and written in slices this size so each is still in cache for the write.
+    private static final int HASH_CHUNK = 64 * 1024;
+    // Fields without a filename are kept in memory; past this a streamed body is refused.
+    private static final int MAX_FIELD_BYTES = 1024 * 1024;
+    private static final byte[] HEADER_END = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
     
     public static class Part {
         private String name;
         private String filename;
         private String contentType;
         private byte[] data;      
-        private File tempFile;
+        private Spool.SpoolFile file;
+        private String sha256;
 
         public String getName() { return name; }
         public void setName(String name) { this.name = name; }
@@ -25,12 +34,20 @@ public class MultipartParser {
         public byte[] getData() { return data; }
         public void setData(byte[] data) { this.data = data; }
 
-        public File getTempFile() { return tempFile; }
-        public void setTempFile(File tempFile) { this.tempFile = tempFile; }
+        public Spool.SpoolFile getFile() { return file; }
+        public void setFile(Spool.SpoolFile file) { this.file = file; }
+
+        // Hex SHA-256 of a file part's contents, computed as it was spooled.
+        public String getSha256() { return sha256; }
+
+        public long getSize() {
+            if (file != null) return file.size();
+            return data != null ? data.length : 0;
+        }
         
         public String getDataAsString() {
             if (data != null) return new String(data, StandardCharsets.UTF_8);
-            return "[File stored in temp: " + tempFile.getAbsolutePath() + "]";
+            return "[File of " + getSize() + " bytes]";
         }
         
         public boolean isFile() {
@@ -38,8 +55,8 @@ public class MultipartParser {
         }
 
         public InputStream getInputStream() throws IOException {
-            if (isFile() && tempFile != null) {
-                return new FileInputStream(tempFile);
+            if (isFile() && file != null) {
+                return file.openStream(0);
             }
             return new ByteArrayInputStream(data != null ? data : new byte[0]);
         }
@@ -54,6 +71,7 @@ public class MultipartParser {
         if (pos == -1) return parts;
         pos += boundaryBytes.length + 2; 
         
+        try {
         while (pos < body.length) {
             int nextBoundary = findBoundary(body, boundaryBytes, pos);
             int endBoundary = findBoundary(body, endBoundaryBytes, pos);
@@ -71,10 +89,23 @@ public class MultipartParser {
             if (endBoundary != -1 && endBoundary == partEnd) break; 
             pos = partEnd + boundaryBytes.length + 2; 
         }
+        } catch (IOException e) {
+            release(parts);
+            throw e;
+        }
         
         return parts;
     }
 
+    public static void release(List<Part> parts) {
+        for (Part part : parts) {
+            if (part.file != null) {
+                part.file.release();
+                part.file = null;
+            }
+        }
+    }
+
     private static Part parsePart(byte[] body, int start, int end) throws IOException {
         int headerEnd = findSequence(body, "\r\n\r\n".getBytes(), start, end);
         if (headerEnd == -1) return null;
@@ -91,14 +122,20 @@ public class MultipartParser {
             
             if (part.isFile()) {
                 
-                File tempFile = File.createTempFile("http_upload_", ".tmp");
-               
-                tempFile.deleteOnExit(); 
-                
-                try (FileOutputStream fos = new FileOutputStream(tempFile)) {
-                    fos.write(body, dataStart, length);
+                Spool.SpoolFile file = Spool.create(length);
+                MessageDigest digest = sha256();
+                try {
+                    for (int off = dataStart; off < dataEnd; off += HASH_CHUNK) {
+                        int n = Math.min(HASH_CHUNK, dataEnd - off);
+                        digest.update(body, off, n);
+                        file.write(body, off, n);
+                    }
+                } catch (IOException e) {
+                    file.release();
+                    throw e;
                 }
-                part.setTempFile(tempFile);
+                part.setFile(file);
+                part.sha256 = HexFormat.of().formatHex(digest.digest());
             } else {
                 byte[] data = new byte[length];
                 System.arraycopy(body, dataStart, data, 0, length);
@@ -109,6 +146,14 @@ public class MultipartParser {
         return part;
     }
 
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // required of every JRE
+        }
+    }
+
     private static void parsePartHeaders(String headers, Part part) {
         String[] lines = headers.split("\r\n");
         for (String line : lines) {
@@ -136,15 +181,148 @@ public class MultipartParser {
         return findSequence(data, boundary, start, data.length);
     }
     
+    /**
+     * Parses a body read from {@code input} without holding it in memory:
+     * file parts are copied to spool files a window at a time, hashed on
+     * the way, and only fields without a filename are kept as byte arrays.
+     */
     public static List<Part> parse(InputStream input, String boundary) throws IOException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        byte[] temp = new byte[8192];
-        int read;
-        while ((read = input.read(temp)) != -1) {
-           buffer.write(temp, 0, read);
-        }
-        byte[] body = buffer.toByteArray();
-           return parse(body, boundary); 
+        List<Part> parts = new ArrayList<>();
+        // every delimiter, the first included once the body is read as if it started with CRLF
+        byte[] delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.UTF_8);
+        Window in = new Window(input, HASH_CHUNK + delimiter.length);
+        in.buf[0] = '\r';
+        in.buf[1] = '\n';
+        in.end = 2;
+
+        try {
+            if (!in.skipPast(delimiter)) return parts;
+            while (in.ensure(2)) {
+                if (in.buf[in.start] == '-' && in.buf[in.start + 1] == '-') break;
+                int headerEnd = in.find(HEADER_END, HASH_CHUNK);
+                if (headerEnd == -1) break;
+                Part part = new Part();
+                parsePartHeaders(new String(in.buf, in.start, headerEnd - in.start, StandardCharsets.UTF_8), part);
+                in.start = headerEnd + HEADER_END.length;
+
+                if (part.isFile()) {
+                    if (!streamFile(in, delimiter, part)) break;
+                } else {
+                    ByteArrayOutputStream data = new ByteArrayOutputStream();
+                    if (!in.copyUntil(delimiter, (b, off, len) -> {
+                        if (data.size() + len > MAX_FIELD_BYTES) {
+                            throw new IOException("Request too large: multipart field over " + MAX_FIELD_BYTES + " bytes");
+                        }
+                        data.write(b, off, len);
+                    })) break;
+                    part.setData(data.toByteArray());
+                }
+                parts.add(part);
+            }
+        } catch (IOException e) {
+            release(parts);
+            throw e;
+        }
+        return parts;
+    }
+
+    // False, with nothing kept, if the body ends before the part does.
+    private static boolean streamFile(Window in, byte[] delimiter, Part part) throws IOException {
+        MessageDigest digest = sha256();
+        Spool.SpoolFile[] file = {null};
+        boolean complete;
+        try {
+            complete = in.copyUntil(delimiter, (b, off, len) -> {
+                if (file[0] == null) file[0] = Spool.create(0);
+                digest.update(b, off, len);
+                file[0].write(b, off, len);
+            });
+        } catch (IOException e) {
+            if (file[0] != null) file[0].release();
+            throw e;
+        }
+        if (file[0] == null) return complete;
+        if (!complete) {
+            file[0].release();
+            return false;
+        }
+        part.setFile(file[0]);
+        part.sha256 = HexFormat.of().formatHex(digest.digest());
+        return true;
+    }
+
+    private interface Sink {
+        void write(byte[] b, int off, int len) throws IOException;
+    }
+
+    // A sliding buffer over the body; [start, end) holds bytes read but not consumed.
+    private static final class Window {
+        private final InputStream input;
+        private final byte[] buf;
+        private int start;
+        private int end;
+
+        Window(InputStream input, int size) {
+            this.input = input;
+            this.buf = new byte[size];
+        }
+
+        // Reads more, moving the unread bytes to the front first. False at the end of the body.
+        private boolean fill() throws IOException {
+            if (start > 0) {
+                System.arraycopy(buf, start, buf, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            if (end == buf.length) return false;
+            int n = input.read(buf, end, buf.length - end);
+            if (n <= 0) return false;
+            end += n;
+            return true;
+        }
+
+        private boolean ensure(int bytes) throws IOException {
+            while (end - start < bytes) {
+                if (!fill()) return false;
+            }
+            return true;
+        }
+
+        // Position of seq within the next limit bytes, reading as needed; -1 if not there.
+        private int find(byte[] seq, int limit) throws IOException {
+            int from = start;
+            while (true) {
+                int at = findSequence(buf, seq, from, end);
+                if (at != -1) return at;
+                if (end - start >= limit) return -1;
+                int scanned = Math.max(end - seq.length + 1, start) - start;
+                if (!fill()) return -1;
+                from = start + scanned;
+            }
+        }
+
+        private boolean skipPast(byte[] delimiter) throws IOException {
+            return copyUntil(delimiter, (b, off, len) -> {});
+        }
+
+        // Hands everything before the delimiter to sink and consumes the delimiter. False if it never comes.
+        private boolean copyUntil(byte[] delimiter, Sink sink) throws IOException {
+            while (true) {
+                int at = findSequence(buf, delimiter, start, end);
+                if (at != -1) {
+                    if (at > start) sink.write(buf, start, at - start);
+                    start = at + delimiter.length;
+                    return true;
+                }
+                // keep a tail that could be the start of the delimiter
+                int safe = end - delimiter.length + 1;
+                if (safe > start) {
+                    sink.write(buf, start, safe - start);
+                    start = safe;
+                }
+                if (!fill()) return false;
+            }
+        }
     }
 
     private static int findSequence(byte[] data, byte[] sequence, int start, int end) {
@@ -15,8 +15,52 @@ public class RequestParser {
              throw new RuntimeException("Invalid HTTP request: no header end found");
         }
 
-        int bodyStart = findHeaderEndBytes(data);
+        int bodyStart = headerEndIndex;
 
+        HttpRequest req = parseHeaderSection(data, headerEndIndex);
+
+        byte[] bodyBytes = null;
+
+        String transferEncoding = req.getHeader("transfer-encoding");
+        String contentLength = req.getHeader("content-length");
+
+        if (transferEncoding != null && transferEncoding.equalsIgnoreCase("chunked")) {
+            bodyBytes = readChunkedBody(ByteBuffer.wrap(data, bodyStart, data.length - bodyStart));
+        } else if (contentLength != null) {
+            int len = Integer.parseInt(contentLength);
+            bodyBytes = readFixedLengthBody(ByteBuffer.wrap(data, bodyStart, data.length - bodyStart), len);
+        }
+
+        req.setBody(bodyBytes);
+
+        parseCookies(req);
+        parseQueryParams(req);
+        req.parseBody();
+
+        return req;
+    }
+
+    // Parses only the request line and headers, leaving the body where it is.
+    public static HttpRequest parseHead(ByteBuffer buffer) throws Exception {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+
+        int headerEndIndex = findHeaderEndBytes(data);
+        if (headerEndIndex == -1) {
+             throw new RuntimeException("Invalid HTTP request: no header end found");
+        }
+
+        HttpRequest req = parseHeaderSection(data, headerEndIndex);
+        parseCookies(req);
+        parseQueryParams(req);
+        return req;
+    }
+
+    public static byte[] decodeChunkedBody(ByteBuffer buffer) throws Exception {
+        return readChunkedBody(buffer);
+    }
+
+    private static HttpRequest parseHeaderSection(byte[] data, int headerEndIndex) {
         String headerSection = new String(data, 0, headerEndIndex, StandardCharsets.UTF_8);
         String[] lines = headerSection.split("\r\n");
 
@@ -38,25 +82,6 @@ public class RequestParser {
                 req.addHeader(key, value);
             }
         }
-
-        byte[] bodyBytes = null;
-
-        String transferEncoding = req.getHeader("transfer-encoding");
-        String contentLength = req.getHeader("content-length");
-
-        if (transferEncoding != null && transferEncoding.equalsIgnoreCase("chunked")) {
-            bodyBytes = readChunkedBody(ByteBuffer.wrap(data, bodyStart, data.length - bodyStart));
-        } else if (contentLength != null) {
-            int len = Integer.parseInt(contentLength);
-            bodyBytes = readFixedLengthBody(ByteBuffer.wrap(data, bodyStart, data.length - bodyStart), len);
-        }
-
-        req.setBody(bodyBytes);
-
-        parseCookies(req);
-        parseQueryParams(req);
-        req.parseBody();
-
         return req;
     }
 
@@ -153,6 +178,7 @@ public class RequestParser {
             String queryString = path.substring(queryIndex + 1);
 
             req.setPath(actualPath);
+            req.setQueryString(queryString);
 
             for (String param : queryString.split("&")) {
                 String[] kv = param.split("=", 2);
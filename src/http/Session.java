@@ -1,105 +1,167 @@
 package src.http;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class Session {
-    private static final Map<String, Session> sessions = new ConcurrentHashMap<>();
     private static final long SESSION_TIMEOUT = 30 * 60 * 1000; // 30 minutes
-    
+    private static final int MAX_SESSIONS = 1_000_000;
+    private static volatile SessionStore sessions = new MemorySessionStore(MAX_SESSIONS, SESSION_TIMEOUT);
+
     private final String id;
     private final long createdAt;
-    private long lastAccessedAt;
+    private volatile long lastAccessedAt;
+    private volatile long persistedAccessAt;
+    private volatile String externalId;
     private final Map<String, Object> attributes;
-    
-    private Session(String id) {
+
+    Session(String id, long createdAt, long lastAccessedAt) {
         this.id = id;
-        this.createdAt = System.currentTimeMillis();
-        this.lastAccessedAt = createdAt;
-        this.attributes = new HashMap<>();
+        this.createdAt = createdAt;
+        this.lastAccessedAt = lastAccessedAt;
+        this.persistedAccessAt = lastAccessedAt;
+        this.attributes = new ConcurrentHashMap<>(4);
+    }
+
+
+    public static void configureStore(String type, String path, Map<String, String> keys,
+                                      boolean encrypt) throws IOException, GeneralSecurityException {
+        SessionStore previous = sessions;
+        if ("mapped".equalsIgnoreCase(type)) {
+            sessions = new MappedSessionStore(Paths.get(path), MAX_SESSIONS, SESSION_TIMEOUT);
+        } else if ("cookie".equalsIgnoreCase(type)) {
+            sessions = new SignedCookieSessionStore(keys, encrypt, SESSION_TIMEOUT);
+        } else {
+            sessions = new MemorySessionStore(MAX_SESSIONS, SESSION_TIMEOUT);
+        }
+        previous.close();
     }
-    
+
+    public static void closeStore() {
+        sessions.close();
+    }
+
 
     public static Session createSession() {
         String id = generateSessionId();
-        Session session = new Session(id);
-        sessions.put(id, session);
+        long now = System.currentTimeMillis();
+        Session session = new Session(id, now, now);
+        sessions.put(session);
         return session;
     }
-    
+
 
     public static Session getSession(String id) {
         if (id == null) return null;
-        
-        Session session = sessions.get(id);
-        if (session == null) return null;
-        
-        if (session.isExpired()) {
-            sessions.remove(id);
-            return null;
-        }
-        
-        session.lastAccessedAt = System.currentTimeMillis();
-        return session;
+        return sessions.get(id, System.currentTimeMillis());
     }
-    
+
 
     public static void destroySession(String id) {
         sessions.remove(id);
     }
-    
+
 
     private static String generateSessionId() {
         return UUID.randomUUID().toString().replace("-", "").toUpperCase();
     }
-    
 
-    private boolean isExpired() {
-        return (System.currentTimeMillis() - lastAccessedAt) > SESSION_TIMEOUT;
+
+    boolean isExpired(long now, long timeoutMs) {
+        return (now - lastAccessedAt) > timeoutMs;
+    }
+
+    void touch(long now) {
+        lastAccessedAt = now;
+    }
+
+    long getCreatedAt() {
+        return createdAt;
+    }
+
+    long getLastAccessedAt() {
+        return lastAccessedAt;
+    }
+
+    long getPersistedAccessAt() {
+        return persistedAccessAt;
+    }
+
+    void setPersistedAccessAt(long at) {
+        persistedAccessAt = at;
     }
-    
+
+    void restoreAttribute(String key, Object value) {
+        if (value == null) attributes.remove(key);
+        else attributes.put(key, value);
+    }
+
 
     public String getId() {
+        return sessions.externalId(this);
+    }
+
+    String getKey() {
         return id;
     }
-    
- 
+
+    // The store's encoding of this session, kept until an attribute changes.
+    String getCachedExternalId() {
+        return externalId;
+    }
+
+    void setCachedExternalId(String externalId) {
+        this.externalId = externalId;
+    }
+
+    /**
+     * True when the session lives in the SESSIONID cookie itself and its
+     * expiry is renewed by sending the cookie again, so a response that
+     * uses the session should set it.
+     */
+    public boolean refreshesCookie() {
+        return sessions.refreshesCookie();
+    }
+
+
     public void setAttribute(String key, Object value) {
-        attributes.put(key, value);
+        sessions.checkAttribute(this, key, value);
+        restoreAttribute(key, value);
+        sessions.attributeChanged(this, key, value);
     }
 
     public Object getAttribute(String key) {
         return attributes.get(key);
     }
-    
+
 
     public boolean hasAttribute(String key) {
         return attributes.containsKey(key);
     }
-    
+
 
     public void removeAttribute(String key) {
         attributes.remove(key);
+        sessions.attributeChanged(this, key, null);
     }
-    
+
 
     public Map<String, Object> getAttributes() {
-        return new HashMap<>(attributes);
+        return Collections.unmodifiableMap(attributes);
     }
-    
+
 
     public static void cleanupExpiredSessions() {
-        // long now = System.currentTimeMillis();
-        sessions.entrySet().removeIf(entry -> {
-            if (entry.getValue().isExpired()) {
-                System.out.println("[SESSION] Cleaned up expired: " + entry.getKey());
-                return true;
-            }
-            return false;
-        });
+        int removed = sessions.removeExpired(System.currentTimeMillis());
+        if (removed > 0) {
+            System.out.println("[SESSION] Cleaned up " + removed + " expired sessions");
+        }
     }
 
 public static int getSessionCount() {
     return sessions.size();
 }
-}
\ No newline at end of file
+}
@@ -0,0 +1,30 @@
+package src.http;
+
+interface SessionStore {
+
+    void put(Session session);
+
+    Session get(String id, long now);
+
+    void remove(String id);
+
+    int removeExpired(long now);
+
+    int size();
+
+    // The value handed to clients as the SESSIONID cookie.
+    default String externalId(Session session) {
+        return session.getKey();
+    }
+
+    default boolean refreshesCookie() {
+        return false;
+    }
+
+    // Called before an attribute is set; throws IllegalArgumentException if the store cannot hold it.
+    default void checkAttribute(Session session, String key, Object value) {}
+
+    default void attributeChanged(Session session, String key, Object value) {}
+
+    default void close() {}
+}
@@ -0,0 +1,231 @@
+package src.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Stateless sessions: the whole session travels in the cookie as
+ * {@code <keyId>.<payload>.<hmac>}, all base64url. The payload carries the
+ * issued-at and expiry claims plus the attributes, optionally AES-GCM
+ * encrypted. The expiry is the session timeout after the last access and
+ * the cookie is sent again on each use, so like the other stores the
+ * timeout is an idle one. The first configured key signs new cookies; every configured key
+ * is accepted on the way in, so keys can be rotated by prepending a new one
+ * and dropping the oldest once its cookies have expired.
+ */
+class SignedCookieSessionStore implements SessionStore {
+
+    private static final int  MIN_SECRET_BYTES = 16;
+    private static final int  NONCE_BYTES      = 12;
+    private static final int  TAG_BYTES        = 16;
+    private static final int  MAC_BYTES        = 32;
+    // Browsers drop cookies past 4096 bytes of name, value and attributes; this leaves some margin.
+    private static final int  MAX_COOKIE_BYTES = 4000;
+    // What Router adds around the token: SESSIONID=<token>; Path=/; HttpOnly
+    private static final int  COOKIE_OVERHEAD  = "SESSIONID=; Path=/; HttpOnly".length();
+    private static final byte PLAIN            = 0;
+    private static final byte ENCRYPTED        = 1;
+
+    private static final Base64.Encoder B64 = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder B64D = Base64.getUrlDecoder();
+
+    private static class Key {
+        private final String        id;
+        private final SecretKeySpec macKey;
+        private final SecretKeySpec encKey;
+
+        Key(String id, byte[] secret) throws GeneralSecurityException {
+            this.id     = id;
+            this.macKey = new SecretKeySpec(derive(secret, "mac"), "HmacSHA256");
+            this.encKey = new SecretKeySpec(Arrays.copyOf(derive(secret, "enc"), 16), "AES");
+        }
+    }
+
+    private final Map<String, Key> keys = new LinkedHashMap<>();
+    private final Key              signingKey;
+    private final boolean          encrypt;
+    private final long             timeoutMs;
+    private final SecureRandom     random = new SecureRandom();
+
+    SignedCookieSessionStore(Map<String, String> secrets, boolean encrypt, long timeoutMs)
+            throws GeneralSecurityException {
+        if (secrets.isEmpty())
+            throw new IllegalArgumentException("session_keys is required for cookie sessions");
+
+        for (Map.Entry<String, String> e : secrets.entrySet()) {
+            if (e.getKey().isEmpty() || e.getKey().contains("."))
+                throw new IllegalArgumentException("Invalid session key id '" + e.getKey() + "'");
+            byte[] secret = e.getValue().getBytes(StandardCharsets.UTF_8);
+            if (secret.length < MIN_SECRET_BYTES)
+                throw new IllegalArgumentException("Session key '" + e.getKey()
+                        + "' must be at least " + MIN_SECRET_BYTES + " bytes");
+            keys.put(e.getKey(), new Key(e.getKey(), secret));
+        }
+        this.signingKey = keys.values().iterator().next();
+        this.encrypt    = encrypt;
+        this.timeoutMs  = timeoutMs;
+    }
+
+    @Override
+    public void put(Session session) {}
+
+    @Override
+    public Session get(String token, long now) {
+        try {
+            return decode(token, now);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void remove(String id) {}
+
+    @Override
+    public int removeExpired(long now) {
+        return 0;
+    }
+
+    @Override
+    public int size() {
+        return 0;
+    }
+
+    @Override
+    public boolean refreshesCookie() {
+        return true;
+    }
+
+    // Signed once per request: a session decoded from a cookie lives for one request.
+    @Override
+    public String externalId(Session session) {
+        String token = session.getCachedExternalId();
+        if (token != null) return token;
+        try {
+            token = encode(session);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not sign session: " + e.getMessage(), e);
+        }
+        session.setCachedExternalId(token);
+        return token;
+    }
+
+    @Override
+    public void checkAttribute(Session session, String key, Object value) {
+        long size = 8 + 8 + 2 + AttributeCodec.stringSize(key) + AttributeCodec.valueSize(value);
+        for (Map.Entry<String, Object> e : session.getAttributes().entrySet()) {
+            if (e.getKey().equals(key)) continue;
+            size += AttributeCodec.stringSize(e.getKey()) + AttributeCodec.valueSize(e.getValue());
+        }
+        long cookie = cookieLength(size);
+        if (cookie > MAX_COOKIE_BYTES) {
+            throw new IllegalArgumentException("Session attribute '" + key + "' would make the session cookie "
+                    + cookie + " bytes; browsers keep cookies up to " + MAX_COOKIE_BYTES);
+        }
+    }
+
+    // Length of the Set-Cookie value for a session whose claims encode to claimsSize bytes.
+    private long cookieLength(long claimsSize) {
+        long payload = 1 + (encrypt ? NONCE_BYTES + claimsSize + TAG_BYTES : claimsSize);
+        return COOKIE_OVERHEAD + signingKey.id.getBytes(StandardCharsets.UTF_8).length + 1
+                + base64Length(payload) + 1 + base64Length(MAC_BYTES);
+    }
+
+    private static long base64Length(long bytes) {
+        return (bytes * 4 + 2) / 3;
+    }
+
+    @Override
+    public void attributeChanged(Session session, String key, Object value) {
+        session.setCachedExternalId(null);
+    }
+
+    private String encode(Session session) throws GeneralSecurityException {
+        ByteBuffer claims = ByteBuffer.allocate(MAX_COOKIE_BYTES);
+        claims.putLong(session.getCreatedAt());
+        claims.putLong(session.getLastAccessedAt() + timeoutMs);
+        Map<String, Object> attributes = session.getAttributes();
+        claims.putShort((short) attributes.size());
+        for (Map.Entry<String, Object> e : attributes.entrySet()) {
+            AttributeCodec.putString(claims, e.getKey());
+            AttributeCodec.putValue(claims, e.getValue());
+        }
+        claims.flip();
+        byte[] plain = new byte[claims.remaining()];
+        claims.get(plain);
+
+        byte[] payload;
+        if (encrypt) {
+            byte[] nonce = new byte[NONCE_BYTES];
+            random.nextBytes(nonce);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, signingKey.encKey, new GCMParameterSpec(128, nonce));
+            byte[] sealed = cipher.doFinal(plain);
+            payload = ByteBuffer.allocate(1 + NONCE_BYTES + sealed.length)
+                    .put(ENCRYPTED).put(nonce).put(sealed).array();
+        } else {
+            payload = ByteBuffer.allocate(1 + plain.length).put(PLAIN).put(plain).array();
+        }
+
+        String signed = signingKey.id + "." + B64.encodeToString(payload);
+        return signed + "." + B64.encodeToString(sign(signingKey, signed));
+    }
+
+    private Session decode(String token, long now) throws GeneralSecurityException {
+        int dot1 = token.indexOf('.');
+        int dot2 = token.lastIndexOf('.');
+        if (dot1 <= 0 || dot2 <= dot1) return null;
+
+        Key key = keys.get(token.substring(0, dot1));
+        if (key == null) return null;
+
+        String signed = token.substring(0, dot2);
+        byte[] signature = B64D.decode(token.substring(dot2 + 1));
+        if (!MessageDigest.isEqual(signature, sign(key, signed))) return null;
+
+        ByteBuffer payload = ByteBuffer.wrap(B64D.decode(token.substring(dot1 + 1, dot2)));
+        ByteBuffer claims;
+        if (payload.get() == ENCRYPTED) {
+            byte[] nonce = new byte[NONCE_BYTES];
+            payload.get(nonce);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, key.encKey, new GCMParameterSpec(128, nonce));
+            claims = ByteBuffer.wrap(cipher.doFinal(payload.array(), payload.position(),
+                    payload.remaining()));
+        } else {
+            claims = payload;
+        }
+
+        long issuedAt  = claims.getLong();
+        long expiresAt = claims.getLong();
+        if (now >= expiresAt) return null;
+
+        Session session = new Session(token, issuedAt, now);
+        int count = claims.getShort() & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            String name = AttributeCodec.getString(claims);
+            session.restoreAttribute(name, AttributeCodec.getValue(claims));
+        }
+        return session;
+    }
+
+    private static byte[] sign(Key key, String data) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(key.macKey);
+        return mac.doFinal(data.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static byte[] derive(byte[] secret, String purpose) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+        return mac.doFinal(purpose.getBytes(StandardCharsets.US_ASCII));
+    }
+}
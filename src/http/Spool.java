@@ -0,0 +1,279 @@
+package src.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Temp files for spilled request bodies and multipart uploads, kept in one
+ * directory per process under spool_dir. A file is reference counted:
+ * whoever creates it holds one reference and each open stream another, and
+ * it is deleted, or truncated and kept for reuse, as soon as the last one
+ * is released. Nothing is registered with deleteOnExit. Bytes on disk are
+ * capped at spool_max_bytes. Directories left behind by processes that are
+ * gone are removed at startup.
+ */
+public final class Spool {
+
+    private static final int POOL_SIZE = 16;
+
+    private static final AtomicLong   used = new AtomicLong();
+    private static final AtomicLong   sequence = new AtomicLong();
+    private static final AtomicInteger open = new AtomicInteger();
+    private static final LongAdder    rejections = new LongAdder();
+    private static final ArrayDeque<SpoolFile> pool = new ArrayDeque<>();
+
+    private static volatile Path dir;
+    private static volatile long maxBytes = 1024L * 1024 * 1024;
+
+    private Spool() {}
+
+    /**
+     * Uses {@code root}/&lt;pid&gt; for this process, after removing the
+     * directories of earlier processes that are no longer running. A
+     * handoff successor leaves its still running predecessor's files alone.
+     */
+    public static synchronized void configure(String root, long maxBytes) throws IOException {
+        Spool.maxBytes = maxBytes;
+        Path base = Paths.get(root).toAbsolutePath();
+        Path own = base.resolve(Long.toString(ProcessHandle.current().pid()));
+        if (own.equals(dir)) return;
+
+        Files.createDirectories(own);
+        int swept = sweep(base, own);
+        if (swept > 0) System.out.println("[SPOOL] Removed " + swept + " files left by earlier processes");
+        dir = own;
+    }
+
+    // Deletes the files kept for reuse, and the directory once nothing else is in it.
+    public static void close() {
+        Path d = dir;
+        if (d == null) return;
+        synchronized (pool) {
+            for (SpoolFile file : pool) {
+                try {
+                    file.channel.close();
+                    Files.deleteIfExists(file.path);
+                } catch (IOException ignored) {}
+            }
+            pool.clear();
+        }
+        try {
+            Files.deleteIfExists(d);
+        } catch (IOException ignored) {
+            // files of requests still in flight
+        }
+    }
+
+    public static void setMaxBytes(long maxBytes) {
+        Spool.maxBytes = maxBytes;
+    }
+
+    private static int sweep(Path base, Path own) throws IOException {
+        int removed = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(base)) {
+            for (Path entry : entries) {
+                if (entry.equals(own) || !Files.isDirectory(entry)) continue;
+                long pid;
+                try {
+                    pid = Long.parseLong(entry.getFileName().toString());
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false)) continue;
+                try (Stream<Path> files = Files.walk(entry)) {
+                    for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                        if (Files.isRegularFile(p)) removed++;
+                        Files.deleteIfExists(p);
+                    }
+                }
+            }
+        }
+        return removed;
+    }
+
+    private static Path dir() throws IOException {
+        Path d = dir;
+        if (d != null) return d;
+        synchronized (Spool.class) {
+            if (dir == null) {
+                configure(Paths.get(System.getProperty("java.io.tmpdir"), "webserv-spool").toString(),
+                        maxBytes);
+            }
+            return dir;
+        }
+    }
+
+    /**
+     * Returns an empty file with {@code expectedBytes} of the quota set
+     * aside, or throws if that much is not left.
+     */
+    public static SpoolFile create(long expectedBytes) throws IOException {
+        reserve(expectedBytes);
+        SpoolFile file;
+        synchronized (pool) {
+            file = pool.pollFirst();
+        }
+        try {
+            if (file == null) {
+                Path path = dir().resolve("spool-" + sequence.incrementAndGet() + ".tmp");
+                file = new SpoolFile(path, FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE));
+            }
+        } catch (IOException e) {
+            used.addAndGet(-expectedBytes);
+            throw e;
+        }
+        file.reserved = expectedBytes;
+        file.refs.set(1);
+        open.incrementAndGet();
+        return file;
+    }
+
+    private static void reserve(long bytes) throws IOException {
+        long limit = maxBytes;
+        while (true) {
+            long current = used.get();
+            if (current + bytes > limit) {
+                rejections.increment();
+                throw new IOException("Spool quota exceeded");
+            }
+            if (used.compareAndSet(current, current + bytes)) return;
+        }
+    }
+
+    public static long getUsedBytes()   { return used.get(); }
+    public static long getMaxBytes()    { return maxBytes; }
+    public static int  getOpenFiles()   { return open.get(); }
+    public static long getRejections()  { return rejections.sum(); }
+
+    public static final class SpoolFile {
+        private final Path path;
+        private final FileChannel channel;
+        private final AtomicInteger refs = new AtomicInteger();
+        private volatile long size;
+        private long reserved;
+
+        private SpoolFile(Path path, FileChannel channel) {
+            this.path = path;
+            this.channel = channel;
+        }
+
+        // Appends, from the thread that created the file.
+        public void write(byte[] data, int offset, int length) throws IOException {
+            if (size + length > reserved) {
+                long more = size + length - reserved;
+                reserve(more);
+                reserved += more;
+            }
+            ByteBuffer src = ByteBuffer.wrap(data, offset, length);
+            long position = size;
+            while (src.hasRemaining()) position += channel.write(src, position);
+            size = position;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        // Copies the contents to a new file at {@code target}.
+        public void copyTo(Path target) throws IOException {
+            try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE)) {
+                long position = 0;
+                while (position < size) position += channel.transferTo(position, size - position, out);
+            }
+        }
+
+        /**
+         * Reads from {@code position} to the end. The stream holds a reference
+         * of its own, so the file stays until it is closed even if the request
+         * that created it is done.
+         */
+        public InputStream openStream(long position) {
+            retain();
+            return new InputStream() {
+                private long pos = position;
+                private boolean closed;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (closed) throw new IOException("Stream closed");
+                    if (len == 0) return 0;
+                    long left = size - pos;
+                    if (left <= 0) return -1;
+                    int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, left)), pos);
+                    if (n > 0) pos += n;
+                    return n;
+                }
+
+                @Override
+                public long skip(long n) {
+                    long skipped = Math.max(0, Math.min(n, size - pos));
+                    pos += skipped;
+                    return skipped;
+                }
+
+                @Override
+                public int available() {
+                    return (int) Math.min(Integer.MAX_VALUE, Math.max(0, size - pos));
+                }
+
+                @Override
+                public void close() {
+                    if (closed) return;
+                    closed = true;
+                    release();
+                }
+            };
+        }
+
+        public void retain() {
+            refs.incrementAndGet();
+        }
+
+        // Called once by the creator and once per closed stream.
+        public void release() {
+            if (refs.decrementAndGet() != 0) return;
+            used.addAndGet(-reserved);
+            reserved = 0;
+            open.decrementAndGet();
+            try {
+                channel.truncate(0);
+                size = 0;
+                synchronized (pool) {
+                    if (pool.size() < POOL_SIZE && path.getParent().equals(dir)) {
+                        pool.addLast(this);
+                        return;
+                    }
+                }
+            } catch (IOException ignored) {
+                // not reusable; fall through and delete it
+            }
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                System.err.println("[SPOOL] Could not delete " + path + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package src;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A multipart upload larger than the request buffer budget, and than the
+ * test JVM's heap (surefire runs it with -Xmx64m), has to go from the
+ * spool file to the upload store without being read into memory.
+ */
+class SpilledUploadTest {
+
+    private static final int    FILE_BYTES = 48 * 1024 * 1024;
+    private static final String BOUNDARY   = "----spilledUploadBoundary";
+
+    @TempDir
+    Path site;
+
+    private Server server;
+    private Thread loop;
+    private int    port;
+
+    @BeforeEach
+    void start() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Files.createDirectories(site.resolve("www"));
+        Files.createDirectories(Router.UPLOADS);
+        Path config = site.resolve("config.json");
+        Files.writeString(config, "{\n"
+                + "  \"servers\": [{\n"
+                + "    \"ports\": [" + port + "],\n"
+                + "    \"hosts\": [\"127.0.0.1\"],\n"
+                + "    \"client_max_body_size\": " + 2 * FILE_BYTES + ",\n"
+                + "    \"routes\": [\n"
+                + "      {\"path\": \"/uploads\", \"root\": \"uploads\", \"methods\": [\"GET\", \"POST\"]},\n"
+                + "      {\"path\": \"/\", \"root\": \"" + site.resolve("www") + "\", \"methods\": [\"GET\"]}\n"
+                + "    ]\n"
+                + "  }],\n"
+                + "  \"request_buffer_budget\": 1048576,\n"
+                + "  \"request_spill_threshold\": 65536,\n"
+                + "  \"spool_dir\": \"" + site.resolve("spool") + "\",\n"
+                + "  \"spool_max_bytes\": " + 4L * FILE_BYTES + "\n"
+                + "}\n");
+
+        List<Config> configs = ConfigLoader.load(config.toString());
+        server = new Server(configs, config.toString());
+        loop = new Thread(server::start, "server");
+        loop.start();
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        fail("Server did not start on port " + port);
+    }
+
+    @AfterEach
+    void stop() throws Exception {
+        server.shutdown();
+        loop.join(10_000);
+    }
+
+    @Test
+    void storesMultipartBodyLargerThanHeap() throws Exception {
+        byte[] head = ("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"title\"\r\n\r\n"
+                + "spilled\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"big.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+
+        HttpURLConnection post = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/uploads").openConnection();
+        post.setDoOutput(true);
+        post.setReadTimeout(60_000);
+        post.setRequestMethod("POST");
+        post.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+        post.setFixedLengthStreamingMode((long) head.length + FILE_BYTES + tail.length);
+        MessageDigest sent = MessageDigest.getInstance("SHA-256");
+        try (OutputStream out = post.getOutputStream()) {
+            out.write(head);
+            byte[] chunk = new byte[64 * 1024];
+            for (int written = 0; written < FILE_BYTES; written += chunk.length) {
+                for (int i = 0; i < chunk.length; i++) chunk[i] = (byte) ((written + i) * 31 >>> 7);
+                sent.update(chunk);
+                out.write(chunk);
+            }
+            out.write(tail);
+        }
+        assertEquals(200, post.getResponseCode());
+        String page;
+        try (InputStream in = post.getInputStream()) {
+            page = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+
+        Matcher stored = Pattern.compile("/uploads/([0-9a-f-]+_big\\.bin)").matcher(page);
+        assertTrue(stored.find(), "upload page names the stored file");
+        String name = stored.group(1);
+        try {
+            UploadStore.Entry entry = UploadStore.forDirectory(Router.UPLOADS).get(name);
+            assertNotNull(entry);
+            assertEquals(FILE_BYTES, entry.getSize());
+            assertEquals(HexFormat.of().formatHex(sent.digest()), entry.getSha256());
+        } finally {
+            UploadStore.forDirectory(Router.UPLOADS).delete(name);
+        }
+    }
+}
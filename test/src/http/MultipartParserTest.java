@@ -0,0 +1,79 @@
+package src.http;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MultipartParserTest {
+
+    private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+    @Test
+    void streamedPartsMatchParsedArray() throws IOException {
+        // sizes around the 64KB window, so delimiters land on and across its edges
+        for (int size : new int[] {0, 1, 65535, 65536, 65537, 65536 - 40, 200_000}) {
+            byte[] body = body(size);
+            List<MultipartParser.Part> expected = MultipartParser.parse(body, BOUNDARY);
+            List<MultipartParser.Part> streamed = MultipartParser.parse(trickle(body), BOUNDARY);
+            try {
+                assertEquals(expected.size(), streamed.size(), "parts for " + size);
+                for (int i = 0; i < expected.size(); i++) {
+                    MultipartParser.Part e = expected.get(i), s = streamed.get(i);
+                    assertEquals(e.getName(), s.getName());
+                    assertEquals(e.getFilename(), s.getFilename());
+                    assertEquals(e.getSize(), s.getSize(), "size of " + e.getName() + " for " + size);
+                    assertEquals(e.getSha256(), s.getSha256());
+                    try (InputStream a = e.getInputStream(); InputStream b = s.getInputStream()) {
+                        assertArrayEquals(a.readAllBytes(), b.readAllBytes());
+                    }
+                }
+            } finally {
+                MultipartParser.release(expected);
+                MultipartParser.release(streamed);
+            }
+        }
+    }
+
+    @Test
+    void streamDropsPartCutOffByEndOfBody() throws IOException {
+        byte[] body = body(100_000);
+        byte[] cut = java.util.Arrays.copyOf(body, body.length - 50_000);
+        List<MultipartParser.Part> parts = MultipartParser.parse(new ByteArrayInputStream(cut), BOUNDARY);
+        try {
+            assertEquals(1, parts.size());
+            assertEquals("title", parts.get(0).getName());
+        } finally {
+            MultipartParser.release(parts);
+        }
+    }
+
+    private static byte[] body(int size) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(("preamble\r\n--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"title\"\r\n\r\n"
+                + "quarterly report\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"data.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        for (int i = 0; i < size; i++) out.write(i % 7 == 0 ? '\r' : i % 11 == 0 ? '-' : 'a' + i % 26);
+        out.writeBytes(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        return out.toByteArray();
+    }
+
+    // Hands out at most 1000 bytes per read, as a socket or spool file might.
+    private static InputStream trickle(byte[] body) {
+        return new ByteArrayInputStream(body) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1000));
+            }
+        };
+    }
+}
@@ -0,0 +1,55 @@
+package src.http;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SignedCookieSessionStoreTest {
+
+    private static final long TIMEOUT = 30 * 60 * 1000;
+
+    @Test
+    void largestAcceptedSessionFitsBrowserCookieLimit() throws Exception {
+        for (boolean encrypt : new boolean[] {false, true}) {
+            SignedCookieSessionStore store = new SignedCookieSessionStore(
+                    Map.of("k1", "0123456789abcdef0123"), encrypt, TIMEOUT);
+            long now = System.currentTimeMillis();
+            Session session = new Session("s", now, now);
+
+            int largest = largestAccepted(store, session);
+            String value = "x".repeat(largest);
+            store.checkAttribute(session, "data", value);
+            session.restoreAttribute("data", value);
+
+            HttpResponse response = new HttpResponse(200, "OK");
+            response.addSessionCookie("SESSIONID", store.externalId(session));
+            String cookie = response.getHeader("Set-Cookie");
+            assertTrue(cookie.length() <= 4000, "cookie of " + cookie.length() + " bytes, encrypt=" + encrypt);
+            assertTrue(cookie.length() > 3990, "limit leaves room unused: " + cookie.length());
+
+            Session decoded = store.get(store.externalId(session), now);
+            assertNotNull(decoded);
+            assertEquals(value, decoded.getAttribute("data"));
+
+            Session fresh = new Session("s", now, now);
+            assertThrows(IllegalArgumentException.class,
+                    () -> store.checkAttribute(fresh, "data", "x".repeat(largest + 1)));
+        }
+    }
+
+    private static int largestAccepted(SignedCookieSessionStore store, Session session) {
+        int low = 0, high = 4096;
+        while (low < high) {
+            int mid = (low + high + 1) / 2;
+            try {
+                store.checkAttribute(session, "data", "x".repeat(mid));
+                low = mid;
+            } catch (IllegalArgumentException e) {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+}